@@ -0,0 +1,124 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+
+/// <summary>
+/// Deterministic request and response data for the benchmarks.
+/// </summary>
+final class BenchmarkData {
+	static final String SECRET = "Circle4Take40Idea";
+
+	private static final String ASCII = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJ0123456789-_.*&=";
+	private static final String UNICODE = "abcdef £€é ü ñ 漢字 😀 *&=";
+
+	private static final Set<String> REQUIRED = new HashSet<String>(Arrays.asList("merchantID", "action", "type",
+			"transactionUnique", "countryCode", "currencyCode", "amount"));
+
+	private BenchmarkData() {
+	}
+
+	/// <summary>
+	/// A SALE request with fieldCount fields. Beyond the usual card and
+	/// customer fields the request is padded with customerAddress[...] and
+	/// items[...][...] groups, as large real requests are.
+	/// </summary>
+	static Map<String, String> request(int fieldCount, int valueLength, boolean unicode) {
+		Map<String, String> request = new LinkedHashMap<String, String>();
+		request.put("merchantID", "100856");
+		request.put("action", "SALE");
+		request.put("type", "1");
+		request.put("transactionUnique", "bench" + fieldCount);
+		request.put("countryCode", "826");
+		request.put("currencyCode", "826");
+		request.put("amount", "1001");
+		request.put("cardNumber", "4012001037141112");
+		request.put("cardExpiryMonth", "12");
+		request.put("cardExpiryYear", "30");
+		request.put("cardCVV", "083");
+		request.put("redirectURL", "https://example.net/return?id=1&step=2");
+
+		for (int i = 0; request.size() < fieldCount; i++) {
+			String name;
+			switch (i % 3) {
+			case 0:
+				name = "customerAddress[line" + i + "]";
+				break;
+			case 1:
+				name = "items[" + i + "][description]";
+				break;
+			default:
+				name = "merchantData" + i;
+				break;
+			}
+			request.put(name, value(valueLength, unicode, i));
+		}
+
+		// Drop the optional fields first, so that small requests can still be
+		// sent.
+		Iterator<String> names = request.keySet().iterator();
+		while (request.size() > fieldCount && names.hasNext()) {
+			if (!REQUIRED.contains(names.next())) {
+				names.remove();
+			}
+		}
+
+		return request;
+	}
+
+	static List<NameValuePair> fields(Map<String, String> request) {
+		List<NameValuePair> fields = new ArrayList<NameValuePair>(request.size());
+		request.forEach((k, v) -> fields.add(new BasicNameValuePair(k, v)));
+		return fields;
+	}
+
+	/// <summary>
+	/// A signed response with fieldCount fields, as returned by the Gateway.
+	/// </summary>
+	static Map<String, String> response(int fieldCount, int valueLength, boolean unicode) {
+		Map<String, String> response = new LinkedHashMap<String, String>();
+		response.put("responseCode", "65802");
+		response.put("responseMessage", "3DS AUTHENTICATION REQUIRED");
+		response.put("merchantID", "100856");
+		response.put("action", "SALE");
+		response.put("amount", "1001");
+		response.put("transactionUnique", "bench" + fieldCount);
+		response.put("threeDSRef", value(64, false, 7));
+
+		for (int i = 0; response.size() < fieldCount - 1; i++) {
+			String name = i % 2 == 0 ? "threeDSRequest[field" + i + "]" : "threeDSDetails[field" + i + "]";
+			response.put(name, value(valueLength, unicode, i));
+		}
+
+		Gateway signer = new Gateway(null, SECRET, null, null, null);
+		response.put("signature", signer.sign(fields(response), SECRET));
+
+		return response;
+	}
+
+	static String value(int length, boolean unicode, int seed) {
+		String alphabet = unicode ? UNICODE : ASCII;
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; sb.length() < length; i++) {
+			char c = alphabet.charAt((i * 31 + seed * 17) % alphabet.length());
+			if (Character.isSurrogate(c)) {
+				// Keep surrogate pairs intact.
+				int start = Character.isLowSurrogate(c) ? (i * 31 + seed * 17) % alphabet.length() - 1
+						: (i * 31 + seed * 17) % alphabet.length();
+				sb.append(alphabet, start, start + 2);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// A repeated QUERY against a local stand-in gateway, sent every time by
+/// the Gateway or answered from a CachingGateway's cache. Use -t to send
+/// from several threads.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CachingGatewayBenchmark {
+	private GatewaySimulator simulator;
+	private Gateway gateway;
+	private CachingGateway cached;
+	private GatewayRequest query;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		simulator = new GatewaySimulator(BenchmarkData.SECRET).start();
+		gateway = new Gateway("100856", BenchmarkData.SECRET, simulator.getDirectUrl(), null, null);
+		cached = new CachingGateway(gateway, 16 * 1024 * 1024, 1, TimeUnit.HOURS);
+
+		Map<String, String> request = new LinkedHashMap<String, String>();
+		request.put("action", "QUERY");
+		request.put("xref", "20010114NC52QF83MS67RPQ");
+		request.put("transactionUnique", "INV1");
+		query = GatewayRequest.of(request);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		gateway.close();
+		simulator.close();
+	}
+
+	@Benchmark
+	public Map<String, String> uncached() throws IOException, URISyntaxException {
+		return gateway.directRequest(query, null);
+	}
+
+	@Benchmark
+	public Map<String, String> cached() throws IOException, URISyntaxException {
+		return cached.directRequest(query, null);
+	}
+}
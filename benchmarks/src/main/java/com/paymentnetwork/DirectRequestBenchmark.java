@@ -0,0 +1,71 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// End-to-end directRequest against a local GatewaySimulator, covering
+/// signing, the pooled HTTP round trip, response parsing and verification.
+/// Use -t to drive the Gateway from several threads. With metrics set, each
+/// phase is also timed into a GatewayStatistics.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DirectRequestBenchmark {
+	@Param({ "10", "100" })
+	public int fieldCount;
+
+	@Param({ "false", "true" })
+	public boolean metrics;
+
+	private GatewaySimulator simulator;
+	private Gateway gateway;
+	private Map<String, String> request;
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		simulator = new GatewaySimulator(BenchmarkData.SECRET).start();
+		gateway = new Gateway("100856", BenchmarkData.SECRET, simulator.getDirectUrl(), null, null,
+				new ConnectionConfig().setMaxConnPerRoute(64).setMaxConnTotal(64)
+						.setMetrics(metrics ? new GatewayStatistics() : GatewayMetrics.NONE));
+		request = BenchmarkData.request(fieldCount, 16, false);
+		request.remove("redirectURL");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		gateway.close();
+		simulator.close();
+	}
+
+	/// <summary>
+	/// directRequest modifies the request it is given, so each call sends a
+	/// fresh copy.
+	/// </summary>
+	@Benchmark
+	public Map<String, String> directRequest() throws IOException, URISyntaxException {
+		return gateway.directRequest(new LinkedHashMap<String, String>(request), options);
+	}
+}
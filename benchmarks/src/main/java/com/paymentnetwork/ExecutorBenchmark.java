@@ -0,0 +1,87 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Fan-out of blocking directRequest calls through a GatewayExecutor on
+/// platform or virtual threads, against a GatewaySimulator answering after
+/// latency milliseconds. Each operation sends a batch of twice the
+/// concurrency limit and waits for every response.
+///
+/// The virtual thread runs fail on JDKs before 21.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ExecutorBenchmark {
+	@Param({ "false", "true" })
+	public boolean virtualThreads;
+
+	@Param({ "100", "1000" })
+	public int concurrency;
+
+	@Param({ "50" })
+	public int latency;
+
+	private GatewaySimulator simulator;
+	private Gateway gateway;
+	private GatewayExecutor executor;
+	private List<Map<String, String>> batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		simulator = new GatewaySimulator(BenchmarkData.SECRET).setLatency(latency).start();
+		gateway = new Gateway("100856", BenchmarkData.SECRET, simulator.getDirectUrl(), null, null,
+				new ConnectionConfig().setMaxConnPerRoute(concurrency).setMaxConnTotal(concurrency));
+		executor = new GatewayExecutor(gateway, concurrency, virtualThreads);
+
+		Map<String, String> request = BenchmarkData.request(10, 16, false);
+		request.remove("redirectURL");
+		batch = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < concurrency * 2; i++) {
+			batch.add(request);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		executor.close();
+		gateway.close();
+		simulator.close();
+	}
+
+	/// <summary>
+	/// directRequest modifies the requests it is given, so each batch sends
+	/// fresh copies.
+	/// </summary>
+	@Benchmark
+	public List<BatchResult> invokeAll() throws InterruptedException {
+		List<Map<String, String>> requests = new ArrayList<Map<String, String>>(batch.size());
+		for (Map<String, String> request : batch) {
+			requests.add(new LinkedHashMap<String, String>(request));
+		}
+		return executor.invokeAll(requests, null);
+	}
+}
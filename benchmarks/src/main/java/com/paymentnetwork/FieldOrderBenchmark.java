@@ -0,0 +1,55 @@
+package com.paymentnetwork;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Sorting request field names into signing order, for requests made up
+/// largely of customerAddress[...] and items[...][...] groups.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldOrderBenchmark {
+	@Param({ "10", "50", "100", "500" })
+	public int fieldCount;
+
+	private String[] names;
+	private final FieldCompare fieldCompare = new FieldCompare();
+
+	@Setup
+	public void setUp() {
+		Map<String, String> request = BenchmarkData.request(fieldCount, 8, false);
+		names = request.keySet().toArray(new String[0]);
+	}
+
+	@Benchmark
+	public String[] fieldCompare() {
+		String[] sorted = names.clone();
+		Arrays.sort(sorted, fieldCompare);
+		return sorted;
+	}
+
+	@Benchmark
+	public String[] legacyFieldCompare() {
+		String[] sorted = names.clone();
+		Arrays.sort(sorted, LegacySigning.FIELD_COMPARE);
+		return sorted;
+	}
+}
@@ -0,0 +1,81 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Pre-generating a run of signed hosted forms, one after another on the
+/// calling thread or in parallel through HostedFormBatch. Forms are
+/// written to a stream that discards them, so only rendering, signing and
+/// encoding are measured.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HostedFormBatchBenchmark {
+	@Param({ "10000" })
+	public int batchSize;
+
+	@Param({ "20" })
+	public int fieldCount;
+
+	private HostedFormTemplate template;
+	private List<GatewayRequest> requests;
+
+	@Setup
+	public void setUp() {
+		Gateway gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("submitText", "Pay £10.01 now");
+		template = gateway.hostedFormTemplate(options);
+
+		Map<String, String> request = BenchmarkData.request(fieldCount, 16, false);
+		request.put("redirectURL", "https://shop.example.com/return");
+		GatewayRequest base = GatewayRequest.of(request);
+
+		requests = new ArrayList<GatewayRequest>(batchSize);
+		for (int n = 0; n < batchSize; n++) {
+			requests.add(base.toBuilder().set("transactionUnique", "INV" + n).build());
+		}
+	}
+
+	@Benchmark
+	public long sequential() throws IOException {
+		long written = 0;
+		OutputStream out = OutputStream.nullOutputStream();
+		for (GatewayRequest request : requests) {
+			byte[] form = template.render(request).getBytes(StandardCharsets.UTF_8);
+			out.write(form);
+			written += form.length;
+		}
+		return written;
+	}
+
+	@Benchmark
+	public long batch() throws InterruptedException {
+		return new HostedFormBatch(template)
+				.render(requests.stream(), (index, request) -> OutputStream.nullOutputStream())
+				.getRenderedCount();
+	}
+}
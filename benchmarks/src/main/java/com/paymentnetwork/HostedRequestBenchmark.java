@@ -0,0 +1,139 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Rendering hosted payment forms and their hidden fields.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HostedRequestBenchmark {
+	@Param({ "10", "50", "100", "500" })
+	public int fieldCount;
+
+	@Param({ "16", "256" })
+	public int valueLength;
+
+	@Param({ "false", "true" })
+	public boolean unicode;
+
+	private Gateway gateway;
+	private Map<String, String> request;
+	private Map<String, String> options;
+	private HostedFormTemplate template;
+	private StringBuilder out;
+	private Map<String, String> nested;
+	private String value;
+	private String cleanValue;
+
+	@Setup
+	public void setUp() {
+		gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		request = BenchmarkData.request(fieldCount, valueLength, unicode);
+
+		options = new HashMap<String, String>();
+		options.put("formAttrs", "id=\"payment-form\" class=\"checkout\"");
+		options.put("submitText", "Pay £10.01 now");
+		template = gateway.hostedFormTemplate(options);
+		out = new StringBuilder(hostedRequest().length());
+
+		nested = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 10; i++) {
+			nested.put("line" + i, BenchmarkData.value(valueLength, unicode, i));
+		}
+
+		value = BenchmarkData.value(valueLength, unicode, 3);
+		cleanValue = "4012001037141112".repeat(valueLength / 16);
+	}
+
+	/// <summary>
+	/// HostedRequest modifies the request it is given, so each call renders
+	/// a fresh copy.
+	/// </summary>
+	@Benchmark
+	public String hostedRequest() {
+		return gateway.HostedRequest(new LinkedHashMap<String, String>(request), options);
+	}
+
+	@Benchmark
+	public String template() {
+		return template.render(new LinkedHashMap<String, String>(request));
+	}
+
+	/// <summary>
+	/// Rendering into a reused builder, as when streaming to a response
+	/// Writer.
+	/// </summary>
+	@Benchmark
+	public int templateToAppendable() throws IOException {
+		out.setLength(0);
+		template.render(new LinkedHashMap<String, String>(request), out);
+		return out.length();
+	}
+
+	@Benchmark
+	public String fieldToHtml() {
+		return Gateway.fieldToHtml("customerName", value);
+	}
+
+	@Benchmark
+	public String legacyFieldToHtml() {
+		return legacyFieldToHtml("customerName", value);
+	}
+
+	/// <summary>
+	/// A value with nothing to escape, like most amounts, codes and IDs.
+	/// </summary>
+	@Benchmark
+	public String cleanFieldToHtml() {
+		return Gateway.fieldToHtml("cardNumber", cleanValue);
+	}
+
+	@Benchmark
+	public String legacyCleanFieldToHtml() {
+		return legacyFieldToHtml("cardNumber", cleanValue);
+	}
+
+	@Benchmark
+	public String nestedFieldToHtml() {
+		return Gateway.fieldToHtml("customerAddress", nested);
+	}
+
+	@Benchmark
+	public String legacyNestedFieldToHtml() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : nested.entrySet()) {
+			sb.append(legacyFieldToHtml("customerAddress" + "[" + entry.getKey() + "]", entry.getValue()));
+		}
+		return sb.toString();
+	}
+
+	/// <summary>
+	/// The original fieldToHtml, escaping through escapeHtml4.
+	/// </summary>
+	private static String legacyFieldToHtml(String name, String value) {
+		value = StringEscapeUtils.escapeHtml4(value);
+		return String.format("<input type=\"hidden\" name=\"%s\" value=\"%s\" />\n", name, value);
+	}
+}
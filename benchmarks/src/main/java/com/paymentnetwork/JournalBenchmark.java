@@ -0,0 +1,80 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// What RequestJournal adds to each Direct API request: journaling the
+/// signed request and its response, either group-committed by the
+/// journal's background sync or forced to disk after every request.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+	@Param({ "20" })
+	public int fieldCount;
+
+	private Path directory;
+	private RequestJournal journal;
+	private List<NameValuePair> request;
+	private Map<String, String> response;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal-benchmark");
+		journal = new RequestJournal(directory);
+		request = BenchmarkData.fields(BenchmarkData.request(fieldCount, 16, false));
+		response = BenchmarkData.response(fieldCount, 16, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		journal.close();
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public long groupCommit() throws IOException {
+		long id = journal.recordRequest(request);
+		journal.recordResponse(id, response);
+		return id;
+	}
+
+	@Benchmark
+	public long forceEachRequest() throws IOException {
+		long id = journal.recordRequest(request);
+		journal.sync();
+		journal.recordResponse(id, response);
+		journal.sync();
+		return id;
+	}
+}
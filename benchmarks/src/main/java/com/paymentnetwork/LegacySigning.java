@@ -0,0 +1,80 @@
+package com.paymentnetwork;
+
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_512;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+
+/// <summary>
+/// The SDK's original signing path, kept so the benchmarks can report the
+/// current implementation against it.
+/// </summary>
+final class LegacySigning {
+	private LegacySigning() {
+	}
+
+	/// <summary>
+	/// The original FieldCompare, which copies the prefix of both names on
+	/// every comparison.
+	/// </summary>
+	static final Comparator<String> FIELD_COMPARE = (o1, o2) -> {
+		if (o1.contains("[")) {
+			o1 = o1.substring(0, o1.indexOf("["));
+		}
+
+		if (o2.contains("[")) {
+			o2 = o2.substring(0, o2.indexOf("["));
+		}
+		return o1.compareTo(o2);
+	};
+
+	static String sign(List<NameValuePair> fields, String secret) {
+		TreeMap<String, String> fieldsSorted = new TreeMap<String, String>(FIELD_COMPARE);
+
+		fields.forEach((f) -> {
+			fieldsSorted.put(f.getName(), f.getValue());
+		});
+
+		var fieldsFinal = new ArrayList<NameValuePair>();
+		fieldsSorted.forEach((k, v) -> {
+			fieldsFinal.add(new BasicNameValuePair(k, v));
+		});
+
+		var body = URLEncodedUtils.format(fieldsFinal, StandardCharsets.UTF_8);
+		body = body.replaceAll("\\*", "%2A");
+
+		return new DigestUtils(SHA_512).digestAsHex(body + secret);
+	}
+
+	/// <summary>
+	/// The original VerifyResponse, which only checked that a signature was
+	/// present when expected and never recomputed it.
+	/// </summary>
+	static boolean verifyPresence(Map<String, String> response, String secret) {
+		String signature = response.get("signature");
+		response.remove("signature");
+
+		List<NameValuePair> fieldsAsList = new ArrayList<NameValuePair>();
+
+		response.forEach((k, v) -> {
+			fieldsAsList.add(new BasicNameValuePair(k, v));
+		});
+
+		if (secret.isEmpty() && !signature.isEmpty()) {
+			throw new RuntimeException("Incorrectly signed response from Payment Gateway (1)");
+		} else if (!secret.isEmpty() && signature.isEmpty()) {
+			throw new RuntimeException("Incorrectly signed response from Payment Gateway (2)");
+		}
+
+		return fieldsAsList.size() > 0;
+	}
+}
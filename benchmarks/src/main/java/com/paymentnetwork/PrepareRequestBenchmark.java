@@ -0,0 +1,65 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Preparing and signing a Direct API request from fields shared by every
+/// transaction, either by copying a template map, which directRequest then
+/// modifies, or by deriving a GatewayRequest from a shared template.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrepareRequestBenchmark {
+	@Param({ "10", "50", "100" })
+	public int fieldCount;
+
+	private Gateway gateway;
+	private Map<String, String> options;
+	private Map<String, String> templateMap;
+	private GatewayRequest template;
+
+	@Setup
+	public void setUp() {
+		gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		options = new HashMap<String, String>();
+		templateMap = BenchmarkData.request(fieldCount, 16, false);
+		templateMap.remove("amount");
+		templateMap.remove("transactionUnique");
+		template = GatewayRequest.of(templateMap);
+	}
+
+	@Benchmark
+	public Gateway.PreparedRequest map() {
+		Map<String, String> request = new HashMap<String, String>(templateMap);
+		request.put("amount", "1001");
+		request.put("transactionUnique", "T1234567890");
+		return gateway.buildDirectRequest(request, options);
+	}
+
+	@Benchmark
+	public Gateway.PreparedRequest gatewayRequest() {
+		GatewayRequest request = template.toBuilder()
+				.set("amount", "1001")
+				.set("transactionUnique", "T1234567890")
+				.build();
+		return gateway.buildDirectRequest(request, options);
+	}
+}
@@ -0,0 +1,135 @@
+package com.paymentnetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Handling a Direct API response: decoding the form-encoded body and
+/// verifying its signature.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+	@Param({ "10", "50", "100", "500" })
+	public int fieldCount;
+
+	@Param({ "16", "1024" })
+	public int valueLength;
+
+	@Param({ "false", "true" })
+	public boolean unicode;
+
+	private Gateway gateway;
+	private Map<String, String> response;
+	private Map<String, String> partialResponse;
+	private String body;
+	private byte[] bodyBytes;
+
+	@Setup
+	public void setUp() {
+		gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		response = BenchmarkData.response(fieldCount, valueLength, unicode);
+
+		partialResponse = new LinkedHashMap<String, String>(response);
+		partialResponse.remove("signature");
+		partialResponse.put("signature", gateway.sign(BenchmarkData.fields(partialResponse), BenchmarkData.SECRET,
+				Arrays.asList("responseCode", "threeDSRequest")));
+		body = URLEncodedUtils.format(BenchmarkData.fields(response), StandardCharsets.UTF_8);
+		bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/// <summary>
+	/// The original response path: read the body into a String, parse it
+	/// with URLEncodedUtils and copy the fields into a map.
+	/// </summary>
+	@Benchmark
+	public Map<String, String> legacyParse() throws IOException {
+		String text = IOUtils.toString(new ByteArrayInputStream(bodyBytes), StandardCharsets.UTF_8.name());
+		List<NameValuePair> fields = URLEncodedUtils.parse(text, StandardCharsets.UTF_8);
+		var map = new HashMap<String, String>();
+		fields.forEach((f) -> map.put(f.getName(), f.getValue()));
+		return map;
+	}
+
+	/// <summary>
+	/// FormDecoder alone, streaming the body into a map.
+	/// </summary>
+	@Benchmark
+	public Map<String, String> parse() throws IOException {
+		var map = new LinkedHashMap<String, String>();
+		FormDecoder.decode(new ByteArrayInputStream(bodyBytes), map::put);
+		return map;
+	}
+
+	/// <summary>
+	/// The complete response path used by directRequest, including
+	/// signature verification.
+	/// </summary>
+	@Benchmark
+	public Map<String, String> parseAndVerify() throws IOException {
+		return gateway.parseDirectResponse(new ByteArrayInputStream(bodyBytes), BenchmarkData.SECRET);
+	}
+
+	/// <summary>
+	/// The same path decoding into a GatewayResponse, as used by
+	/// directResponse, then reading the response code.
+	/// </summary>
+	@Benchmark
+	public int parseAndVerifyView() throws IOException {
+		return gateway.parseDirectResponseView(new ByteArrayInputStream(bodyBytes), BenchmarkData.SECRET)
+				.getResponseCode();
+	}
+
+	/// <summary>
+	/// VerifyResponse alone. It removes the signature from the map it is
+	/// given, so each call verifies a fresh copy.
+	/// </summary>
+	@Benchmark
+	public boolean verify() {
+		return gateway.VerifyResponse(new LinkedHashMap<String, String>(response), BenchmarkData.SECRET);
+	}
+
+	/// <summary>
+	/// A partially signed response, covering the response code and the
+	/// threeDSRequest fields.
+	/// </summary>
+	@Benchmark
+	public boolean verifyPartial() {
+		return gateway.VerifyResponse(new LinkedHashMap<String, String>(partialResponse), BenchmarkData.SECRET);
+	}
+
+	/// <summary>
+	/// The original VerifyResponse, which only checked that a signature was
+	/// present, for the cost of full verification relative to it.
+	/// </summary>
+	@Benchmark
+	public boolean legacyVerify() {
+		return LegacySigning.verifyPresence(new LinkedHashMap<String, String>(response), BenchmarkData.SECRET);
+	}
+}
@@ -0,0 +1,57 @@
+package com.paymentnetwork;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Request signing, with the original TreeMap / String implementation for
+/// comparison. Run with -prof gc for the allocation rate per signature.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignBenchmark {
+	@Param({ "10", "50", "100", "500" })
+	public int fieldCount;
+
+	@Param({ "16", "256" })
+	public int valueLength;
+
+	@Param({ "false", "true" })
+	public boolean unicode;
+
+	private Gateway gateway;
+	private List<NameValuePair> fields;
+
+	@Setup
+	public void setUp() {
+		gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		fields = BenchmarkData.fields(BenchmarkData.request(fieldCount, valueLength, unicode));
+	}
+
+	@Benchmark
+	public String sign() {
+		return gateway.sign(fields, BenchmarkData.SECRET);
+	}
+
+	@Benchmark
+	public String legacySign() {
+		return LegacySigning.sign(fields, BenchmarkData.SECRET);
+	}
+}
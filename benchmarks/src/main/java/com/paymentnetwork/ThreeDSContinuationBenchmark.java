@@ -0,0 +1,63 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Preparing the request continuing a transaction after a 65802 response,
+/// either by copying the whole response map and sending it back, or from
+/// the state kept by ThreeDSContinuations.
+/// </summary>
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreeDSContinuationBenchmark {
+	@Param({ "10", "50", "100" })
+	public int fieldCount;
+
+	private Gateway gateway;
+	private Map<String, String> options;
+	private Map<String, String> response;
+	private Map<String, String> acsPost;
+	private ThreeDSContinuations continuations;
+
+	@Setup
+	public void setUp() {
+		gateway = new Gateway("100856", BenchmarkData.SECRET, null, null, null);
+		options = new HashMap<String, String>();
+		response = BenchmarkData.response(fieldCount, 16, false);
+		acsPost = new HashMap<String, String>();
+		acsPost.put("cres", BenchmarkData.value(256, false, 3));
+		continuations = new ThreeDSContinuations(100000, 30, TimeUnit.MINUTES);
+	}
+
+	@Benchmark
+	public Gateway.PreparedRequest map() {
+		Map<String, String> request = new HashMap<String, String>(response);
+		request.put("threeDSResponse[cres]", acsPost.get("cres"));
+		return gateway.buildDirectRequest(request, options);
+	}
+
+	@Benchmark
+	public Gateway.PreparedRequest continuation() {
+		continuations.put(response);
+		GatewayRequest request = continuations.continuation(response.get("transactionUnique"), acsPost);
+		return gateway.buildDirectRequest(request, options);
+	}
+}
@@ -0,0 +1,154 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hc.core5.util.Timeout;
+import org.reactivestreams.Publisher;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+
+/// <summary>
+/// Submit a stream of Direct API requests through a Gateway with bounded
+/// concurrency and backpressure.
+///
+/// Requests are pulled from the source only as fast as responses are
+/// consumed, so a batch never needs to be held in memory. At most
+/// getConcurrency() requests are in flight at once, sent with
+/// Gateway.directRequestAsync and therefore sharing its I/O threads.
+///
+/// Each request produces one BatchResult. A request that fails, whether
+/// because it is invalid, cannot be sent or its response fails
+/// verification, produces a failed BatchResult and the stream continues.
+///
+/// Results are emitted on the gateway's I/O threads; use observeOn to move
+/// any slow processing elsewhere.
+/// </summary>
+public class BatchRequester {
+	private final Gateway gateway;
+	private int concurrency = 16;
+	private boolean ordered = false;
+	private Timeout timeout;
+	private Map<String, String> options = new HashMap<String, String>();
+
+	public BatchRequester(Gateway gateway) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		this.gateway = gateway;
+	}
+
+	/// <summary>
+	/// Maximum number of requests in flight for each submitted batch.
+	/// </summary>
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public BatchRequester setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		}
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/// <summary>
+	/// When true, results are emitted in the order the requests were
+	/// submitted; a slow request then holds back up to getConcurrency()
+	/// completed results behind it. When false (the default) results are
+	/// emitted as soon as they complete and can be correlated using
+	/// getIndex() or getTransactionUnique().
+	/// </summary>
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public BatchRequester setOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/// <summary>
+	/// Deadline for each individual request, or null for none.
+	/// </summary>
+	public Timeout getTimeout() {
+		return timeout;
+	}
+
+	public BatchRequester setTimeout(Timeout timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/// <summary>
+	/// Options passed to directRequestAsync for every request.
+	/// </summary>
+	public BatchRequester setOptions(Map<String, String> options) {
+		this.options = options == null ? new HashMap<String, String>() : options;
+		return this;
+	}
+
+	/// <summary>
+	/// Create a Flowable which, when subscribed to, sends each request
+	/// emitted by requests and emits a BatchResult for each.
+	/// </summary>
+	public Flowable<BatchResult> submit(Publisher<? extends Map<String, String>> requests) {
+		final int concurrency = this.concurrency;
+		final boolean ordered = this.ordered;
+
+		return Flowable.defer(() -> {
+			// Per-subscription counter so each subscriber numbers from zero.
+			AtomicLong counter = new AtomicLong();
+
+			Flowable<IndexedRequest> source = Flowable.<Map<String, String>>fromPublisher(requests)
+					.map(request -> new IndexedRequest(counter.getAndIncrement(), request));
+
+			return ordered
+					? source.concatMapEager(r -> send(r).toFlowable(), concurrency, 1)
+					: source.flatMapSingle(this::send, false, concurrency);
+		});
+	}
+
+	/// <summary>
+	/// As submit(Publisher), reading requests lazily from an Iterable.
+	/// </summary>
+	public Flowable<BatchResult> submit(Iterable<? extends Map<String, String>> requests) {
+		return submit(Flowable.fromIterable(requests));
+	}
+
+	private Single<BatchResult> send(IndexedRequest indexed) {
+		final Map<String, String> options = this.options;
+		final Timeout timeout = this.timeout;
+
+		return Single.create(emitter -> {
+			String transactionUnique = indexed.request.get("transactionUnique");
+
+			CompletableFuture<Map<String, String>> future = gateway.directRequestAsync(indexed.request, options,
+					timeout);
+
+			emitter.setCancellable(() -> future.cancel(false));
+
+			future.whenComplete((response, error) -> {
+				if (error == null) {
+					emitter.onSuccess(new BatchResult(indexed.index, transactionUnique, response, null));
+				} else {
+					emitter.onSuccess(new BatchResult(indexed.index, transactionUnique, null, error));
+				}
+			});
+		});
+	}
+
+	private static class IndexedRequest {
+		final long index;
+		final Map<String, String> request;
+
+		IndexedRequest(long index, Map<String, String> request) {
+			this.index = index;
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+import junit.framework.TestCase;
+
+public class BatchRequesterTest extends TestCase {
+
+	private static List<Map<String, String>> createBatch(int size) {
+		var batch = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < size; i++) {
+			batch.add(GatewayUtils.getInitialForm());
+		}
+		return batch;
+	}
+
+	// Test that ordered batches emit results in submission order.
+	@Test
+	public void testOrderedBatch() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var batch = createBatch(40);
+			var uniques = new ArrayList<String>();
+			batch.forEach(r -> uniques.add(r.get("transactionUnique")));
+
+			List<BatchResult> results = new BatchRequester(gateway)
+					.setConcurrency(4)
+					.setOrdered(true)
+					.submit(batch)
+					.toList()
+					.blockingGet();
+
+			assertEquals(40, results.size());
+			for (int i = 0; i < results.size(); i++) {
+				var result = results.get(i);
+				assertTrue(result.isSuccess());
+				assertEquals(i, result.getIndex());
+				assertEquals(uniques.get(i), result.getTransactionUnique());
+				assertEquals(uniques.get(i), result.getResponse().get("transactionUnique"));
+			}
+			assertTrue(simulator.getMaxConcurrentRequests() <= 4);
+		}
+	}
+
+	// Test that a failed request is reported without ending the stream.
+	@Test
+	public void testFailedItemDoesNotStopBatch() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var batch = createBatch(10);
+			var invalid = new HashMap<String, String>();
+			invalid.put("transactionUnique", "no-action");
+			batch.add(5, invalid);
+
+			List<BatchResult> results = new BatchRequester(gateway)
+					.setConcurrency(3)
+					.submit(Flowable.fromIterable(batch))
+					.toList()
+					.blockingGet();
+
+			assertEquals(11, results.size());
+
+			int failures = 0;
+			for (BatchResult result : results) {
+				if (!result.isSuccess()) {
+					failures++;
+					assertEquals(5, result.getIndex());
+					assertEquals("no-action", result.getTransactionUnique());
+					assertTrue(result.getError() instanceof IllegalArgumentException);
+				}
+			}
+			assertEquals(1, failures);
+			assertEquals(10, simulator.getRequestCount());
+		}
+	}
+
+	// Test that requests are only pulled from the source as results are consumed.
+	@Test
+	public void testBackpressure() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var pulled = new AtomicInteger();
+			Flowable<Map<String, String>> source = Flowable.range(0, 100_000)
+					.map(i -> {
+						pulled.incrementAndGet();
+						return (Map<String, String>) GatewayUtils.getInitialForm();
+					});
+
+			var results = new BatchRequester(gateway)
+					.setConcurrency(2)
+					.submit(source)
+					.take(5)
+					.toList()
+					.blockingGet();
+
+			assertEquals(5, results.size());
+			assertTrue(pulled.get() < 100);
+		}
+	}
+}
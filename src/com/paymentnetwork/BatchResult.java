@@ -0,0 +1,61 @@
+package com.paymentnetwork;
+
+import java.util.Map;
+
+/// <summary>
+/// Outcome of one request submitted through a BatchRequester or
+/// GatewayExecutor.invokeAll.
+///
+/// Exactly one of getResponse() and getError() is non-null.
+/// </summary>
+public class BatchResult {
+	private final long index;
+	private final String transactionUnique;
+	private final Map<String, String> response;
+	private final Throwable error;
+
+	BatchResult(long index, String transactionUnique, Map<String, String> response, Throwable error) {
+		this.index = index;
+		this.transactionUnique = transactionUnique;
+		this.response = response;
+		this.error = error;
+	}
+
+	/// <summary>
+	/// Zero-based position of the request in the submitted stream.
+	/// </summary>
+	public long getIndex() {
+		return index;
+	}
+
+	/// <summary>
+	/// The transactionUnique of the request, or null if it had none.
+	/// </summary>
+	public String getTransactionUnique() {
+		return transactionUnique;
+	}
+
+	/// <summary>
+	/// The verified gateway response, or null if the request failed.
+	/// </summary>
+	public Map<String, String> getResponse() {
+		return response;
+	}
+
+	/// <summary>
+	/// Why the request failed, or null if a response was received.
+	/// </summary>
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult[" + index + ", " + transactionUnique + ", "
+				+ (error == null ? response : error) + "]";
+	}
+}
@@ -0,0 +1,300 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.core5.http.NameValuePair;
+
+/// <summary>
+/// Sends Direct API requests through a Gateway, answering repeated
+/// read-only requests (QUERY and VERIFY) without sending them again.
+///
+/// - Identical read-only requests in flight at the same time are sent to
+///   the Gateway once, and every caller receives the response.
+/// - Verified responses are kept for the ttl given, in a cache bounded by
+///   the approximate memory its responses take, the oldest being dropped
+///   first.
+/// - Every other action, such as SALE or REFUND, is always sent, and its
+///   response is never kept.
+///
+/// Requests are identical when their signatures are, since the signature
+/// is a hash of every field in canonical order, already computed by
+/// signing; merchants with different secrets never share responses.
+/// Requests sent without a secret aren't signed, and are always sent. A
+/// failure is passed to every caller waiting for the request, each
+/// receiving its own exception, but is never kept.
+///
+///     CachingGateway cached = new CachingGateway(gateway, 16 * 1024 * 1024, 5, TimeUnit.SECONDS);
+///     Map<String, String> response = cached.directRequest(query, null);
+///
+/// A CachingGateway can be shared by every thread sending requests. It
+/// does not own its Gateway, which must still be closed.
+/// </summary>
+public class CachingGateway {
+	/// Actions that only read, and so whose responses may be reused.
+	static final Set<String> CACHED_ACTIONS = Set.of("QUERY", "VERIFY");
+
+	// Approximate memory taken by a cache entry and by each of its fields,
+	// beyond their characters.
+	private static final int ENTRY_OVERHEAD = 200;
+	private static final int FIELD_OVERHEAD = 100;
+
+	private final Gateway gateway;
+	private final long maxBytes;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<String, CompletableFuture<Map<String, String>>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Map<String, String>>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	// Oldest first; guarded by this.
+	private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<String, Cached>();
+	private long bytes;
+
+	/// <summary>
+	/// Cache the responses to read-only requests sent through gateway, up to
+	/// about maxBytes of them, each for up to ttl.
+	/// </summary>
+	public CachingGateway(Gateway gateway, long maxBytes, long ttl, TimeUnit unit) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be at least 1");
+		}
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be greater than 0");
+		}
+		this.gateway = gateway;
+		this.maxBytes = maxBytes;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	/// <summary>
+	/// Send request as Gateway.directRequest does, answering it from the
+	/// cache, or from an identical request in flight, if it is read-only.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public Map<String, String> directRequest(Map<String, String> request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return send(gateway.buildDirectRequest(request, options));
+	}
+
+	/// <summary>
+	/// As directRequest(Map, Map), for a GatewayRequest.
+	/// </summary>
+	public Map<String, String> directRequest(GatewayRequest request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return send(gateway.buildDirectRequest(request, options));
+	}
+
+	/// <summary>
+	/// Drop every cached response.
+	/// </summary>
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/// <summary>
+	/// Number of responses cached, including any that have expired but not
+	/// yet been dropped.
+	/// </summary>
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/// <summary>
+	/// Approximate memory taken by the cached responses.
+	/// </summary>
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/// <summary>
+	/// Read-only requests answered from the cache.
+	/// </summary>
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/// <summary>
+	/// Read-only requests sent to the Gateway.
+	/// </summary>
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/// <summary>
+	/// Read-only requests answered by waiting for an identical request in
+	/// flight.
+	/// </summary>
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	private Map<String, String> send(Gateway.PreparedRequest request) throws IOException {
+		if (!CACHED_ACTIONS.contains(request.action)) {
+			return gateway.sendDirectRequest(request, null);
+		}
+
+		String key = key(request);
+		if (key == null) {
+			return gateway.sendDirectRequest(request, null);
+		}
+		Map<String, String> cached = get(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return new LinkedHashMap<String, String>(cached);
+		}
+
+		CompletableFuture<Map<String, String>> outcome = new CompletableFuture<Map<String, String>>();
+		CompletableFuture<Map<String, String>> existing = inFlight.putIfAbsent(key, outcome);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return new LinkedHashMap<String, String>(await(existing));
+		}
+
+		try {
+			// Another caller may have cached the response since it was looked up.
+			cached = get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				Map<String, String> rtn = gateway.sendDirectRequest(request, null);
+				cached = new LinkedHashMap<String, String>(rtn);
+				put(key, cached);
+			}
+			outcome.complete(cached);
+			return new LinkedHashMap<String, String>(cached);
+		} catch (IOException | RuntimeException e) {
+			outcome.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, outcome);
+		}
+	}
+
+	/// <summary>
+	/// The request's URL and signature, which together identify its fields
+	/// and merchant, or null if it isn't signed.
+	/// </summary>
+	private static String key(Gateway.PreparedRequest request) {
+		for (int i = request.fields.size() - 1; i >= 0; i--) {
+			NameValuePair field = request.fields.get(i);
+			if (field.getName().equals("signature")) {
+				return request.directUrl + ' ' + field.getValue();
+			}
+		}
+		return null;
+	}
+
+	private synchronized Map<String, String> get(String key) {
+		expire(System.nanoTime());
+		Cached cached = entries.get(key);
+		return cached == null ? null : cached.response;
+	}
+
+	private synchronized void put(String key, Map<String, String> response) {
+		long size = size(key, response);
+		if (size > maxBytes) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		expire(now);
+		Cached previous = entries.remove(key);
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		entries.put(key, new Cached(response, now, size));
+		bytes += size;
+
+		Iterator<Cached> oldest = entries.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= oldest.next().size;
+			oldest.remove();
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Cached> oldest = entries.values().iterator();
+		while (oldest.hasNext()) {
+			Cached cached = oldest.next();
+			if (now - cached.created <= ttlNanos) {
+				break;
+			}
+			bytes -= cached.size;
+			oldest.remove();
+		}
+	}
+
+	private static long size(String key, Map<String, String> response) {
+		long size = ENTRY_OVERHEAD + 2L * key.length();
+		for (Map.Entry<String, String> field : response.entrySet()) {
+			String value = field.getValue();
+			size += FIELD_OVERHEAD + 2L * (field.getKey().length() + (value == null ? 0 : value.length()));
+		}
+		return size;
+	}
+
+	/// <summary>
+	/// Wait for an identical request sent by another caller. Its failure is
+	/// thrown as a new exception of the same kind, caused by it, so callers
+	/// don't share an exception.
+	/// </summary>
+	private static Map<String, String> await(CompletableFuture<Map<String, String>> outcome) throws IOException {
+		try {
+			return outcome.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the same request");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				IOException copy;
+				if (cause instanceof SocketTimeoutException) {
+					copy = new SocketTimeoutException(cause.getMessage());
+				} else if (cause instanceof HttpResponseException) {
+					HttpResponseException http = (HttpResponseException) cause;
+					copy = new HttpResponseException(http.getStatusCode(), http.getReasonPhrase());
+				} else {
+					copy = new IOException(cause.getMessage());
+				}
+				copy.initCause(cause);
+				throw copy;
+			} else if (cause instanceof IllegalArgumentException) {
+				throw new IllegalArgumentException(cause.getMessage(), cause);
+			} else if (cause instanceof RuntimeException) {
+				throw new RuntimeException(cause.getMessage(), cause);
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static final class Cached {
+		final Map<String, String> response;
+		final long created;
+		final long size;
+
+		Cached(Map<String, String> response, long created, long size) {
+			this.response = response;
+			this.created = created;
+			this.size = size;
+		}
+	}
+}
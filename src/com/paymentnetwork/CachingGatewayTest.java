@@ -0,0 +1,197 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class CachingGatewayTest extends TestCase {
+
+	private static Map<String, String> query(String transactionUnique) {
+		var request = GatewayUtils.getInitialForm();
+		request.put("action", "QUERY");
+		request.put("transactionUnique", transactionUnique);
+		return request;
+	}
+
+	// Test that a repeated QUERY is answered from the cache, with a copy the
+	// caller may modify.
+	@Test
+	public void testCachesQuery() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+			var first = cached.directRequest(query("INV1"), null);
+			first.put("responseCode", "changed");
+			var second = cached.directRequest(GatewayRequest.of(query("INV1")), null);
+
+			assertEquals(1, simulator.getRequestCount());
+			assertEquals("0", second.get("responseCode"));
+			assertEquals("INV1", second.get("transactionUnique"));
+			assertEquals(1, cached.getHitCount());
+			assertEquals(1, cached.getMissCount());
+
+			cached.directRequest(query("INV2"), null);
+			assertEquals(2, simulator.getRequestCount());
+			assertEquals(2, cached.size());
+		}
+	}
+
+	// Test that state-changing actions are always sent.
+	@Test
+	public void testNeverCachesSale() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+			var sale = GatewayUtils.getInitialForm();
+			cached.directRequest(GatewayRequest.of(sale), null);
+			cached.directRequest(GatewayRequest.of(sale), null);
+
+			assertEquals(2, simulator.getRequestCount());
+			assertEquals(0, cached.size());
+			assertEquals(0, cached.getHitCount() + cached.getMissCount());
+		}
+	}
+
+	// Test that identical queries in flight together are sent once.
+	@Test
+	public void testCoalescesConcurrentQueries() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(300).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+			var request = GatewayRequest.of(query("INV1"));
+
+			List<CompletableFuture<Map<String, String>>> responses = new ArrayList<CompletableFuture<Map<String, String>>>();
+			for (int n = 0; n < 8; n++) {
+				responses.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return cached.directRequest(request, null);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}, runnable -> new Thread(runnable).start()));
+			}
+			for (var response : responses) {
+				assertEquals("0", response.get().get("responseCode"));
+			}
+
+			assertEquals(1, simulator.getRequestCount());
+			assertEquals(1, cached.getMissCount());
+			assertEquals(7, cached.getCoalescedCount() + cached.getHitCount());
+		}
+	}
+
+	// Test that responses expire, and that the oldest are dropped to keep
+	// within maxBytes.
+	@Test
+	public void testExpiresAndEvicts() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var expiring = new CachingGateway(gateway, 1024 * 1024, 100, TimeUnit.MILLISECONDS);
+			expiring.directRequest(query("INV1"), null);
+			Thread.sleep(150);
+			expiring.directRequest(query("INV1"), null);
+			assertEquals(2, simulator.getRequestCount());
+
+			long oneEntry = expiring.getBytes();
+			var small = new CachingGateway(gateway, oneEntry * 3 / 2, 1, TimeUnit.MINUTES);
+			small.directRequest(query("INV1"), null);
+			assertEquals(oneEntry, small.getBytes());
+			small.directRequest(query("INV2"), null);
+			assertEquals(1, small.size());
+			assertTrue(small.getBytes() <= oneEntry * 3 / 2);
+
+			small.directRequest(query("INV1"), null);
+			assertEquals(5, simulator.getRequestCount());
+			assertEquals(oneEntry, small.getBytes());
+		}
+	}
+
+	// Test that requests sent without a secret, which aren't signed, are
+	// sent as they would be without the cache.
+	@Test
+	public void testSendsUnsignedQuery() throws Exception {
+		try (var simulator = new GatewaySimulator(null).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+			for (int n = 0; n < 2; n++) {
+				var request = query("INV1");
+				request.put("merchantSecret", null);
+				assertEquals("0", cached.directRequest(request, null).get("responseCode"));
+			}
+
+			assertEquals(2, simulator.getRequestCount());
+			assertEquals(0, cached.size());
+		}
+	}
+
+	// Test that each caller waiting for a request that fails receives its
+	// own exception.
+	@Test
+	public void testCoalescedFailuresAreDistinct() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(300)
+				.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 1).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+			var request = GatewayRequest.of(query("INV1"));
+
+			List<CompletableFuture<Throwable>> failures = new ArrayList<CompletableFuture<Throwable>>();
+			for (int n = 0; n < 4; n++) {
+				failures.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						cached.directRequest(request, null);
+						return null;
+					} catch (Exception e) {
+						return e;
+					}
+				}, runnable -> new Thread(runnable).start()));
+			}
+
+			Set<Throwable> distinct = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+			for (var failure : failures) {
+				Throwable e = failure.get();
+				assertTrue(String.valueOf(e), e instanceof HttpResponseException);
+				assertEquals(503, ((HttpResponseException) e).getStatusCode());
+				distinct.add(e);
+			}
+			assertEquals(4, distinct.size());
+			assertEquals(1, simulator.getRequestCount());
+		}
+	}
+
+	// Test that failures are not cached.
+	@Test
+	public void testDoesNotCacheFailures() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea")
+				.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 1).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var cached = new CachingGateway(gateway, 1024 * 1024, 1, TimeUnit.MINUTES);
+
+			try {
+				cached.directRequest(query("INV1"), null);
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected
+			}
+
+			simulator.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 0);
+			assertEquals("0", cached.directRequest(query("INV1"), null).get("responseCode"));
+			assertEquals(2, simulator.getRequestCount());
+			assertEquals(1, cached.size());
+		}
+	}
+}
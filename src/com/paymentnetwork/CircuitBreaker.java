@@ -0,0 +1,158 @@
+package com.paymentnetwork;
+
+import java.util.concurrent.TimeUnit;
+
+/// <summary>
+/// Stops requests to a Gateway that is failing or too slow, so that callers
+/// fail at once instead of waiting on it, and lets a few through now and
+/// then to find out when it has recovered.
+///
+/// The outcomes of the last windowSize requests are kept in a ring. When
+/// enough of them failed, or were slow, the circuit opens and refuses
+/// requests for openDuration. It then half-opens, letting halfOpenCalls
+/// requests through: the circuit closes if they all succeed, and opens
+/// again as soon as one fails.
+///
+/// The breaker is guarded by its own lock, which is held only to update a
+/// few counters.
+/// </summary>
+final class CircuitBreaker {
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+
+	private final int minimumCalls;
+	private final double failureRateThreshold;
+	private final long slowCallNanos;
+	private final double slowCallRateThreshold;
+	private final long openNanos;
+	private final int halfOpenCalls;
+
+	private final byte[] outcomes;
+	private int next;
+	private int count;
+	private int failures;
+	private int slowCalls;
+
+	private ResilientGateway.CircuitState state = ResilientGateway.CircuitState.CLOSED;
+	private long openedAt;
+	private int halfOpenPermits;
+	private int halfOpenSuccesses;
+
+	CircuitBreaker(ResilienceConfig config) {
+		this.outcomes = new byte[config.getWindowSize()];
+		this.minimumCalls = config.getMinimumCalls();
+		this.failureRateThreshold = config.getFailureRateThreshold();
+		this.slowCallNanos = config.getSlowCallDuration() == null ? 0
+				: config.getSlowCallDuration().toNanoseconds();
+		this.slowCallRateThreshold = config.getSlowCallRateThreshold();
+		this.openNanos = config.getOpenDuration().toNanoseconds();
+		this.halfOpenCalls = config.getHalfOpenCalls();
+	}
+
+	/// <summary>
+	/// Whether a request may be sent now. Every permitted request must be
+	/// followed by onSuccess or onFailure.
+	/// </summary>
+	synchronized boolean tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.nanoTime() - openedAt < openNanos) {
+				return false;
+			}
+			state = ResilientGateway.CircuitState.HALF_OPEN;
+			halfOpenPermits = halfOpenCalls;
+			halfOpenSuccesses = 0;
+			return tryAcquireHalfOpen();
+		default:
+			return tryAcquireHalfOpen();
+		}
+	}
+
+	/// <summary>
+	/// Take one of the trial requests allowed while half open.
+	/// </summary>
+	private boolean tryAcquireHalfOpen() {
+		if (halfOpenPermits == 0) {
+			return false;
+		}
+		halfOpenPermits--;
+		return true;
+	}
+
+	/// <summary>
+	/// Time until an open circuit lets requests through again, in
+	/// milliseconds.
+	/// </summary>
+	synchronized long getRetryAfterMillis() {
+		return state != ResilientGateway.CircuitState.OPEN ? 0
+				: Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAt)));
+	}
+
+	synchronized void onSuccess(long nanos) {
+		boolean slow = slowCallNanos > 0 && nanos > slowCallNanos;
+		if (state == ResilientGateway.CircuitState.HALF_OPEN) {
+			if (slow) {
+				open();
+			} else if (++halfOpenSuccesses == halfOpenCalls) {
+				close();
+			}
+			return;
+		}
+		record(slow ? SLOW : 0);
+	}
+
+	synchronized void onFailure(long nanos) {
+		if (state == ResilientGateway.CircuitState.HALF_OPEN) {
+			open();
+			return;
+		}
+		record((byte) (FAILED | (slowCallNanos > 0 && nanos > slowCallNanos ? SLOW : 0)));
+	}
+
+	synchronized ResilientGateway.CircuitState getState() {
+		if (state == ResilientGateway.CircuitState.OPEN && System.nanoTime() - openedAt >= openNanos) {
+			return ResilientGateway.CircuitState.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/// <summary>
+	/// Add an outcome to the window, replacing the oldest, and open the
+	/// circuit if a threshold has been crossed. Outcomes arriving while the
+	/// circuit is open are from requests sent before it opened.
+	/// </summary>
+	private void record(byte outcome) {
+		if (count == outcomes.length) {
+			byte oldest = outcomes[next];
+			failures -= oldest & FAILED;
+			slowCalls -= (oldest & SLOW) >> 1;
+		} else {
+			count++;
+		}
+		outcomes[next] = outcome;
+		next = (next + 1) % outcomes.length;
+		failures += outcome & FAILED;
+		slowCalls += (outcome & SLOW) >> 1;
+
+		if (state == ResilientGateway.CircuitState.CLOSED && count >= minimumCalls
+				&& (failures >= failureRateThreshold * count
+						|| (slowCallNanos > 0 && slowCalls >= slowCallRateThreshold * count))) {
+			open();
+		}
+	}
+
+	private void open() {
+		state = ResilientGateway.CircuitState.OPEN;
+		openedAt = System.nanoTime();
+	}
+
+	private void close() {
+		state = ResilientGateway.CircuitState.CLOSED;
+		next = 0;
+		count = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+}
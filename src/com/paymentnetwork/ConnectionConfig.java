@@ -0,0 +1,221 @@
+package com.paymentnetwork;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/// <summary>
+/// Settings for the pooled HTTP client shared by all requests made through
+/// a Gateway instance.
+///
+/// The defaults are suitable for most integrations; every setter returns
+/// this object so settings can be chained when constructing the Gateway.
+/// </summary>
+public class ConnectionConfig {
+	private int maxConnTotal = 50;
+	private int maxConnPerRoute = 20;
+	private Timeout connectTimeout = Timeout.ofSeconds(10);
+	private Timeout responseTimeout = Timeout.ofSeconds(60);
+	private Timeout connectionRequestTimeout = Timeout.ofSeconds(10);
+	private TimeValue keepAlive = TimeValue.ofSeconds(30);
+	private TimeValue maxIdleTime = TimeValue.ofSeconds(30);
+	private TimeValue validateAfterInactivity = TimeValue.ofSeconds(2);
+	private int maxConcurrentRequests = 1000;
+	private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+	private boolean http2Enabled = true;
+	private GatewayMetrics metrics = GatewayMetrics.NONE;
+	private RequestJournal journal;
+	private DirectEndpoints directEndpoints;
+
+	/// <summary>
+	/// Maximum number of connections held open across all routes.
+	/// </summary>
+	public int getMaxConnTotal() {
+		return maxConnTotal;
+	}
+
+	public ConnectionConfig setMaxConnTotal(int maxConnTotal) {
+		if (maxConnTotal < 1) {
+			throw new IllegalArgumentException("maxConnTotal must be at least 1");
+		}
+		this.maxConnTotal = maxConnTotal;
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of connections held open to a single gateway endpoint.
+	/// </summary>
+	public int getMaxConnPerRoute() {
+		return maxConnPerRoute;
+	}
+
+	public ConnectionConfig setMaxConnPerRoute(int maxConnPerRoute) {
+		if (maxConnPerRoute < 1) {
+			throw new IllegalArgumentException("maxConnPerRoute must be at least 1");
+		}
+		this.maxConnPerRoute = maxConnPerRoute;
+		return this;
+	}
+
+	/// <summary>
+	/// Time allowed to establish a TCP connection (and TLS session).
+	/// </summary>
+	public Timeout getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public ConnectionConfig setConnectTimeout(long duration, TimeUnit unit) {
+		this.connectTimeout = Timeout.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Time allowed between sending the request and receiving response data.
+	/// </summary>
+	public Timeout getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	public ConnectionConfig setResponseTimeout(long duration, TimeUnit unit) {
+		this.responseTimeout = Timeout.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Time allowed to wait for a free connection when the pool is exhausted.
+	/// </summary>
+	public Timeout getConnectionRequestTimeout() {
+		return connectionRequestTimeout;
+	}
+
+	public ConnectionConfig setConnectionRequestTimeout(long duration, TimeUnit unit) {
+		this.connectionRequestTimeout = Timeout.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// How long a connection is kept alive when the gateway does not send a
+	/// Keep-Alive header.
+	/// </summary>
+	public TimeValue getKeepAlive() {
+		return keepAlive;
+	}
+
+	public ConnectionConfig setKeepAlive(long duration, TimeUnit unit) {
+		this.keepAlive = TimeValue.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Idle connections older than this are closed by a background evictor.
+	/// </summary>
+	public TimeValue getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public ConnectionConfig setMaxIdleTime(long duration, TimeUnit unit) {
+		this.maxIdleTime = TimeValue.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Pooled connections idle for longer than this are checked for staleness
+	/// before being reused.
+	/// </summary>
+	public TimeValue getValidateAfterInactivity() {
+		return validateAfterInactivity;
+	}
+
+	public ConnectionConfig setValidateAfterInactivity(long duration, TimeUnit unit) {
+		this.validateAfterInactivity = TimeValue.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of directRequestAsync requests in flight at once.
+	/// Further requests wait in a queue until a slot is free.
+	/// </summary>
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	public ConnectionConfig setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		return this;
+	}
+
+	/// <summary>
+	/// Number of I/O threads used by directRequestAsync.
+	/// </summary>
+	public int getIoThreadCount() {
+		return ioThreadCount;
+	}
+
+	public ConnectionConfig setIoThreadCount(int ioThreadCount) {
+		if (ioThreadCount < 1) {
+			throw new IllegalArgumentException("ioThreadCount must be at least 1");
+		}
+		this.ioThreadCount = ioThreadCount;
+		return this;
+	}
+
+	/// <summary>
+	/// Whether directRequestAsync negotiates HTTP/2 with TLS endpoints that
+	/// support it. When disabled all requests use HTTP/1.1.
+	/// </summary>
+	public boolean isHttp2Enabled() {
+		return http2Enabled;
+	}
+
+	public ConnectionConfig setHttp2Enabled(boolean http2Enabled) {
+		this.http2Enabled = http2Enabled;
+		return this;
+	}
+
+	/// <summary>
+	/// Where Direct API requests report their timings, outcomes and
+	/// connection pool state. Defaults to GatewayMetrics.NONE, which costs
+	/// nothing.
+	/// </summary>
+	public GatewayMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ConnectionConfig setMetrics(GatewayMetrics metrics) {
+		this.metrics = metrics == null ? GatewayMetrics.NONE : metrics;
+		return this;
+	}
+
+	/// <summary>
+	/// Where Direct API requests are journaled before they are sent, with
+	/// their outcomes, so that those in flight when the process stopped can
+	/// be reconciled. Defaults to null, journaling nothing.
+	/// </summary>
+	public RequestJournal getJournal() {
+		return journal;
+	}
+
+	public ConnectionConfig setJournal(RequestJournal journal) {
+		this.journal = journal;
+		return this;
+	}
+
+	/// <summary>
+	/// Endpoints between which Direct API requests addressed to the first of
+	/// them are routed, or null to send every request to the URL it is
+	/// addressed to. Gateways created with a null directUrl use the first
+	/// endpoint's.
+	/// </summary>
+	public DirectEndpoints getDirectEndpoints() {
+		return directEndpoints;
+	}
+
+	public ConnectionConfig setDirectEndpoints(DirectEndpoints directEndpoints) {
+		this.directEndpoints = directEndpoints;
+		return this;
+	}
+}
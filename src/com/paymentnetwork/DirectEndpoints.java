@@ -0,0 +1,301 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/// <summary>
+/// Several Direct API endpoints able to take the same requests, for example
+/// regional or secondary hosts, between which requests are routed by how
+/// well each is performing.
+///
+/// Set on a Gateway's ConnectionConfig, requests addressed to the first
+/// endpoint's URL (the Gateway's directUrl, which defaults to it) are sent
+/// to the best endpoint at the time:
+///
+///     DirectEndpoints endpoints = new DirectEndpoints(
+///         "https://eu.gateway.example.com/direct/", "https://us.gateway.example.com/direct/");
+///     Gateway gateway = new Gateway(merchantID, secret, null, hostedUrl, null,
+///         new ConnectionConfig().setDirectEndpoints(endpoints));
+///
+/// - Each endpoint keeps exponentially weighted moving averages of its
+///   response time and error rate. Requests go to the healthy endpoint
+///   with the lowest average response time, or, while no endpoint is
+///   healthy, to the one with the lowest error rate. An endpoint is healthy
+///   while its error rate is below getMaxErrorRate().
+/// - A small share of requests, getProbeShare(), is sent instead to the
+///   endpoint used least recently, so that the averages of slower or
+///   failing endpoints follow their recovery.
+/// - A request that could not connect to an endpoint, and so never reached
+///   it, is sent to the next best endpoint while its deadline allows. A
+///   request that may have reached an endpoint is never sent to another.
+///   Asynchronous requests are routed but not failed over.
+///
+/// The Gateway signs a request once, whichever endpoint it is sent to.
+/// A DirectEndpoints may be shared by several Gateways, which then share
+/// its view of each endpoint's health.
+/// </summary>
+public class DirectEndpoints {
+	private final Endpoint[] endpoints;
+	private volatile double probeShare = 0.05;
+	private volatile double maxErrorRate = 0.5;
+	private volatile double weight = 0.2;
+
+	/// <summary>
+	/// Route between urls, the first being preferred while they perform
+	/// equally.
+	/// </summary>
+	public DirectEndpoints(String... urls) {
+		this(urls == null ? null : List.of(urls));
+	}
+
+	public DirectEndpoints(List<String> urls) {
+		if (urls == null || urls.isEmpty()) {
+			throw new IllegalArgumentException("At least one URL must be provided.");
+		}
+		endpoints = new Endpoint[urls.size()];
+		for (int i = 0; i < endpoints.length; i++) {
+			if (urls.get(i) == null) {
+				throw new NullPointerException("URL must be provided.");
+			}
+			endpoints[i] = new Endpoint(urls.get(i));
+		}
+	}
+
+	/// <summary>
+	/// The first endpoint's URL. Requests addressed to it are routed.
+	/// </summary>
+	public String getPrimaryUrl() {
+		return endpoints[0].url;
+	}
+
+	public int size() {
+		return endpoints.length;
+	}
+
+	/// <summary>
+	/// Share of requests, from 0 to 1, sent to the endpoint used least
+	/// recently rather than the best. Defaults to 0.05.
+	/// </summary>
+	public double getProbeShare() {
+		return probeShare;
+	}
+
+	public DirectEndpoints setProbeShare(double probeShare) {
+		if (probeShare < 0 || probeShare > 1) {
+			throw new IllegalArgumentException("probeShare must be between 0 and 1");
+		}
+		this.probeShare = probeShare;
+		return this;
+	}
+
+	/// <summary>
+	/// Average error rate, from 0 to 1, at or above which an endpoint is
+	/// unhealthy and only receives probes. Defaults to 0.5.
+	/// </summary>
+	public double getMaxErrorRate() {
+		return maxErrorRate;
+	}
+
+	public DirectEndpoints setMaxErrorRate(double maxErrorRate) {
+		if (maxErrorRate <= 0 || maxErrorRate > 1) {
+			throw new IllegalArgumentException("maxErrorRate must be greater than 0 and at most 1");
+		}
+		this.maxErrorRate = maxErrorRate;
+		return this;
+	}
+
+	/// <summary>
+	/// Weight, from 0 to 1, of each new request in an endpoint's averages.
+	/// Higher weights follow changes sooner and noise more. Defaults to 0.2.
+	/// An endpoint's first requests are weighted equally, so a new endpoint's
+	/// averages start from what is measured rather than from zero.
+	/// </summary>
+	public double getWeight() {
+		return weight;
+	}
+
+	public DirectEndpoints setWeight(double weight) {
+		if (weight <= 0 || weight > 1) {
+			throw new IllegalArgumentException("weight must be greater than 0 and at most 1");
+		}
+		this.weight = weight;
+		return this;
+	}
+
+	/// <summary>
+	/// Each endpoint's averages and counts, in the order given.
+	/// </summary>
+	public List<Stats> getStats() {
+		List<Stats> stats = new ArrayList<Stats>(endpoints.length);
+		for (Endpoint endpoint : endpoints) {
+			stats.add(endpoint.stats(maxErrorRate));
+		}
+		return stats;
+	}
+
+	/// <summary>
+	/// Choose the endpoint for a request, other than those in tried, or null
+	/// if every endpoint has been tried. The caller must record the outcome.
+	/// </summary>
+	Endpoint select(List<Endpoint> tried) {
+		double threshold = maxErrorRate;
+		boolean probe = endpoints.length > 1 && ThreadLocalRandom.current().nextDouble() < probeShare;
+
+		Endpoint chosen = null;
+		for (Endpoint endpoint : endpoints) {
+			if (tried != null && tried.contains(endpoint)) {
+				continue;
+			}
+			if (chosen == null) {
+				chosen = endpoint;
+			} else if (probe ? endpoint.lastSelected < chosen.lastSelected : endpoint.isBetter(chosen, threshold)) {
+				chosen = endpoint;
+			}
+		}
+
+		if (chosen != null) {
+			chosen.lastSelected = System.nanoTime();
+			chosen.begin();
+		}
+		return chosen;
+	}
+
+	/// <summary>
+	/// Record that a request sent to endpoint was answered after nanos.
+	/// </summary>
+	void recordSuccess(Endpoint endpoint, long nanos) {
+		endpoint.end(nanos, false, weight);
+	}
+
+	/// <summary>
+	/// Record that a request sent to endpoint failed after nanos.
+	/// </summary>
+	void recordFailure(Endpoint endpoint, long nanos) {
+		endpoint.end(nanos, true, weight);
+	}
+
+	/// <summary>
+	/// One endpoint and its averages.
+	/// </summary>
+	static final class Endpoint {
+		final String url;
+		// Nanoseconds; 0 until the first request has ended.
+		private volatile double latency;
+		private volatile double errorRate;
+		private volatile long lastSelected = Long.MIN_VALUE;
+		private long requestCount;
+		private long failureCount;
+		private int activeRequests;
+
+		Endpoint(String url) {
+			this.url = url;
+		}
+
+		/// <summary>
+		/// Whether this endpoint should take a request before other.
+		/// </summary>
+		boolean isBetter(Endpoint other, double maxErrorRate) {
+			boolean healthy = errorRate < maxErrorRate;
+			boolean otherHealthy = other.errorRate < maxErrorRate;
+			if (healthy != otherHealthy) {
+				return healthy;
+			}
+			return healthy ? latency < other.latency : errorRate < other.errorRate;
+		}
+
+		synchronized void begin() {
+			activeRequests++;
+		}
+
+		synchronized void end(long nanos, boolean failed, double weight) {
+			activeRequests--;
+			requestCount++;
+			if (failed) {
+				failureCount++;
+			}
+
+			double w = Math.max(weight, 1.0 / requestCount);
+			errorRate += w * ((failed ? 1 : 0) - errorRate);
+			double averaged = latency + w * (nanos - latency);
+			// A failure, often a timeout, never makes an endpoint look faster.
+			latency = failed ? Math.max(latency, averaged) : averaged;
+		}
+
+		synchronized Stats stats(double maxErrorRate) {
+			return new Stats(url, latency / TimeUnit.MILLISECONDS.toNanos(1), errorRate, errorRate < maxErrorRate,
+					requestCount, failureCount, activeRequests);
+		}
+	}
+
+	/// <summary>
+	/// A snapshot of one endpoint's averages and counts.
+	/// </summary>
+	public static final class Stats {
+		private final String url;
+		private final double latencyMillis;
+		private final double errorRate;
+		private final boolean healthy;
+		private final long requestCount;
+		private final long failureCount;
+		private final int activeRequests;
+
+		Stats(String url, double latencyMillis, double errorRate, boolean healthy, long requestCount,
+				long failureCount, int activeRequests) {
+			this.url = url;
+			this.latencyMillis = latencyMillis;
+			this.errorRate = errorRate;
+			this.healthy = healthy;
+			this.requestCount = requestCount;
+			this.failureCount = failureCount;
+			this.activeRequests = activeRequests;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/// <summary>
+		/// Average response time, in milliseconds.
+		/// </summary>
+		public double getLatencyMillis() {
+			return latencyMillis;
+		}
+
+		/// <summary>
+		/// Average share of requests failed, from 0 to 1.
+		/// </summary>
+		public double getErrorRate() {
+			return errorRate;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/// <summary>
+		/// Requests sent to the endpoint that have ended.
+		/// </summary>
+		public long getRequestCount() {
+			return requestCount;
+		}
+
+		public long getFailureCount() {
+			return failureCount;
+		}
+
+		/// <summary>
+		/// Requests sent to the endpoint and not yet ended.
+		/// </summary>
+		public int getActiveRequests() {
+			return activeRequests;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s latency=%.1fms errorRate=%.2f healthy=%s requests=%d failures=%d active=%d", url,
+					latencyMillis, errorRate, healthy, requestCount, failureCount, activeRequests);
+		}
+	}
+}
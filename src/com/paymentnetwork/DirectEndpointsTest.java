@@ -0,0 +1,156 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class DirectEndpointsTest extends TestCase {
+
+	private static String closedUrl() throws IOException {
+		try (var socket = new ServerSocket(0)) {
+			return "http://127.0.0.1:" + socket.getLocalPort() + "/direct/";
+		}
+	}
+
+	// Test that requests follow the fastest endpoint, even when it isn't
+	// the first, while the slower one is still probed.
+	@Test
+	public void testRoutesToFastestEndpoint() throws Exception {
+		try (var slow = new GatewaySimulator("Circle4Take40Idea").setLatency(150).start();
+				var fast = new GatewaySimulator("Circle4Take40Idea").setLatency(5).start()) {
+			var endpoints = new DirectEndpoints(slow.getDirectUrl(), fast.getDirectUrl()).setProbeShare(0.1);
+
+			try (var gateway = new Gateway("100856", "Circle4Take40Idea", null, null, null,
+					new ConnectionConfig().setDirectEndpoints(endpoints))) {
+				long[] latencies = new long[60];
+				for (int n = 0; n < latencies.length; n++) {
+					long start = System.nanoTime();
+					var response = gateway.directRequest(GatewayUtils.getInitialForm(), null);
+					latencies[n] = System.nanoTime() - start;
+					assertEquals("0", response.get("responseCode"));
+				}
+
+				assertTrue(fast.getRequestCount() >= 45);
+				assertTrue(slow.getRequestCount() >= 1);
+
+				// Apart from probes, requests after the first few are fast.
+				long[] settled = Arrays.copyOfRange(latencies, 10, latencies.length);
+				Arrays.sort(settled);
+				assertTrue(settled[settled.length * 3 / 4] < 100_000_000L);
+
+				var stats = endpoints.getStats();
+				assertEquals(slow.getDirectUrl(), stats.get(0).getUrl());
+				assertTrue(stats.get(0).getLatencyMillis() > stats.get(1).getLatencyMillis());
+				assertEquals(60, stats.get(0).getRequestCount() + stats.get(1).getRequestCount());
+				assertTrue(stats.get(1).isHealthy());
+			}
+		}
+	}
+
+	// Test that requests that can't connect are sent to the next endpoint,
+	// and that the endpoint is then avoided.
+	@Test
+	public void testFailsOverConnectionFailures() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start()) {
+			var endpoints = new DirectEndpoints(closedUrl(), simulator.getDirectUrl()).setProbeShare(0);
+
+			try (var gateway = new Gateway("100856", "Circle4Take40Idea", null, null, null,
+					new ConnectionConfig().setDirectEndpoints(endpoints))) {
+				for (int n = 0; n < 20; n++) {
+					assertEquals("0", gateway.directRequest(GatewayUtils.getInitialForm(), null).get("responseCode"));
+				}
+				assertEquals(20, simulator.getRequestCount());
+
+				var closed = endpoints.getStats().get(0);
+				assertFalse(closed.isHealthy());
+				assertEquals(1, closed.getFailureCount());
+				assertEquals(0, closed.getActiveRequests());
+			}
+		}
+	}
+
+	// Test that requests that may have reached an endpoint aren't sent to
+	// another, and that an endpoint which recovers is used again.
+	@Test
+	public void testProbesRecoveringEndpoint() throws Exception {
+		try (var primary = new GatewaySimulator("Circle4Take40Idea").start();
+				var secondary = new GatewaySimulator("Circle4Take40Idea").setLatency(30).start()) {
+			var endpoints = new DirectEndpoints(primary.getDirectUrl(), secondary.getDirectUrl()).setProbeShare(0.3);
+
+			try (var gateway = new Gateway("100856", "Circle4Take40Idea", null, null, null,
+					new ConnectionConfig().setDirectEndpoints(endpoints))) {
+				primary.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 1);
+				int failed = 0;
+				for (int n = 0; n < 20; n++) {
+					try {
+						gateway.directRequest(GatewayUtils.getInitialForm(), null);
+					} catch (IOException e) {
+						failed++;
+					}
+				}
+				assertEquals(primary.getRequestCount(), failed);
+				assertEquals(20, primary.getRequestCount() + secondary.getRequestCount());
+				assertFalse(endpoints.getStats().get(0).isHealthy());
+
+				primary.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 0);
+				for (int n = 0; n < 40; n++) {
+					gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				}
+				assertTrue(endpoints.getStats().get(0).isHealthy());
+
+				endpoints.setProbeShare(0);
+				long before = primary.getRequestCount();
+				for (int n = 0; n < 10; n++) {
+					gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				}
+				assertEquals(10, primary.getRequestCount() - before);
+			}
+		}
+	}
+
+	// Test that asynchronous requests are routed too.
+	@Test
+	public void testRoutesAsyncRequests() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start()) {
+			var endpoints = new DirectEndpoints(closedUrl(), simulator.getDirectUrl()).setProbeShare(0);
+
+			try (var gateway = new Gateway("100856", "Circle4Take40Idea", null, null, null,
+					new ConnectionConfig().setDirectEndpoints(endpoints))) {
+				// The closed endpoint fails the first request, and is then avoided.
+				try {
+					gateway.directRequestAsync(GatewayUtils.getInitialForm(), null).get();
+				} catch (ExecutionException e) {
+					// Expected
+				}
+				assertEquals(1, endpoints.getStats().get(0).getFailureCount());
+				for (int n = 0; n < 5; n++) {
+					assertEquals("0", gateway.directRequestAsync(GatewayUtils.getInitialForm(), null).get()
+							.get("responseCode"));
+				}
+				assertEquals(5, simulator.getRequestCount());
+				assertEquals(5, endpoints.getStats().get(1).getRequestCount());
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsInvalidSettings() {
+		try {
+			new DirectEndpoints();
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			new DirectEndpoints("https://gateway.example.com/direct/").setProbeShare(1.5);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
@@ -2,16 +2,46 @@ package com.paymentnetwork;
 
 import java.util.Comparator;
 
+/// <summary>
+/// Orders request fields for signing.
+///
+/// Fields are ordered by the part of their name before any '[', so each
+/// group of nested fields such as customerAddress[line1] stays together
+/// and is ordered relative to the other fields by its group name. Fields
+/// in the same group compare as equal: a stable sort keeps them in the
+/// order they are sent, which is the order the Gateway signs them in.
+///
+/// Comparison works on the prefix lengths in place and never allocates.
+/// Callers sorting many fields can compute each prefix length once with
+/// prefixLength and use compare(String, int, String, int).
+/// </summary>
 class FieldCompare implements Comparator<String> {
 	@Override
 	public int compare(String o1, String o2) {
-		if (o1.contains("[")) {
-			o1 = o1.substring(0, o1.indexOf("["));
-		}
+		return compare(o1, prefixLength(o1), o2, prefixLength(o2));
+	}
+
+	/// <summary>
+	/// The length of name up to, but not including, its first '['.
+	/// </summary>
+	static int prefixLength(String name) {
+		int bracket = name.indexOf('[');
+		return bracket < 0 ? name.length() : bracket;
+	}
 
-		if (o2.contains("[")) {
-			o2 = o2.substring(0, o2.indexOf("["));
+	/// <summary>
+	/// Compare the first length1 characters of o1 with the first length2
+	/// characters of o2, as String.compareTo would compare those prefixes.
+	/// </summary>
+	static int compare(String o1, int length1, String o2, int length2) {
+		int limit = Math.min(length1, length2);
+		for (int i = 0; i < limit; i++) {
+			char c1 = o1.charAt(i);
+			char c2 = o2.charAt(i);
+			if (c1 != c2) {
+				return c1 - c2;
+			}
 		}
-		return o1.compareTo(o2);
+		return length1 - length2;
 	}
 }
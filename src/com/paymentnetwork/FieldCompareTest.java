@@ -0,0 +1,110 @@
+package com.paymentnetwork;
+
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_512;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class FieldCompareTest extends TestCase {
+	private final FieldCompare compare = new FieldCompare();
+	private int sink;
+
+	@Test
+	public void testOrdersByNameBeforeBracket() {
+		assertTrue(compare.compare("a", "b") < 0);
+		assertTrue(compare.compare("a", "a1") < 0);
+		assertTrue(compare.compare("a1", "aZ") < 0);
+		assertTrue(compare.compare("aZ", "aa") < 0);
+		assertTrue(compare.compare("a[zz]", "a1") < 0);
+		assertTrue(compare.compare("customerAddress[line1]", "customerAddress") == 0);
+		assertTrue(compare.compare("items[1][name]", "items[0][name]") == 0);
+		assertTrue(compare.compare("items[0]", "itemsCount") < 0);
+		assertEquals(0, compare.compare("", "[x]"));
+	}
+
+	@Test
+	public void testMatchesStringCompareToOnPrefixes() {
+		String[] names = { "", "a", "A", "a1", "aZ", "aa", "ab[c]", "abc", "abc[", "b[a]", "£", "é" };
+		for (String n1 : names) {
+			for (String n2 : names) {
+				String p1 = n1.substring(0, FieldCompare.prefixLength(n1));
+				String p2 = n2.substring(0, FieldCompare.prefixLength(n2));
+				assertEquals(n1 + " " + n2, Integer.signum(p1.compareTo(p2)), Integer.signum(compare.compare(n1, n2)));
+			}
+		}
+	}
+
+	// Nested fields must all be signed, in the order they are sent.
+	@Test
+	public void testSignKeepsEveryNestedField() {
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		fields.add(new BasicNameValuePair("items[1][name]", "second"));
+		fields.add(new BasicNameValuePair("amount", "1001"));
+		fields.add(new BasicNameValuePair("items[0][name]", "first"));
+		fields.add(new BasicNameValuePair("items[1][qty]", "2"));
+		fields.add(new BasicNameValuePair("action", "SALE"));
+
+		String expected = new DigestUtils(SHA_512).digestAsHex("action=SALE&amount=1001"
+				+ "&items%5B1%5D%5Bname%5D=second&items%5B0%5D%5Bname%5D=first&items%5B1%5D%5Bqty%5D=2"
+				+ "Circle4Take40Idea");
+
+		assertEquals(expected, SignatureEngine.sign(fields, "Circle4Take40Idea"));
+	}
+
+	@Test
+	public void testSortIsStableForLargeGroups() {
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		StringBuilder body = new StringBuilder("action=SALE");
+		fields.add(new BasicNameValuePair("action", "SALE"));
+		for (int i = 499; i >= 0; i--) {
+			fields.add(new BasicNameValuePair("items[" + i + "]", "v" + i));
+			body.append("&items%5B").append(i).append("%5D=v").append(i);
+		}
+		fields.add(new BasicNameValuePair("zz", "last"));
+		body.append("&zz=last");
+
+		var shuffled = new ArrayList<NameValuePair>(fields);
+		shuffled.add(0, shuffled.remove(shuffled.size() - 1));
+
+		String expected = new DigestUtils(SHA_512).digestAsHex(body + "secret");
+		assertEquals(expected, SignatureEngine.sign(fields, "secret"));
+		assertEquals(expected, SignatureEngine.sign(shuffled, "secret"));
+	}
+
+	@Test
+	public void testCompareDoesNotAllocate() {
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+
+		String[] names = { "customerAddress[line1]", "customerAddress[line2]", "customerName", "items[0][name]",
+				"items[0][amount]", "amount", "action" };
+		long threadId = Thread.currentThread().getId();
+
+		int result = 0;
+		for (int i = 0; i < 100_000; i++) {
+			result += compare.compare(names[i % names.length], names[(i + 3) % names.length]);
+		}
+
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 1_000_000; i++) {
+			result += compare.compare(names[i % names.length], names[(i + 3) % names.length]);
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		sink = result;
+
+		// A million comparisons that each allocated a substring would use tens
+		// of megabytes; allow a little for the measurement itself.
+		assertTrue(allocated + " bytes allocated", allocated < 64 * 1024);
+	}
+}
@@ -0,0 +1,139 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/// <summary>
+/// Decodes an application/x-www-form-urlencoded UTF-8 body straight from
+/// its InputStream, passing each field to a consumer as soon as it has
+/// been read.
+///
+/// Decoding follows URLEncodedUtils.parse: '+' is a space, invalid
+/// percent escapes are kept as they are, raw whitespace is collapsed and
+/// trimmed, fields with an empty name are skipped and a field without '='
+/// has a null value.
+///
+/// Each thread reuses one decoder and its buffers; the only objects
+/// created per field are its name and value Strings.
+/// </summary>
+final class FormDecoder {
+	private static final ThreadLocal<FormDecoder> DECODERS = ThreadLocal.withInitial(FormDecoder::new);
+
+	private final byte[] input = new byte[8192];
+	private byte[] field = new byte[256];
+
+	private FormDecoder() {
+	}
+
+	/// <summary>
+	/// Read content to the end, passing each decoded name and value to
+	/// consumer in the order they appear.
+	/// </summary>
+	static void decode(InputStream content, BiConsumer<String, String> consumer) throws IOException {
+		DECODERS.get().decodeStream(content, consumer);
+	}
+
+	private void decodeStream(InputStream content, BiConsumer<String, String> consumer) throws IOException {
+		int length = 0;
+		int nameEnd = -1;
+
+		int read;
+		while ((read = content.read(input)) != -1) {
+			for (int i = 0; i < read; i++) {
+				byte b = input[i];
+				if (b == '&') {
+					emit(length, nameEnd, consumer);
+					length = 0;
+					nameEnd = -1;
+				} else {
+					if (b == '=' && nameEnd < 0) {
+						nameEnd = length;
+					}
+					if (length == field.length) {
+						field = Arrays.copyOf(field, field.length * 2);
+					}
+					field[length++] = b;
+				}
+			}
+		}
+		emit(length, nameEnd, consumer);
+	}
+
+	/// <summary>
+	/// Decode the raw field held in field[0..length), whose name ends at
+	/// nameEnd (or -1 if it has no '=').
+	/// </summary>
+	private void emit(int length, int nameEnd, BiConsumer<String, String> consumer) {
+		String name = decodeToken(0, nameEnd < 0 ? length : nameEnd);
+		if (name.isEmpty()) {
+			return;
+		}
+
+		String value = nameEnd < 0 ? null : decodeToken(nameEnd + 1, length);
+		consumer.accept(name, value);
+	}
+
+	private String decodeToken(int start, int end) {
+		// Both steps shorten the token, so they are done in place. Runs of
+		// raw whitespace become one space and leading and trailing whitespace
+		// is dropped before escapes are decoded, as URLEncodedUtils does.
+		int out = start;
+		boolean pendingSpace = false;
+		for (int i = start; i < end; i++) {
+			byte b = field[i];
+			if (isWhitespace(b)) {
+				pendingSpace = true;
+			} else {
+				if (pendingSpace && out > start) {
+					field[out++] = ' ';
+				}
+				pendingSpace = false;
+				field[out++] = b;
+			}
+		}
+		end = out;
+
+		out = start;
+		for (int i = start; i < end; i++) {
+			byte b = field[i];
+			if (b == '+') {
+				field[out++] = ' ';
+			} else if (b == '%' && i + 2 < end) {
+				int high = hex(field[i + 1]);
+				int low = hex(field[i + 2]);
+				if (high >= 0 && low >= 0) {
+					field[out++] = (byte) ((high << 4) | low);
+				} else {
+					// Invalid escapes are kept along with the two characters
+					// that follow.
+					field[out++] = '%';
+					field[out++] = field[i + 1];
+					field[out++] = field[i + 2];
+				}
+				i += 2;
+			} else {
+				field[out++] = b;
+			}
+		}
+
+		return new String(field, start, out - start, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		} else if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		} else if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		return -1;
+	}
+}
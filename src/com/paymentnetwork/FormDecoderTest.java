@@ -0,0 +1,82 @@
+package com.paymentnetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class FormDecoderTest extends TestCase {
+
+	private static List<NameValuePair> decode(String body) throws IOException {
+		return decode(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static List<NameValuePair> decode(InputStream body) throws IOException {
+		var fields = new ArrayList<NameValuePair>();
+		FormDecoder.decode(body, (name, value) -> fields.add(new BasicNameValuePair(name, value)));
+		return fields;
+	}
+
+	@Test
+	public void testMatchesUrlEncodedUtils() throws IOException {
+		String[] bodies = { "", "a=1", "a=1&b=2", "a&&b=1", "=x&b", "a=1=2&c=%zz&d=%4", "a=%C3%A9+x&b=%FF",
+				" a = b ", "a=&b", "threeDSDetails%5Bversion%5D=2.1.0&x=%2A%2a", "&&&", "a=%", "%41=%42" };
+
+		for (String body : bodies) {
+			assertEquals(body, URLEncodedUtils.parse(body, StandardCharsets.UTF_8).toString(), decode(body).toString());
+		}
+	}
+
+	@Test
+	public void testRandomBodies() throws IOException {
+		var random = new Random(7);
+		String[] tokens = { "a", "b", "=", "&", "%", "+", " ", "0", "F", "9", "*", "[", "]", "%2A", "%C2%A3", "%C3",
+				"%F0%9F%98%80", "%5B" };
+
+		for (int n = 0; n < 5000; n++) {
+			StringBuilder body = new StringBuilder();
+			int length = random.nextInt(40);
+			for (int i = 0; i < length; i++) {
+				body.append(tokens[random.nextInt(tokens.length)]);
+			}
+			String s = body.toString();
+
+			assertEquals(s, URLEncodedUtils.parse(s, StandardCharsets.UTF_8).toString(), decode(s).toString());
+		}
+	}
+
+	// Fields larger than the read buffer, split across reads of any size.
+	@Test
+	public void testLargeFieldsAcrossReads() throws IOException {
+		var fields = new ArrayList<NameValuePair>();
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			large.append("3DS £ blob ").append(i);
+		}
+		fields.add(new BasicNameValuePair("responseCode", "65802"));
+		fields.add(new BasicNameValuePair("threeDSRequest[threeDSMethodData]", large.toString()));
+		fields.add(new BasicNameValuePair("threeDSRef", "abc*def"));
+
+		byte[] body = URLEncodedUtils.format(fields, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+
+		// Return at most seven bytes per read.
+		InputStream trickle = new ByteArrayInputStream(body) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 7));
+			}
+		};
+
+		assertEquals(fields.toString(), decode(trickle).toString());
+	}
+}
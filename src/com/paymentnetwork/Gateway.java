@@ -1,30 +1,49 @@
 package com.paymentnetwork;
 
-import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_512;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequests;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ConnectionRequestTimeoutException;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.apache.hc.core5.net.URLEncodedUtils;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.Timeout;
 
-public class Gateway {
+public class Gateway implements AutoCloseable {
 	private String merchantID;
 	private String merchantSecret;
 	private String merchantPwd;
@@ -32,6 +51,19 @@ public class Gateway {
 	private String hostedUrl;
 	private String proxyUrl;
 
+	// Secret encoded once for signing, see secretBytes.
+	private final byte[] merchantSecretBytes;
+
+	// Connections, shared by every Gateway of a MerchantRegistry.
+	private final GatewayClients clients;
+	private final boolean ownsClients;
+
+	private static final ContentType FORM_CONTENT_TYPE = ContentType.APPLICATION_FORM_URLENCODED
+			.withCharset(StandardCharsets.UTF_8);
+
+	private static final String DEFAULT_DIRECT_URL = "https://gateway.example.com/direct/";
+	private static final String DEFAULT_HOSTED_URL = "https://gateway.example.com/paymentform/";
+
 	public final int RC_SUCCESS = 0; // Transaction successful
 	public final int RC_DO_NOT_HONOR = 5; // Transaction declined
 	public final int RC_NO_REASON_TO_DECLINE = 85; // Verification successful
@@ -42,11 +74,56 @@ public class Gateway {
 	// 3DS merchantId = 100856, with secret Circle4Take40Idea
 
 	public Gateway(String merchantID, String merchantSecret, String directUrl, String hostedUrl, String proxyUrl) {
+		this(merchantID, merchantSecret, directUrl, hostedUrl, proxyUrl, new ConnectionConfig());
+	}
+
+	/// <summary>
+	/// Create a Gateway whose Direct API requests share a pooled HTTP client
+	/// configured by connectionConfig. The pool lives as long as the Gateway;
+	/// call close() when the Gateway is no longer needed.
+	///
+	/// proxyUrl, when provided, is used for all Direct API requests. If
+	/// directUrl is null, requests are sent to the first of
+	/// connectionConfig's DirectEndpoints, if it has any, and so routed
+	/// between them.
+	/// </summary>
+	public Gateway(String merchantID, String merchantSecret, String directUrl, String hostedUrl, String proxyUrl,
+			ConnectionConfig connectionConfig) {
 		this.merchantID = merchantID == null ? "100856" : merchantID;
 		this.merchantSecret = merchantSecret == null ? "Circle4Take40Idea" : merchantSecret;
-		this.directUrl = directUrl == null ? "https://gateway.example.com/direct/" : directUrl;
-		this.hostedUrl = hostedUrl == null ? "https://gateway.example.com/paymentform/" : hostedUrl;
+		DirectEndpoints directEndpoints = connectionConfig == null ? null : connectionConfig.getDirectEndpoints();
+		this.directUrl = firstNonNull(directUrl,
+				directEndpoints == null ? null : directEndpoints.getPrimaryUrl(), DEFAULT_DIRECT_URL);
+		this.hostedUrl = hostedUrl == null ? DEFAULT_HOSTED_URL : hostedUrl;
 		this.proxyUrl = proxyUrl;
+		this.merchantSecretBytes = this.merchantSecret.getBytes(StandardCharsets.UTF_8);
+		this.clients = new GatewayClients(connectionConfig, proxyUrl);
+		this.ownsClients = true;
+	}
+
+	/// <summary>
+	/// A Gateway for merchant using the shared clients of a MerchantRegistry.
+	/// Endpoints the merchant does not set are taken from directUrl and
+	/// hostedUrl, then from the usual defaults.
+	/// </summary>
+	Gateway(MerchantConfig merchant, String directUrl, String hostedUrl, GatewayClients clients) {
+		this.merchantID = merchant.getMerchantID();
+		this.merchantSecret = merchant.getMerchantSecret();
+		this.merchantPwd = merchant.getMerchantPwd();
+		this.directUrl = firstNonNull(merchant.getDirectUrl(), directUrl, DEFAULT_DIRECT_URL);
+		this.hostedUrl = firstNonNull(merchant.getHostedUrl(), hostedUrl, DEFAULT_HOSTED_URL);
+		this.merchantSecretBytes = this.merchantSecret.getBytes(StandardCharsets.UTF_8);
+		this.clients = clients;
+		this.ownsClients = false;
+	}
+
+	private static String firstNonNull(String... values) {
+		for (String value : values) {
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
 	}
 
 	/// <summary>
@@ -79,50 +156,804 @@ public class Gateway {
 	public Map<String, String> directRequest(Map<String, String> request, Map<String, String> options)
 			throws IOException, URISyntaxException {
 
+		return sendDirectRequest(buildDirectRequest(request, options));
+	}
+
+	/// <summary>
+	/// As directRequest(request, options), but fails with a
+	/// SocketTimeoutException if no verified response has been received
+	/// within timeout, including time spent waiting for a pooled connection.
+	/// The exchange is aborted when the deadline passes, so the calling
+	/// thread is never held longer than timeout.
+	///
+	/// A request that times out may still have reached the Gateway.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	/// <param name="timeout"> Overall deadline for the request, or null for none </params>
+	public Map<String, String> directRequest(Map<String, String> request, Map<String, String> options,
+			Timeout timeout) throws IOException, URISyntaxException {
+
+		return sendDirectRequest(buildDirectRequest(request, options), timeout);
+	}
+
+	/// <summary>
+	/// Send request to Gateway using HTTP Direct API, as directRequest(Map,
+	/// Map) does. The request is not modified, so it may be shared.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public Map<String, String> directRequest(GatewayRequest request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+
+		return sendDirectRequest(buildDirectRequest(request, options));
+	}
+
+	/// <summary>
+	/// As directRequest(request, options), with an overall deadline as for
+	/// directRequest(Map, Map, Timeout).
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	/// <param name="timeout"> Overall deadline for the request, or null for none </params>
+	public Map<String, String> directRequest(GatewayRequest request, Map<String, String> options, Timeout timeout)
+			throws IOException, URISyntaxException {
+
+		return sendDirectRequest(buildDirectRequest(request, options), timeout);
+	}
+
+	/// <summary>
+	/// As directRequest(Map, Map), but returning the response as a
+	/// GatewayResponse, which holds the fields without building a map and
+	/// gives typed access to them.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public GatewayResponse directResponse(Map<String, String> request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+
+		return sendDirectResponse(buildDirectRequest(request, options), null);
+	}
+
+	/// <summary>
+	/// As directRequest(GatewayRequest, Map), but returning the response as a
+	/// GatewayResponse.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public GatewayResponse directResponse(GatewayRequest request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+
+		return sendDirectResponse(buildDirectRequest(request, options), null);
+	}
+
+	private Map<String, String> sendDirectRequest(PreparedRequest request) throws IOException {
+		return sendDirectRequest(request, null);
+	}
+
+	/// <summary>
+	/// Send a prepared request, aborting it if timeout passes first. The
+	/// same prepared request can be sent again, as the identical signed body.
+	/// </summary>
+	Map<String, String> sendDirectRequest(PreparedRequest request, Timeout timeout) throws IOException {
+		Map<String, String> rtn = exchange(request, timeout, this::parseDirectResponse);
+		journalOutcome(request, rtn, null);
+
+		GatewayMetrics metrics = clients.getMetrics();
+		if (metrics != GatewayMetrics.NONE) {
+			metrics.recordResponse(request.action, rtn.get("responseCode"), System.nanoTime() - request.startNanos);
+		}
+		return rtn;
+	}
+
+	/// <summary>
+	/// As sendDirectRequest(PreparedRequest, Timeout), returning a
+	/// GatewayResponse.
+	/// </summary>
+	GatewayResponse sendDirectResponse(PreparedRequest request, Timeout timeout) throws IOException {
+		GatewayResponse rtn = exchange(request, timeout, this::parseDirectResponseView);
+		journalOutcome(request, rtn);
+
+		GatewayMetrics metrics = clients.getMetrics();
+		if (metrics != GatewayMetrics.NONE) {
+			metrics.recordResponse(request.action, rtn.get("responseCode"), System.nanoTime() - request.startNanos);
+		}
+		return rtn;
+	}
+
+	/// <summary>
+	/// Reads a verified response from a Direct API response body.
+	/// </summary>
+	private interface ResponseReader<R> {
+		R read(InputStream content, String secret) throws IOException;
+	}
+
+	/// <summary>
+	/// Post a prepared request and read its response with reader, aborting
+	/// the exchange if timeout passes first. A request addressed to the
+	/// primary of the DirectEndpoints is sent to the best of them, and to the
+	/// next best if it could not connect, while timeout allows.
+	/// </summary>
+	private <R> R exchange(PreparedRequest request, Timeout timeout, ResponseReader<R> reader) throws IOException {
+		DirectEndpoints endpoints = clients.getDirectEndpoints();
+		if (endpoints == null || !endpoints.getPrimaryUrl().equals(request.directUrl)) {
+			return exchange(request, request.directUrl, timeout, reader);
+		}
+
+		long deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanoseconds();
+		List<DirectEndpoints.Endpoint> tried = null;
+		while (true) {
+			DirectEndpoints.Endpoint endpoint = endpoints.select(tried);
+			long start = System.nanoTime();
+			// At least a millisecond, as a timeout of zero never expires.
+			Timeout remaining = deadline == 0 ? null
+					: Timeout.ofMilliseconds(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - start)));
+			try {
+				R rtn = exchange(request, endpoint.url, remaining, reader);
+				endpoints.recordSuccess(endpoint, System.nanoTime() - start);
+				return rtn;
+			} catch (IOException e) {
+				endpoints.recordFailure(endpoint, System.nanoTime() - start);
+				if (tried == null) {
+					tried = new ArrayList<DirectEndpoints.Endpoint>(endpoints.size());
+				}
+				tried.add(endpoint);
+				if (!isNotSent(e) || tried.size() == endpoints.size()
+						|| (deadline != 0 && deadline - System.nanoTime() <= 0)) {
+					throw e;
+				}
+			} catch (RuntimeException e) {
+				endpoints.recordFailure(endpoint, System.nanoTime() - start);
+				throw e;
+			}
+		}
+	}
+
+	/// <summary>
+	/// Post a prepared request to url and read its response with reader,
+	/// aborting the exchange if timeout passes first. The request is
+	/// journaled before it is sent, and a failure once it is known.
+	/// </summary>
+	private <R> R exchange(PreparedRequest request, String url, Timeout timeout, ResponseReader<R> reader)
+			throws IOException {
+		CloseableHttpClient client = clients.getHttpClient();
+		GatewayMetrics metrics = clients.getMetrics();
+		boolean timed = metrics != GatewayMetrics.NONE;
+
+		RequestJournal journal = clients.getJournal();
+		if (journal != null) {
+			journalRequest(journal, request);
+		}
+
+		var httpPost = new HttpPost(url);
+
+		httpPost.setEntity(new ByteArrayEntity(request.body, FORM_CONTENT_TYPE));
+
+		AtomicBoolean expired = null;
+		ScheduledFuture<?> deadline = null;
+		if (timeout != null) {
+			// No single wait may outlast the deadline, and the timer aborts
+			// the exchange if they add up to more.
+			RequestConfig defaults = clients.getDefaultRequestConfig();
+			httpPost.setConfig(RequestConfig.copy(defaults)
+					.setConnectionRequestTimeout(min(defaults.getConnectionRequestTimeout(), timeout))
+					.setConnectTimeout(min(defaults.getConnectTimeout(), timeout))
+					.setResponseTimeout(min(defaults.getResponseTimeout(), timeout))
+					.build());
+
+			AtomicBoolean fired = new AtomicBoolean();
+			expired = fired;
+			deadline = clients.getTimer().schedule(() -> {
+				fired.set(true);
+				httpPost.cancel();
+			}, timeout.getDuration(), timeout.getTimeUnit());
+		}
+
+		long start = timed ? System.nanoTime() : 0;
+
+		// The response must be closed so that its connection is returned to
+		// the pool for reuse.
+		try (var response = client.execute(httpPost)) {
+			if (timed) {
+				metrics.recordPhase(GatewayMetrics.Phase.EXCHANGE, System.nanoTime() - start);
+			}
+			checkStatus(response.getCode(), response.getReasonPhrase());
+
+			try (var inputStream = response.getEntity().getContent()) {
+				return reader.read(inputStream, request.secret);
+			}
+		} catch (IOException e) {
+			if (expired != null && expired.get()) {
+				// Aborted by the deadline, whatever the exchange was doing.
+				SocketTimeoutException timeoutException = new SocketTimeoutException(
+						"Request timed out after " + timeout);
+				timeoutException.initCause(e);
+				e = timeoutException;
+			}
+			recordExchangeFailure(metrics, e);
+			journalOutcome(request, null, e);
+			throw e;
+		} catch (RuntimeException e) {
+			journalOutcome(request, null, e);
+			throw e;
+		} finally {
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+		}
+	}
+
+	/// <summary>
+	/// Journal request before it is sent: as a new entry the first time, and
+	/// as pending again if an earlier attempt failed. An earlier attempt's
+	/// entry that has since been removed with its segment is replaced by a
+	/// new one.
+	/// </summary>
+	private static void journalRequest(RequestJournal journal, PreparedRequest request) throws IOException {
+		synchronized (request) {
+			if (request.journalId == 0 || !journal.recordResent(request.journalId)) {
+				request.journalId = journal.recordRequest(request.fields);
+			}
+		}
+	}
+
+	/// <summary>
+	/// Journal the verified response to request, or the error it failed
+	/// with. A request the Gateway has already answered isn't failed because
+	/// its outcome couldn't be journaled; its entry is left unresolved, and
+	/// the failure is counted by the journal. The failure to journal an
+	/// error is added to it as suppressed.
+	/// </summary>
+	private void journalOutcome(PreparedRequest request, Map<String, String> response, Throwable error) {
+		RequestJournal journal = clients.getJournal();
+		long id = journalId(journal, request);
+		if (id == 0) {
+			return;
+		}
+		try {
+			if (response != null) {
+				journal.recordResponse(id, response);
+			} else {
+				journal.recordFailure(id, error, !isNotSent(error));
+			}
+		} catch (IOException | RuntimeException e) {
+			if (error != null) {
+				error.addSuppressed(e);
+			} else {
+				journal.recordLostOutcome(e);
+			}
+		}
+	}
+
+	/// <summary>
+	/// As journalOutcome(PreparedRequest, Map, Throwable), for a response
+	/// decoded into a GatewayResponse.
+	/// </summary>
+	private void journalOutcome(PreparedRequest request, GatewayResponse response) {
+		RequestJournal journal = clients.getJournal();
+		long id = journalId(journal, request);
+		if (id == 0) {
+			return;
+		}
+		try {
+			journal.recordResponse(id, response);
+		} catch (IOException | RuntimeException e) {
+			journal.recordLostOutcome(e);
+		}
+	}
+
+	/// <summary>
+	/// The id request was journaled with, or 0 if it wasn't.
+	/// </summary>
+	private static long journalId(RequestJournal journal, PreparedRequest request) {
+		if (journal == null) {
+			return 0;
+		}
+		synchronized (request) {
+			return request.journalId;
+		}
+	}
+
+	/// <summary>
+	/// Whether error shows the request was never sent to the Gateway.
+	/// </summary>
+	static boolean isNotSent(Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return ResilientGateway.isConnectFailure(error) || error instanceof ConnectionRequestTimeoutException;
+	}
+
+	/// <summary>
+	/// Send request to Gateway using HTTP Direct API without blocking the
+	/// calling thread.
+	///
+	/// The request is prepared and signed exactly as by directRequest, and the
+	/// response is verified before the returned future completes. Requests
+	/// are sent over a shared non-blocking client which multiplexes requests
+	/// over HTTP/2 when the gateway supports it.
+	///
+	/// At most ConnectionConfig.getMaxConcurrentRequests() requests are in
+	/// flight at once; further requests are queued until a slot is free.
+	///
+	/// The future completes exceptionally if the request is invalid, cannot
+	/// be sent, or the response fails verification.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public CompletableFuture<Map<String, String>> directRequestAsync(Map<String, String> request,
+			Map<String, String> options) {
+		return directRequestAsync(request, options, null);
+	}
+
+	/// <summary>
+	/// As directRequestAsync(request, options), but the returned future
+	/// completes with a TimeoutException if no verified response has been
+	/// received within timeout, including any time spent queued behind the
+	/// concurrency limit. The underlying exchange is cancelled on timeout.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	/// <param name="timeout"> Overall deadline for the request, or null for none </params>
+	public CompletableFuture<Map<String, String>> directRequestAsync(Map<String, String> request,
+			Map<String, String> options, Timeout timeout) {
+
+		return sendDirectRequestAsync(() -> buildDirectRequest(request, options), timeout);
+	}
+
+	/// <summary>
+	/// Send request to Gateway using HTTP Direct API without blocking the
+	/// calling thread, as directRequestAsync(Map, Map) does. The request is
+	/// not modified, so it may be shared.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public CompletableFuture<Map<String, String>> directRequestAsync(GatewayRequest request,
+			Map<String, String> options) {
+		return directRequestAsync(request, options, null);
+	}
+
+	/// <summary>
+	/// As directRequestAsync(request, options), with an overall deadline as
+	/// for directRequestAsync(Map, Map, Timeout).
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	/// <param name="timeout"> Overall deadline for the request, or null for none </params>
+	public CompletableFuture<Map<String, String>> directRequestAsync(GatewayRequest request,
+			Map<String, String> options, Timeout timeout) {
+
+		return sendDirectRequestAsync(() -> buildDirectRequest(request, options), timeout);
+	}
+
+	/// <summary>
+	/// Build the request with builder and send it. The returned future fails
+	/// if the request cannot be built.
+	/// </summary>
+	private CompletableFuture<Map<String, String>> sendDirectRequestAsync(Supplier<PreparedRequest> builder,
+			Timeout timeout) {
+
+		CompletableFuture<Map<String, String>> result = new CompletableFuture<Map<String, String>>();
+		RequestLimiter asyncLimiter = clients.getAsyncLimiter();
+		GatewayMetrics metrics = clients.getMetrics();
+		boolean timed = metrics != GatewayMetrics.NONE;
+
+		PreparedRequest request;
+		SimpleHttpRequest httpPost;
+		CloseableHttpAsyncClient client;
+		try {
+			request = builder.get();
+
+			httpPost = SimpleHttpRequests.post(request.directUrl);
+			httpPost.setBody(request.body, FORM_CONTENT_TYPE);
+
+			if (timeout != null) {
+				httpPost.setConfig(RequestConfig.copy(clients.getDefaultRequestConfig())
+						.setResponseTimeout(timeout)
+						.build());
+			}
+
+			client = clients.getHttpAsyncClient();
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		// Set once the request has left the queue, to tell which phase a
+		// timeout happened in.
+		AtomicBoolean sent = timed ? new AtomicBoolean() : null;
+
+		// The outcome of the exchange, including a timeout, which is
+		// journaled and recorded against its endpoint before being passed
+		// on to result. A caller cancelling result abandons the exchange.
+		CompletableFuture<Map<String, String>> outcome = new CompletableFuture<Map<String, String>>();
+		// The endpoint the request was routed to, and when; guarded by request.
+		DirectEndpoints.Endpoint[] routed = new DirectEndpoints.Endpoint[1];
+		long[] routedAt = new long[1];
+
+		if (timeout != null) {
+			outcome.orTimeout(timeout.getDuration(), timeout.getTimeUnit());
+			if (timed) {
+				outcome.whenComplete((r, e) -> {
+					if (e instanceof TimeoutException) {
+						metrics.recordTimeout(sent.get() ? GatewayMetrics.Phase.EXCHANGE : GatewayMetrics.Phase.QUEUE);
+					}
+				});
+			}
+		}
+
+		outcome.whenComplete((r, e) -> {
+			DirectEndpoints.Endpoint endpoint;
+			long routedNanos;
+			synchronized (request) {
+				endpoint = routed[0];
+				routedNanos = System.nanoTime() - routedAt[0];
+			}
+			journalOutcome(request, r, e);
+			if (endpoint != null) {
+				if (e == null) {
+					clients.getDirectEndpoints().recordSuccess(endpoint, routedNanos);
+				} else {
+					clients.getDirectEndpoints().recordFailure(endpoint, routedNanos);
+				}
+			}
+
+			if (e == null) {
+				result.complete(r);
+			} else if (e instanceof CancellationException) {
+				result.cancel(false);
+			} else {
+				result.completeExceptionally(e);
+			}
+		});
+		result.whenComplete((r, e) -> {
+			if (e != null) {
+				outcome.completeExceptionally(e);
+			}
+		});
+
+		long queued = timed ? System.nanoTime() : 0;
+
+		asyncLimiter.submit(() -> {
+			// Journaled and routed together, so that an outcome arriving
+			// meanwhile, such as a timeout, is recorded against both or neither.
+			synchronized (request) {
+				if (outcome.isDone()) {
+					// Timed out or cancelled while waiting for a free slot.
+					asyncLimiter.release();
+					return;
+				}
+
+				RequestJournal journal = clients.getJournal();
+				if (journal != null) {
+					try {
+						journalRequest(journal, request);
+					} catch (IOException e) {
+						asyncLimiter.release();
+						outcome.completeExceptionally(e);
+						return;
+					}
+				}
+
+				DirectEndpoints endpoints = clients.getDirectEndpoints();
+				if (endpoints != null && endpoints.getPrimaryUrl().equals(request.directUrl)) {
+					routed[0] = endpoints.select(null);
+					routedAt[0] = System.nanoTime();
+					httpPost.setUri(URI.create(routed[0].url));
+				}
+			}
+
+			long start = 0;
+			if (timed) {
+				start = System.nanoTime();
+				metrics.recordPhase(GatewayMetrics.Phase.QUEUE, start - queued);
+				sent.set(true);
+			}
+			long exchangeStart = start;
+
+			try {
+				Future<SimpleHttpResponse> exchange = client.execute(httpPost, new FutureCallback<SimpleHttpResponse>() {
+					@Override
+					public void completed(SimpleHttpResponse response) {
+						asyncLimiter.release();
+						if (timed) {
+							metrics.recordPhase(GatewayMetrics.Phase.EXCHANGE, System.nanoTime() - exchangeStart);
+						}
+						try {
+							checkStatus(response.getCode(), response.getReasonPhrase());
+							Map<String, String> rtn = parseDirectResponse(
+									new ByteArrayInputStream(response.getBodyBytes()), request.secret);
+							if (timed) {
+								metrics.recordResponse(request.action, rtn.get("responseCode"),
+										System.nanoTime() - request.startNanos);
+							}
+							outcome.complete(rtn);
+						} catch (HttpResponseException e) {
+							recordExchangeFailure(metrics, e);
+							outcome.completeExceptionally(e);
+						} catch (IOException | RuntimeException e) {
+							outcome.completeExceptionally(e);
+						}
+					}
+
+					@Override
+					public void failed(Exception e) {
+						asyncLimiter.release();
+						if (outcome.completeExceptionally(e)) {
+							recordExchangeFailure(metrics, e);
+						}
+					}
+
+					@Override
+					public void cancelled() {
+						asyncLimiter.release();
+						outcome.cancel(false);
+					}
+				});
+
+				// Abandon the exchange if it times out or the caller cancels.
+				outcome.whenComplete((r, e) -> exchange.cancel(true));
+			} catch (RuntimeException e) {
+				asyncLimiter.release();
+				outcome.completeExceptionally(e);
+			}
+		});
+
+		return result;
+	}
+
+	/// <summary>
+	/// A Direct API request ready to send: the signed fields, the URL to post
+	/// them to and the secret to verify the response with. The action and
+	/// the time preparation started are kept for the GatewayMetrics.
+	/// </summary>
+	static final class PreparedRequest {
+		final List<NameValuePair> fields;
+		// The form-encoded fields, as signed, then the signature: sent as is
+		// by every attempt.
+		final byte[] body;
+		final String directUrl;
+		final String secret;
+		final String action;
+		final long startNanos;
+		// Entry in the journal, or 0 until journaled; guarded by this.
+		long journalId;
+
+		PreparedRequest(List<NameValuePair> fields, byte[] body, Map<String, String> requestSettings, String action,
+				long startNanos) {
+			this.fields = fields;
+			this.body = body;
+			this.directUrl = requestSettings.get("directUrl");
+			this.secret = requestSettings.get("secret");
+			this.action = action;
+			this.startNanos = startNanos;
+		}
+	}
+
+	/// <summary>
+	/// Prepare and sign a Direct API request.
+	/// </summary>
+	PreparedRequest buildDirectRequest(Map<String, String> request, Map<String, String> options) {
+		GatewayMetrics metrics = clients.getMetrics();
+		long start = metrics != GatewayMetrics.NONE ? System.nanoTime() : 0;
+
 		// requestSettings contains directUrl, hostedUrl and merchant secret.
 		// this allows those values to be set by the prepareRequest method.
 		Map<String, String> requestSettings = new HashMap<String, String>();
 
-		this.prepareRequest(request, options, requestSettings);
-
-		try (CloseableHttpClient client = HttpClients.createDefault()) {
-
-			var httpPost = new HttpPost(this.directUrl);
+		// HttpPost class requires an ArrayList<NameValuePair> rather than a Map<String,
+		// String>
+		ArrayList<NameValuePair> requestAsList = new ArrayList<NameValuePair>();
 
-			// HttpPost class requires an ArrayList<NameValuePair> rather than a Map<String,
-			// String>
-			ArrayList<NameValuePair> requestAsList = new ArrayList<NameValuePair>();
+		try {
+			this.prepareRequest(request, options, requestSettings);
 
 			for (Map.Entry<String, String> entry : request.entrySet()) {
 				requestAsList.add(new BasicNameValuePair(entry.getKey(), (String) entry.getValue()));
 			}
+		} catch (RuntimeException e) {
+			metrics.recordError(GatewayMetrics.Phase.PREPARE, e);
+			throw e;
+		}
+
+		byte[] body = signDirectRequest(requestAsList, requestSettings, metrics, start);
 
-			if (requestSettings.containsKey("secret")) {
-				requestAsList.add(new BasicNameValuePair("signature",
-						sign(requestAsList, requestSettings.get("secret"))));
+		return new PreparedRequest(requestAsList, body, requestSettings, request.get("action"), start);
+	}
+
+	/// <summary>
+	/// Prepare and sign a Direct API request. The fields are already in
+	/// signing order, so signing them needs no reordering.
+	/// </summary>
+	PreparedRequest buildDirectRequest(GatewayRequest request, Map<String, String> options) {
+		GatewayMetrics metrics = clients.getMetrics();
+		long start = metrics != GatewayMetrics.NONE ? System.nanoTime() : 0;
+
+		Map<String, String> requestSettings = new HashMap<String, String>();
+
+		List<NameValuePair> requestAsList;
+		try {
+			requestAsList = this.prepareRequest(request, options, requestSettings).toNameValuePairs();
+		} catch (RuntimeException e) {
+			metrics.recordError(GatewayMetrics.Phase.PREPARE, e);
+			throw e;
+		}
+
+		byte[] body = signDirectRequest(requestAsList, requestSettings, metrics, start);
+
+		return new PreparedRequest(requestAsList, body, requestSettings, request.get("action"), start);
+	}
+
+	/// <summary>
+	/// Append the signature to a prepared request and return its body,
+	/// recording the PREPARE phase, which began at start, and the SIGN phase.
+	/// </summary>
+	private byte[] signDirectRequest(List<NameValuePair> requestAsList, Map<String, String> requestSettings,
+			GatewayMetrics metrics, long start) {
+		boolean timed = metrics != GatewayMetrics.NONE;
+		long signStart = 0;
+		if (timed) {
+			signStart = System.nanoTime();
+			metrics.recordPhase(GatewayMetrics.Phase.PREPARE, signStart - start);
+		}
+
+		byte[] body;
+		String secret = requestSettings.get("secret");
+		if (secret != null) {
+			// The fields are encoded once, for both the signature and the body.
+			SignatureEngine engine = SignatureEngine.get();
+			engine.begin();
+			engine.keepBody();
+			for (NameValuePair field : requestAsList) {
+				engine.add(field.getName(), field.getValue());
 			}
+			String signature = engine.finish(secretBytes(secret, engine));
+			body = engine.body(signature);
+			requestAsList.add(new BasicNameValuePair("signature", signature));
+		} else {
+			body = URLEncodedUtils.format(requestAsList, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+		}
+
+		if (timed) {
+			metrics.recordPhase(GatewayMetrics.Phase.SIGN, System.nanoTime() - signStart);
+		}
+		return body;
+	}
 
-			httpPost.setEntity(new UrlEncodedFormEntity(requestAsList));
+	/// <summary>
+	/// Fail if the Gateway did not answer with a response to decode, such as
+	/// when a proxy or load balancer in front of it is unavailable.
+	/// </summary>
+	private static void checkStatus(int code, String reasonPhrase) throws HttpResponseException {
+		if (code < 200 || code >= 300) {
+			throw new HttpResponseException(code, reasonPhrase);
+		}
+	}
 
-			var response = client.execute(httpPost);
+	private static Timeout min(Timeout a, Timeout b) {
+		if (a == null || a.isDisabled()) {
+			return b;
+		}
+		return a.toMilliseconds() <= b.toMilliseconds() ? a : b;
+	}
 
-			var inputStream = response.getEntity().getContent();
-			String gatewayResponse = IOUtils.toString(inputStream, StandardCharsets.UTF_8.name());
+	/// <summary>
+	/// Record why a request failed while it was being sent or its response
+	/// received.
+	/// </summary>
+	private static void recordExchangeFailure(GatewayMetrics metrics, Throwable e) {
+		if (e instanceof ConnectionRequestTimeoutException) {
+			metrics.recordTimeout(GatewayMetrics.Phase.CONNECTION_LEASE);
+		} else if (e instanceof SocketTimeoutException) {
+			metrics.recordTimeout(GatewayMetrics.Phase.EXCHANGE);
+		} else {
+			metrics.recordError(GatewayMetrics.Phase.EXCHANGE, e);
+		}
+	}
 
-			List<NameValuePair> resultFieldsList = URLEncodedUtils.parse(gatewayResponse, Charset.forName("UTF-8"));
+	/// <summary>
+	/// Decode and verify a Direct API response body.
+	///
+	/// The body is decoded in a single pass straight into the returned map,
+	/// which keeps the fields in the order they were received. As each field
+	/// is decoded it is also added to the signature being computed, so
+	/// the response can be verified without reading its fields a second time.
+	///
+	/// As with VerifyResponse, the signature is not included in the returned map.
+	/// </summary>
+	Map<String, String> parseDirectResponse(InputStream content, String secret) throws IOException {
+		var rtn = new LinkedHashMap<String, String>();
+		decodeDirectResponse(content, secret, rtn::put, () -> rtn);
+		return rtn;
+	}
 
-			var rtn = new HashMap<String, String>();
+	/// <summary>
+	/// As parseDirectResponse, decoding into a GatewayResponse.
+	/// </summary>
+	GatewayResponse parseDirectResponseView(InputStream content, String secret) throws IOException {
+		var rtn = new GatewayResponse();
+		decodeDirectResponse(content, secret, rtn::add, rtn::asMap);
+		return rtn;
+	}
 
-			resultFieldsList.forEach((f) -> {
-				rtn.put(f.getName(), f.getValue());
+	/// <summary>
+	/// Decode a response body, passing every field but the signature to
+	/// fields, and verify it. decoded must read back the fields passed, once
+	/// they have all been passed; it is only called for a partial signature.
+	/// </summary>
+	private void decodeDirectResponse(InputStream content, String secret, BiConsumer<String, String> fields,
+			Supplier<Map<String, String>> decoded) throws IOException {
+		GatewayMetrics metrics = clients.getMetrics();
+		boolean timed = metrics != GatewayMetrics.NONE;
+		long start = timed ? System.nanoTime() : 0;
+
+		SignatureEngine engine = SignatureEngine.get();
+		engine.begin();
+
+		try {
+			String[] signature = new String[1];
+			int[] received = new int[1];
+			FormDecoder.decode(content, (name, value) -> {
+				if (name.equals("signature")) {
+					// A signature without a value counts as missing.
+					signature[0] = value == null ? "" : value;
+				} else {
+					fields.accept(name, value);
+					engine.add(name, value);
+					received[0]++;
+				}
 			});
 
-			VerifyResponse(rtn, merchantSecret);
+			if (received[0] == 0 && signature[0] == null) {
+				IllegalArgumentException e = new IllegalArgumentException("Invalid response from Gateway");
+				metrics.recordError(GatewayMetrics.Phase.PARSE, e);
+				throw e;
+			}
 
-			return rtn;
+			long verifyStart = 0;
+			if (timed) {
+				verifyStart = System.nanoTime();
+				metrics.recordPhase(GatewayMetrics.Phase.PARSE, verifyStart - start);
+			}
+
+			try {
+				checkSignature(signature[0], decoded, engine, secret);
+			} catch (RuntimeException e) {
+				metrics.recordError(GatewayMetrics.Phase.VERIFY, e);
+				throw e;
+			}
+
+			if (timed) {
+				metrics.recordPhase(GatewayMetrics.Phase.VERIFY, System.nanoTime() - verifyStart);
+			}
+		} finally {
+			engine.discard();
 		}
 	}
 
+	/// <summary>
+	/// Release the pooled connections used by directRequest. The Gateway can
+	/// still be used to create hosted forms after it has been closed.
+	///
+	/// Gateways obtained from a MerchantRegistry share its connections, which
+	/// are only released when the registry is closed.
+	/// </summary>
+	@Override
+	public void close() throws IOException {
+		if (ownsClients) {
+			clients.close();
+		}
+	}
+
+	/// <summary>
+	/// Statistics for the Direct API connection pool: connections leased,
+	/// pending a lease, available for reuse and the configured maximum.
+	/// Returns null if no Direct API request has been made yet.
+	/// </summary>
+	public PoolStats getConnectionPoolStats() {
+		return clients.getConnectionPoolStats();
+	}
+
 	/// <summary>
 	/// Create a form that can then be used to send the request to the gateway
 	/// using the HTTP Hosted API.
@@ -153,8 +984,36 @@ public class Gateway {
 	/// <param name="request"> Dictionary<string, string> Request data </params>
 	/// <param name="options"> Not currently used </params>
 	public String HostedRequest(Map<String, String> request, Map<String, String> options) {
+		return new HostedFormTemplate(this, options).render(request);
+	}
 
-		Map<String, String> requestSettings = new HashMap<String, String>();
+	/// <summary>
+	/// Create a form for request as HostedRequest(Map, Map) does. The request
+	/// is not modified, so it may be shared.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> As for HostedRequest(Map, Map) </params>
+	public String HostedRequest(GatewayRequest request, Map<String, String> options) {
+		return new HostedFormTemplate(this, options).render(request);
+	}
+
+	/// <summary>
+	/// Create a template for hosted forms using the given HostedRequest
+	/// options. Forms rendered from the template are identical to those from
+	/// HostedRequest, but the form tag and submit element are only built
+	/// once, so a template should be kept and reused for each set of options.
+	/// </summary>
+	/// <param name="options"> As for HostedRequest </params>
+	public HostedFormTemplate hostedFormTemplate(Map<String, String> options) {
+		return new HostedFormTemplate(this, options);
+	}
+
+	/// <summary>
+	/// Prepare a request for the HTTP Hosted API, as HostedRequest does before
+	/// rendering it.
+	/// </summary>
+	void prepareHostedRequest(Map<String, String> request, Map<String, String> options,
+			Map<String, String> requestSettings) {
 
 		this.prepareRequest(request, options, requestSettings);
 
@@ -164,42 +1023,45 @@ public class Gateway {
 			throw new IllegalArgumentException("redirectURL is required and must be set according to your environment");
 		}
 
-		if (requestSettings.containsKey("merchantSecret")) {
-			request.put("signature", requestSettings.get("signature"));
+		String secret = requestSettings.get("secret");
+		if (secret != null && !secret.isEmpty()) {
+			SignatureEngine engine = SignatureEngine.get();
+			engine.begin();
+			request.forEach(engine::add);
+			request.put("signature", engine.finish(secretBytes(secret, engine)));
 		}
+	}
 
-		StringBuilder ret = new StringBuilder();
-
-		String formAttrs = options.containsKey("formAttrs") ? options.get("formAttrs") : "";
-		String action = StringEscapeUtils.escapeHtml4(this.hostedUrl);
+	/// <summary>
+	/// As prepareHostedRequest(Map, Map, Map), returning the prepared request
+	/// rather than modifying request.
+	/// </summary>
+	GatewayRequest prepareHostedRequest(GatewayRequest request, Map<String, String> options,
+			Map<String, String> requestSettings) {
 
-		ret.append(String.format("<form method=\"post\" %s action=\"%s\" /> \n", formAttrs, action));
+		GatewayRequest prepared = this.prepareRequest(request, options, requestSettings);
 
-		for (Map.Entry<String, String> entry : request.entrySet()) {
-			ret.append(fieldToHtml(entry.getKey(), (String) entry.getValue()));
+		if (!prepared.containsKey("redirectURL")) {
+			// RedirectURL is used to send the user back to your site following
+			// a transaction. It must be set according to your environment.
+			throw new IllegalArgumentException("redirectURL is required and must be set according to your environment");
 		}
 
-		String submitAttrs = options.getOrDefault("submitAttrs", "");
-
-		ret.append(submitAttrs);
-
-		String submitElement;
-		if (options.containsKey("submitImage")) {
-			submitElement = String.format("<input %s  type=\"image\" src=\"", submitAttrs)
-					+ StringEscapeUtils.escapeHtml4(options.get("submitImage")) + "\">\n";
-
-		} else if (options.containsKey("submitHtml")) {
-			submitElement = String.format("<button type=\"submit\" %s >", submitAttrs)
-					+ options.get("submitHtml") + "</button>\n";
-		} else {
-			submitElement = String.format("<input %s type=\"submit\" value=\"", submitAttrs)
-					+ StringEscapeUtils.escapeHtml4(options.getOrDefault("submitText", "Pay Now"))
-					+ "\">\n";
+		String secret = requestSettings.get("secret");
+		if (secret != null && !secret.isEmpty()) {
+			SignatureEngine engine = SignatureEngine.get();
+			engine.begin();
+			for (int i = 0; i < prepared.size(); i++) {
+				engine.add(prepared.getName(i), prepared.getValue(i));
+			}
+			prepared = prepared.toBuilder().set("signature", engine.finish(secretBytes(secret, engine))).build();
 		}
 
-		ret.append(submitElement + "</form>\n");
+		return prepared;
+	}
 
-		return ret.toString();
+	String getHostedUrl() {
+		return hostedUrl;
 	}
 
 	/// <summary>
@@ -261,57 +1123,129 @@ public class Gateway {
 
 		// Remove items we don't want to send in the request
 		// (they may be there if a previous response is sent)
-		String[] removeKeys = new String[] { 
-			"responseCode",
-			"responseMessage",
-			"responseStatus",
-			"state",
-			"signature",
-			"merchantAlias",
-			"merchantID2"
-		};
-
-		for (String key : removeKeys) {
+		for (String key : REMOVE_KEYS) {
 			request.remove(key); // Doesn't error if key not present.
 		}
 	}
 
+	private static final String[] REMOVE_KEYS = new String[] {
+		"responseCode",
+		"responseMessage",
+		"responseStatus",
+		"state",
+		"signature",
+		"merchantAlias",
+		"merchantID2"
+	};
+
+	/// <summary>
+	/// As prepareRequest(Map, Map, Map), but returning the prepared request
+	/// rather than modifying request. When request needs no changes it is
+	/// returned as it is.
+	/// </summary>
+	private GatewayRequest prepareRequest(GatewayRequest request, Map<String, String> options,
+			Map<String, String> requestSettings) {
+
+		if (request == null) {
+			throw new NullPointerException("Request must be provided.");
+		}
+		if (request.size() == 0) {
+			throw new IllegalArgumentException("Request must be provided.");
+		}
+
+		if (!request.containsKey("action")) {
+			throw new IllegalArgumentException("Request must contain an 'action'");
+		}
+
+		GatewayRequest.Builder prepared = request.toBuilder();
+
+		// Insert 'merchantID' if doesn't exist and default is available
+		if (!request.containsKey("merchantID")) {
+			if (this.merchantID == null) {
+				// MerchantID must be set
+				throw new IllegalArgumentException("MerchantID not set in either request or the class");
+			}
+			prepared.set("merchantID", this.merchantID);
+		}
+
+		// Insert 'merchantPwd' if doesn't exist and default is available
+		if (!request.containsKey("merchantPwd") && merchantPwd != null) {
+			prepared.set("merchantPwd", merchantPwd);
+		}
+
+		String secret = request.get("merchantSecret");
+		if (secret != null) {
+			requestSettings.put("secret", secret);
+			prepared.remove("merchantSecret");
+		} else if (this.merchantSecret != null) {
+			requestSettings.put("secret", this.merchantSecret);
+		}
+
+		String url = request.get("hostedUrl");
+		requestSettings.put("hostedUrl", url == null ? this.hostedUrl : url);
+		prepared.remove("hostedUrl");
+
+		url = request.get("directUrl");
+		requestSettings.put("directUrl", url == null ? this.directUrl : url);
+		prepared.remove("directUrl");
+
+		for (String key : REMOVE_KEYS) {
+			prepared.remove(key);
+		}
+
+		return prepared.build();
+	}
+
 	protected String sign(List<NameValuePair> fields, String secret) {
 		return sign(fields, secret, null);
 	}
 
+	/// <summary>
+	/// Sign fields. If partial is given only the fields it names are signed,
+	/// and the names are appended to the signature after a '|'. A name
+	/// without brackets covers all of its nested fields, so 'threeDSDetails'
+	/// signs every 'threeDSDetails[...]' field.
+	/// </summary>
 	protected String sign(List<NameValuePair> fields, String secret, List<String> partial) {
-		TreeMap<String, String> fieldsSorted = new TreeMap<String, String>(new FieldCompare());
 		String partialStr = "";
 
+		SignatureEngine engine = SignatureEngine.get();
+		engine.begin();
+
 		if (partial != null && partial.size() != 0) {
 			fields.forEach((f) -> {
-				if (partial.contains((f.getName()))) {
-					fieldsSorted.put(f.getName(), f.getValue());
+				if (isPartialField(f.getName(), partial)) {
+					engine.add(f.getName(), f.getValue());
 				}
 			});
 			partialStr = "|" + String.join(",", partial);
+		} else {
+			fields.forEach((f) -> {
+				engine.add(f.getName(), f.getValue());
+			});
 		}
 
-		fields.forEach((f) -> {
-			fieldsSorted.put(f.getName(), f.getValue());
-		});
-
-		var fieldsFinal = new ArrayList<NameValuePair>();
-		fieldsSorted.forEach((k, v) -> {
-			fieldsFinal.add(new BasicNameValuePair(k, v));
-		});
-
-		var body = URLEncodedUtils.format(fieldsFinal, StandardCharsets.UTF_8);
-		body = body.replaceAll("\\*", "%2A");
-
-		// System.out.println(body);
-
-		String signature = new DigestUtils(SHA_512).digestAsHex(body + merchantSecret);
+		String signature = engine.finish(secretBytes(secret, engine));
 
 		return signature + partialStr;
 	}
 
+	/// <summary>
+	/// Verify the signature of a response received from the Gateway.
+	///
+	/// The signature field is removed from the response and checked against
+	/// the signature computed from the remaining fields, or from only the
+	/// fields it names if it is a partial signature ('{signature}|{field,list}').
+	///
+	/// Nested fields, such as 'threeDSDetails[version]', are signed in the
+	/// order the Gateway sent them, so response should preserve that order;
+	/// the maps returned by directRequest do.
+	///
+	/// The method throws a RuntimeException if the response is not correctly
+	/// signed, and returns true otherwise.
+	/// </summary>
+	/// <param name="response"> Response data </params>
+	/// <param name="secret"> The Merchant Secret </params>
 	public boolean VerifyResponse(Map<String, String> response, String secret) {
 		if (response == null) {
 			throw new NullPointerException("Invalid response from Gateway");
@@ -321,37 +1255,97 @@ public class Gateway {
 			throw new IllegalArgumentException("Invalid response from Gateway");
 		}
 
-		String signature = response.get("signature");
-		response.remove("signature");
+		GatewayMetrics metrics = clients.getMetrics();
+		long start = metrics != GatewayMetrics.NONE ? System.nanoTime() : 0;
+
+		String signature = response.remove("signature");
 
-		List<String> fields = null;
+		SignatureEngine engine = SignatureEngine.get();
+		engine.begin();
 
-		if (!secret.isEmpty() && !signature.isEmpty() && signature.contains("|")) {
-			String[] split = signature.split("|");
-			signature = split[0];
-			fields = Arrays.asList(split[1].split(","));
+		try {
+			response.forEach((k, v) -> {
+				engine.add(k, v);
+			});
+
+			checkSignature(signature, () -> response, engine, secret);
+		} catch (RuntimeException e) {
+			metrics.recordError(GatewayMetrics.Phase.VERIFY, e);
+			throw e;
+		} finally {
+			engine.discard();
 		}
 
-		List<NameValuePair> fieldsAsList = new ArrayList<NameValuePair>();
+		if (metrics != GatewayMetrics.NONE) {
+			metrics.recordPhase(GatewayMetrics.Phase.VERIFY, System.nanoTime() - start);
+		}
 
-		response.forEach((k, v) -> {
-			fieldsAsList.add(new BasicNameValuePair(k, v));
-		});
+		return true;
+	}
 
-		// System.out.println(fieldsAsList);
+	/// <summary>
+	/// Check a response signature. engine must hold every field of response
+	/// except the signature, added in the order they were received.
+	/// </summary>
+	private void checkSignature(String signature, Supplier<Map<String, String>> response, SignatureEngine engine,
+			String secret) {
+		boolean hasSecret = secret != null && !secret.isEmpty();
+		boolean hasSignature = signature != null && !signature.isEmpty();
 
 		// We display three suitable different exception messages to help show
 		// secret mismatches between ourselves and the Gateway without giving
 		// too much away if the messages are displayed to the Cardholder.
-		if (secret.isEmpty() && !signature.isEmpty()) {
+		if (!hasSecret && hasSignature) {
 			// Signature present when not expected (Gateway has a secret but we don't)
 			throw new RuntimeException("Incorrectly signed response from Payment Gateway (1)");
-		} else if (!secret.isEmpty() && signature.isEmpty()) {
+		} else if (hasSecret && !hasSignature) {
 			// Signature missing when one expected (We have a secret but the Gateway doesn't)
 			throw new RuntimeException("Incorrectly signed response from Payment Gateway (2)");
+		} else if (!hasSecret) {
+			return;
 		}
 
-		return true;
+		int hashLength = signature.indexOf('|');
+		if (hashLength < 0) {
+			hashLength = signature.length();
+		} else {
+			// Partial signature: only the listed fields are signed.
+			List<String> fields = Arrays.asList(signature.substring(hashLength + 1).split(","));
+			engine.begin();
+			response.get().forEach((k, v) -> {
+				if (isPartialField(k, fields)) {
+					engine.add(k, v);
+				}
+			});
+		}
+
+		if (!engine.matches(secretBytes(secret, engine), signature, hashLength)) {
+			// Signature doesn't match the response (secrets differ or the response was altered)
+			throw new RuntimeException("Incorrectly signed response from Payment Gateway (3)");
+		}
+	}
+
+	/// <summary>
+	/// The UTF-8 bytes of secret. This Gateway's own secret is encoded once,
+	/// when the Gateway is created; others use the engine's cache.
+	/// </summary>
+	private byte[] secretBytes(String secret, SignatureEngine engine) {
+		if (secret == null) {
+			return null;
+		}
+		return secret.equals(merchantSecret) ? merchantSecretBytes : engine.secretBytes(secret);
+	}
+
+	/// <summary>
+	/// Whether the field called name is covered by a partial signature over
+	/// the listed fields.
+	/// </summary>
+	private static boolean isPartialField(String name, List<String> partial) {
+		if (partial.contains(name)) {
+			return true;
+		}
+		int prefixLength = FieldCompare.prefixLength(name);
+		return prefixLength < name.length() && partial.contains(name.substring(0, prefixLength));
 	}
 
 	/// <summary>
@@ -378,11 +1372,14 @@ public class Gateway {
 	/// value="{dictionaryValue}" />`
 	/// </returns>
 	public static String fieldToHtml(String name, Map<String, String> value) {
-		StringBuilder sb = new StringBuilder();
-
+		int size = 0;
 		for (Map.Entry<String, String> entry : value.entrySet()) {
+			size += fieldSize(name, entry.getKey(), entry.getValue());
+		}
 
-			sb.append(fieldToHtml(name + "[" + entry.getKey() + "]", entry.getValue()));
+		StringBuilder sb = new StringBuilder(size);
+		for (Map.Entry<String, String> entry : value.entrySet()) {
+			appendField(sb, name, entry.getKey(), entry.getValue());
 		}
 
 		return sb.toString();
@@ -395,7 +1392,48 @@ public class Gateway {
 	/// String with the format `<input type="hidden" name="{name}" value="{value}"/>`
 	/// </returns>
 	public static String fieldToHtml(String name, String value) {
-		value = StringEscapeUtils.escapeHtml4(value);
-		return String.format("<input type=\"hidden\" name=\"%s\" value=\"%s\" />\n", name, value);
+		StringBuilder sb = new StringBuilder(fieldSize(name, null, value));
+		appendField(sb, name, null, value);
+		return sb.toString();
+	}
+
+	private static final String FIELD_START = "<input type=\"hidden\" name=\"";
+	private static final String FIELD_VALUE = "\" value=\"";
+	private static final String FIELD_END = "\" />\n";
+
+	/// <summary>
+	/// Write a hidden form field to out, with name and value escaped. If key
+	/// is not null the field is named name[key].
+	/// </summary>
+	static void appendField(Appendable out, String name, String key, String value) throws IOException {
+		out.append(FIELD_START);
+		HtmlEscaper.escape(name, out);
+		if (key != null) {
+			out.append('[');
+			HtmlEscaper.escape(key, out);
+			out.append(']');
+		}
+		out.append(FIELD_VALUE);
+		HtmlEscaper.escape(value, out);
+		out.append(FIELD_END);
+	}
+
+	private static void appendField(StringBuilder out, String name, String key, String value) {
+		try {
+			appendField((Appendable) out, name, key, value);
+		} catch (IOException e) {
+			// StringBuilder never throws.
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/// <summary>
+	/// Length of a hidden form field, allowing for a few escapes.
+	/// </summary>
+	static int fieldSize(String name, String key, String value) {
+		return FIELD_START.length() + FIELD_VALUE.length() + FIELD_END.length() + 16
+				+ (name == null ? 4 : name.length())
+				+ (key == null ? 0 : key.length() + 2)
+				+ (value == null ? 4 : value.length());
 	}
 }
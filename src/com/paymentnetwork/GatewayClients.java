@@ -0,0 +1,355 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.io.LeaseRequest;
+import org.apache.hc.client5.http.nio.AsyncConnectionEndpoint;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/// <summary>
+/// The pooled HTTP clients used to send Direct API requests, with the
+/// settings and concurrency limit they share.
+///
+/// A Gateway normally has its own; the Gateways of a MerchantRegistry all
+/// share the registry's, so every merchant uses one connection pool.
+/// </summary>
+final class GatewayClients {
+	private final HttpHost proxy;
+	private final ConnectionConfig connectionConfig;
+
+	// Created on first use so that Gateways used only for hosted forms never
+	// start a connection pool.
+	private volatile CloseableHttpClient httpClient;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private volatile CloseableHttpAsyncClient httpAsyncClient;
+	private PoolingAsyncClientConnectionManager asyncConnectionManager;
+	private final RequestConfig defaultRequestConfig;
+	private final GatewayMetrics metrics;
+	private final RequestJournal journal;
+	private final DirectEndpoints directEndpoints;
+	private final RequestLimiter asyncLimiter;
+	private ScheduledExecutorService timer;
+	private boolean closed;
+
+	/// <summary>
+	/// proxyUrl, when provided, is used for all requests.
+	/// </summary>
+	GatewayClients(ConnectionConfig connectionConfig, String proxyUrl) {
+		this.connectionConfig = connectionConfig == null ? new ConnectionConfig() : connectionConfig;
+		this.asyncLimiter = new RequestLimiter(this.connectionConfig.getMaxConcurrentRequests());
+		this.metrics = this.connectionConfig.getMetrics();
+		this.journal = this.connectionConfig.getJournal();
+		this.directEndpoints = this.connectionConfig.getDirectEndpoints();
+		this.defaultRequestConfig = RequestConfig.custom()
+				.setConnectTimeout(this.connectionConfig.getConnectTimeout())
+				.setResponseTimeout(this.connectionConfig.getResponseTimeout())
+				.setConnectionRequestTimeout(this.connectionConfig.getConnectionRequestTimeout())
+				.setConnectionKeepAlive(this.connectionConfig.getKeepAlive())
+				.build();
+
+		if (proxyUrl == null || proxyUrl.isEmpty()) {
+			this.proxy = null;
+		} else {
+			try {
+				this.proxy = HttpHost.create(proxyUrl);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("Invalid proxyUrl: " + proxyUrl, e);
+			}
+		}
+
+		if (metrics != GatewayMetrics.NONE) {
+			metrics.bindConnectionPool(this::getAllConnectionPoolStats);
+		}
+	}
+
+	GatewayMetrics getMetrics() {
+		return metrics;
+	}
+
+	/// <summary>
+	/// The journal requests are recorded in, or null.
+	/// </summary>
+	RequestJournal getJournal() {
+		return journal;
+	}
+
+	/// <summary>
+	/// The endpoints requests are routed between, or null.
+	/// </summary>
+	DirectEndpoints getDirectEndpoints() {
+		return directEndpoints;
+	}
+
+	RequestConfig getDefaultRequestConfig() {
+		return defaultRequestConfig;
+	}
+
+	/// <summary>
+	/// Limits the number of asynchronous requests in flight.
+	/// </summary>
+	RequestLimiter getAsyncLimiter() {
+		return asyncLimiter;
+	}
+
+	/// <summary>
+	/// A single daemon thread that aborts directRequest calls whose deadline
+	/// has passed, started on first use.
+	/// </summary>
+	synchronized ScheduledExecutorService getTimer() {
+		if (closed) {
+			throw new IllegalStateException("Gateway has been closed");
+		}
+		if (timer == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, "gateway-deadlines");
+				thread.setDaemon(true);
+				return thread;
+			});
+			// Most deadlines are cancelled when the response arrives.
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+
+	void close() throws IOException {
+		CloseableHttpClient client;
+		CloseableHttpAsyncClient asyncClient;
+		synchronized (this) {
+			closed = true;
+			client = httpClient;
+			httpClient = null;
+			asyncClient = httpAsyncClient;
+			httpAsyncClient = null;
+			if (timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+		}
+		if (client != null) {
+			client.close();
+		}
+		if (asyncClient != null) {
+			asyncClient.close(CloseMode.GRACEFUL);
+		}
+	}
+
+	PoolStats getConnectionPoolStats() {
+		synchronized (this) {
+			return connectionManager == null ? null : connectionManager.getTotalStats();
+		}
+	}
+
+	/// <summary>
+	/// The statistics of the directRequest and directRequestAsync pools
+	/// together, or null if neither has been used.
+	/// </summary>
+	private PoolStats getAllConnectionPoolStats() {
+		PoolStats stats;
+		PoolStats asyncStats;
+		synchronized (this) {
+			stats = connectionManager == null ? null : connectionManager.getTotalStats();
+			asyncStats = asyncConnectionManager == null ? null : asyncConnectionManager.getTotalStats();
+		}
+		if (stats == null || asyncStats == null) {
+			return stats == null ? asyncStats : stats;
+		}
+		return new PoolStats(stats.getLeased() + asyncStats.getLeased(), stats.getPending() + asyncStats.getPending(),
+				stats.getAvailable() + asyncStats.getAvailable(), stats.getMax() + asyncStats.getMax());
+	}
+
+	CloseableHttpClient getHttpClient() {
+		CloseableHttpClient client = httpClient;
+		if (client != null) {
+			return client;
+		}
+
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Gateway has been closed");
+			}
+			if (httpClient == null) {
+				ConnectionConfig config = connectionConfig;
+
+				if (metrics == GatewayMetrics.NONE) {
+					connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+							.setMaxConnTotal(config.getMaxConnTotal())
+							.setMaxConnPerRoute(config.getMaxConnPerRoute())
+							.setValidateAfterInactivity(config.getValidateAfterInactivity())
+							.build();
+				} else {
+					connectionManager = new TimedConnectionManager(metrics);
+					connectionManager.setMaxTotal(config.getMaxConnTotal());
+					connectionManager.setDefaultMaxPerRoute(config.getMaxConnPerRoute());
+					connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivity());
+				}
+
+				// The client's own retries would resend a POST answered with 503
+				// after a second's pause; retrying is left to ResilientGateway.
+				var builder = HttpClients.custom()
+						.setConnectionManager(connectionManager)
+						.setDefaultRequestConfig(defaultRequestConfig)
+						.disableAutomaticRetries()
+						.evictExpiredConnections()
+						.evictIdleConnections(config.getMaxIdleTime());
+
+				if (proxy != null) {
+					builder.setProxy(proxy);
+				}
+
+				httpClient = builder.build();
+			}
+			return httpClient;
+		}
+	}
+
+	CloseableHttpAsyncClient getHttpAsyncClient() {
+		CloseableHttpAsyncClient client = httpAsyncClient;
+		if (client != null) {
+			return client;
+		}
+
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Gateway has been closed");
+			}
+			if (httpAsyncClient == null) {
+				ConnectionConfig config = connectionConfig;
+
+				if (metrics == GatewayMetrics.NONE) {
+					asyncConnectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+							.setMaxConnTotal(config.getMaxConnTotal())
+							.setMaxConnPerRoute(config.getMaxConnPerRoute())
+							.setValidateAfterInactivity(config.getValidateAfterInactivity())
+							.build();
+				} else {
+					asyncConnectionManager = new TimedAsyncConnectionManager(metrics,
+							config.getValidateAfterInactivity());
+					asyncConnectionManager.setMaxTotal(config.getMaxConnTotal());
+					asyncConnectionManager.setDefaultMaxPerRoute(config.getMaxConnPerRoute());
+				}
+
+				var builder = HttpAsyncClients.custom()
+						.setConnectionManager(asyncConnectionManager)
+						.setDefaultRequestConfig(defaultRequestConfig)
+						.disableAutomaticRetries()
+						.setIOReactorConfig(IOReactorConfig.custom()
+								.setIoThreadCount(config.getIoThreadCount())
+								.setSoTimeout(config.getResponseTimeout())
+								.build())
+						.setVersionPolicy(config.isHttp2Enabled()
+								? HttpVersionPolicy.NEGOTIATE
+								: HttpVersionPolicy.FORCE_HTTP_1)
+						.evictExpiredConnections()
+						.evictIdleConnections(config.getMaxIdleTime());
+
+				if (proxy != null) {
+					builder.setProxy(proxy);
+				}
+
+				httpAsyncClient = builder.build();
+				httpAsyncClient.start();
+			}
+			return httpAsyncClient;
+		}
+	}
+
+	/// <summary>
+	/// A connection pool reporting how long each lease takes.
+	/// </summary>
+	private static final class TimedConnectionManager extends PoolingHttpClientConnectionManager {
+		private final GatewayMetrics metrics;
+
+		TimedConnectionManager(GatewayMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public LeaseRequest lease(String id, HttpRoute route, Timeout requestTimeout, Object state) {
+			long start = System.nanoTime();
+			LeaseRequest lease = super.lease(id, route, requestTimeout, state);
+			return new LeaseRequest() {
+				@Override
+				public ConnectionEndpoint get(Timeout timeout)
+						throws InterruptedException, ExecutionException, TimeoutException {
+					try {
+						return lease.get(timeout);
+					} finally {
+						metrics.recordPhase(GatewayMetrics.Phase.CONNECTION_LEASE, System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return lease.cancel();
+				}
+			};
+		}
+	}
+
+	/// <summary>
+	/// A non-blocking connection pool reporting how long each lease takes.
+	/// </summary>
+	private static final class TimedAsyncConnectionManager extends PoolingAsyncClientConnectionManager {
+		private final GatewayMetrics metrics;
+
+		TimedAsyncConnectionManager(GatewayMetrics metrics, TimeValue validateAfterInactivity) {
+			this.metrics = metrics;
+			setValidateAfterInactivity(validateAfterInactivity);
+		}
+
+		@Override
+		public Future<AsyncConnectionEndpoint> lease(String id, HttpRoute route, Object state, Timeout requestTimeout,
+				FutureCallback<AsyncConnectionEndpoint> callback) {
+			long start = System.nanoTime();
+			return super.lease(id, route, state, requestTimeout, new FutureCallback<AsyncConnectionEndpoint>() {
+				@Override
+				public void completed(AsyncConnectionEndpoint endpoint) {
+					metrics.recordPhase(GatewayMetrics.Phase.CONNECTION_LEASE, System.nanoTime() - start);
+					if (callback != null) {
+						callback.completed(endpoint);
+					}
+				}
+
+				@Override
+				public void failed(Exception e) {
+					metrics.recordPhase(GatewayMetrics.Phase.CONNECTION_LEASE, System.nanoTime() - start);
+					if (callback != null) {
+						callback.failed(e);
+					}
+				}
+
+				@Override
+				public void cancelled() {
+					if (callback != null) {
+						callback.cancelled();
+					}
+				}
+			});
+		}
+	}
+}
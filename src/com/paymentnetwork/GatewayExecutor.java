@@ -0,0 +1,241 @@
+package com.paymentnetwork;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// <summary>
+/// Runs blocking directRequest calls on their own threads, so that many
+/// requests can be in flight at once with plain blocking code.
+///
+/// On JDK 21 and later each request runs on a virtual thread, which costs
+/// little more than the request itself, so tens of thousands of requests
+/// can wait on the gateway at the same time. On earlier JDKs, or when
+/// platform threads are asked for, each request runs on a pooled platform
+/// thread instead.
+///
+/// A semaphore limits the number of requests being sent at once, to
+/// protect the gateway and the network path to it; further requests wait
+/// for a permit. Requests are sent through the Gateway's pooled
+/// connections, so ConnectionConfig.setMaxConnPerRoute should allow as many
+/// connections as the limit, or requests will also wait for a connection.
+///
+/// Closing the executor waits for submitted requests to finish but does not
+/// close the Gateway.
+/// </summary>
+public class GatewayExecutor implements AutoCloseable {
+	private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+	private final Gateway gateway;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxConcurrentRequests;
+	private final boolean virtual;
+
+	/// <summary>
+	/// Create an executor sending at most maxConcurrentRequests requests at
+	/// once through gateway, using virtual threads if the JDK has them.
+	/// </summary>
+	public GatewayExecutor(Gateway gateway, int maxConcurrentRequests) {
+		this(gateway, maxConcurrentRequests, isVirtualThreadSupported());
+	}
+
+	/// <summary>
+	/// As GatewayExecutor(gateway, maxConcurrentRequests), choosing between
+	/// virtual and platform threads. Throws UnsupportedOperationException if
+	/// virtual threads are asked for but the JDK does not have them.
+	/// </summary>
+	public GatewayExecutor(Gateway gateway, int maxConcurrentRequests, boolean useVirtualThreads) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+		}
+		if (useVirtualThreads && VIRTUAL_THREADS == null) {
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+		}
+
+		this.gateway = gateway;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.permits = new Semaphore(maxConcurrentRequests);
+		this.virtual = useVirtualThreads;
+		if (useVirtualThreads) {
+			this.executor = newThreadPerTaskExecutor(VIRTUAL_THREADS);
+		} else {
+			// Threads beyond the limit would only wait for a permit.
+			this.executor = Executors.newFixedThreadPool(maxConcurrentRequests, platformThreadFactory());
+		}
+	}
+
+	/// <summary>
+	/// Whether this JDK supports virtual threads.
+	/// </summary>
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_THREADS != null;
+	}
+
+	/// <summary>
+	/// Whether this executor runs requests on virtual threads.
+	/// </summary>
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/// <summary>
+	/// Number of requests being sent now.
+	/// </summary>
+	public int getActiveRequests() {
+		return maxConcurrentRequests - permits.availablePermits();
+	}
+
+	/// <summary>
+	/// Send request through Gateway.directRequest on its own thread. The
+	/// returned future completes with the verified response, or exceptionally
+	/// if the request fails.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public CompletableFuture<Map<String, String>> submit(Map<String, String> request, Map<String, String> options) {
+		return submit(() -> gateway.directRequest(request, options));
+	}
+
+	/// <summary>
+	/// As submit(Map, Map), for a GatewayRequest.
+	/// </summary>
+	public CompletableFuture<Map<String, String>> submit(GatewayRequest request, Map<String, String> options) {
+		return submit(() -> gateway.directRequest(request, options));
+	}
+
+	/// <summary>
+	/// Send every request, at most getMaxConcurrentRequests() at a time, and
+	/// wait for them all to finish. The results are in the same order as
+	/// requests; a request that fails has a result holding its error.
+	/// </summary>
+	/// <param name="requests"> Request data for each request </params>
+	/// <param name="options"> Not currently used </params>
+	public List<BatchResult> invokeAll(List<? extends Map<String, String>> requests, Map<String, String> options)
+			throws InterruptedException {
+		List<String> transactionUniques = new ArrayList<String>(requests.size());
+		List<CompletableFuture<Map<String, String>>> futures = new ArrayList<CompletableFuture<Map<String, String>>>(
+				requests.size());
+		for (Map<String, String> request : requests) {
+			transactionUniques.add(request.get("transactionUnique"));
+			futures.add(submit(request, options));
+		}
+
+		List<BatchResult> results = new ArrayList<BatchResult>(futures.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(new BatchResult(i, transactionUniques.get(i), futures.get(i).get(), null));
+			} catch (ExecutionException e) {
+				results.add(new BatchResult(i, transactionUniques.get(i), null, e.getCause()));
+			}
+		}
+		return results;
+	}
+
+	/// <summary>
+	/// Stop accepting requests and wait for those submitted to finish. If the
+	/// calling thread is interrupted while waiting, it returns at once with
+	/// its interrupt status set, leaving the requests to finish on their own.
+	/// </summary>
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				// Requests are bounded by the Gateway's timeouts.
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private interface Call {
+		Map<String, String> call() throws Exception;
+	}
+
+	private CompletableFuture<Map<String, String>> submit(Call call) {
+		CompletableFuture<Map<String, String>> result = new CompletableFuture<Map<String, String>>();
+		try {
+			executor.execute(() -> {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					result.completeExceptionally(e);
+					return;
+				}
+				Map<String, String> response;
+				try {
+					response = call.call();
+				} catch (Throwable e) {
+					permits.release();
+					result.completeExceptionally(e);
+					return;
+				}
+				// Release first, so the permit is free once the caller sees
+				// the result.
+				permits.release();
+				result.complete(response);
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new IllegalStateException("GatewayExecutor has been closed", e));
+		}
+		return result;
+	}
+
+	private static ThreadFactory platformThreadFactory() {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, "gateway-executor-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/// <summary>
+	/// Executors.newThreadPerTaskExecutor(factory), which only exists on JDKs
+	/// with virtual threads.
+	/// </summary>
+	private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later", e);
+		}
+	}
+
+	/// <summary>
+	/// Thread.ofVirtual().name(...).factory(), looked up reflectively so the
+	/// SDK still builds and runs on JDKs without virtual threads; null there.
+	/// </summary>
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "gateway-executor-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			// Preview feature not enabled.
+			return null;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// JUnit 4 style, unlike its neighbours, so that the virtual thread tests are
+// reported as skipped on JDKs without them rather than passing silently.
+public class GatewayExecutorTest {
+
+	private static List<HashMap<String, String>> requests(int count) {
+		var requests = new ArrayList<HashMap<String, String>>();
+		for (int i = 0; i < count; i++) {
+			requests.add(GatewayUtils.getInitialForm());
+		}
+		return requests;
+	}
+
+	// Test that invokeAll returns results in request order and respects the
+	// concurrency limit.
+	@Test
+	public void testInvokeAll() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(10).start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null);
+				var executor = new GatewayExecutor(gTest, 8)) {
+
+			var requests = requests(40);
+			requests.get(7).remove("action");
+
+			var results = executor.invokeAll(requests, null);
+
+			assertEquals(40, results.size());
+			for (int i = 0; i < results.size(); i++) {
+				var result = results.get(i);
+				assertEquals(i, result.getIndex());
+				assertEquals(requests.get(i).get("transactionUnique"), result.getTransactionUnique());
+				if (i == 7) {
+					assertEquals("Request must contain an 'action'", result.getError().getMessage());
+				} else {
+					assertEquals(result.getTransactionUnique(), result.getResponse().get("transactionUnique"));
+				}
+			}
+
+			assertEquals(39, simulator.getRequestCount());
+			assertTrue(simulator.getMaxConcurrentRequests() <= 8);
+			assertEquals(0, executor.getActiveRequests());
+		}
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		try (var gTest = new Gateway("100856", "Circle4Take40Idea", null, null, null)) {
+			var executor = new GatewayExecutor(gTest, 1, false);
+			executor.close();
+
+			var future = executor.submit(GatewayUtils.getInitialForm(), null);
+			assertTrue(future.isCompletedExceptionally());
+		}
+	}
+
+	@Test
+	public void testVirtualThreadsRequireSupport() throws Exception {
+		Assume.assumeFalse(GatewayExecutor.isVirtualThreadSupported());
+		try (var gTest = new Gateway("100856", "Circle4Take40Idea", null, null, null)) {
+			new GatewayExecutor(gTest, 1, true);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			assertEquals("Virtual threads require JDK 21 or later", e.getMessage());
+		}
+	}
+
+	private static final int LOAD_COUNT = 1000;
+	private static final int LOAD_LIMIT = 200;
+	private static final int LOAD_LATENCY = 50;
+
+	// Load test: many slow requests in flight at once on platform threads.
+	@Test
+	public void testLoad() throws Exception {
+		load(false);
+	}
+
+	// Load test: the same load on virtual threads, which shouldn't be much
+	// slower than on platform threads.
+	@Test
+	public void testLoadOnVirtualThreads() throws Exception {
+		Assume.assumeTrue("Virtual threads require JDK 21 or later", GatewayExecutor.isVirtualThreadSupported());
+
+		long platform = load(false);
+		long virtual = load(true);
+
+		assertTrue("virtual threads took " + TimeUnit.NANOSECONDS.toMillis(virtual) + " ms, platform threads "
+				+ TimeUnit.NANOSECONDS.toMillis(platform) + " ms", virtual < platform * 2);
+	}
+
+	private static long load(boolean useVirtualThreads) throws Exception {
+		var config = new ConnectionConfig().setMaxConnTotal(LOAD_LIMIT).setMaxConnPerRoute(LOAD_LIMIT);
+		var requests = requests(LOAD_COUNT);
+
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(LOAD_LATENCY).start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null, config)) {
+			long start = System.nanoTime();
+			List<BatchResult> results;
+			try (var executor = new GatewayExecutor(gTest, LOAD_LIMIT, useVirtualThreads)) {
+				results = executor.invokeAll(requests, null);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			for (var result : results) {
+				assertTrue(result.toString(), result.isSuccess());
+			}
+			assertTrue(simulator.getMaxConcurrentRequests() <= LOAD_LIMIT);
+
+			// Sent one at a time, the requests would take count * latency; many
+			// in flight at once, a small fraction of that.
+			long serial = TimeUnit.MILLISECONDS.toNanos((long) LOAD_COUNT * LOAD_LATENCY);
+			assertTrue((useVirtualThreads ? "virtual" : "platform") + " threads took "
+					+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms", elapsed < serial / 10);
+			return elapsed;
+		}
+	}
+}
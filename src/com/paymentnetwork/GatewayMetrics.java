@@ -0,0 +1,80 @@
+package com.paymentnetwork;
+
+import java.util.function.Supplier;
+
+import org.apache.hc.core5.pool.PoolStats;
+
+/// <summary>
+/// Receives measurements of Direct API requests, for reporting to whatever
+/// metrics system the integration uses. Set one with
+/// ConnectionConfig.setMetrics; GatewayStatistics is a ready-made
+/// implementation.
+///
+/// Every method has an empty default, so implementations only override the
+/// measurements they want. Methods are called on the threads making and
+/// completing requests, often concurrently, and should return quickly.
+///
+/// When no metrics are set (NONE), the Gateway doesn't read the clock or
+/// make any of these calls.
+/// </summary>
+public interface GatewayMetrics {
+
+	/// <summary>
+	/// The stages of a Direct API request.
+	/// </summary>
+	enum Phase {
+		/// Checking the request and adding the Gateway's defaults.
+		PREPARE,
+		/// Computing the request signature.
+		SIGN,
+		/// Waiting for a free slot under ConnectionConfig's
+		/// maxConcurrentRequests (directRequestAsync only).
+		QUEUE,
+		/// Waiting for a pooled connection (included in EXCHANGE).
+		CONNECTION_LEASE,
+		/// Sending the request and receiving the response.
+		EXCHANGE,
+		/// Decoding the response.
+		PARSE,
+		/// Checking the response signature.
+		VERIFY
+	}
+
+	/// <summary>
+	/// Metrics that ignore everything.
+	/// </summary>
+	GatewayMetrics NONE = new GatewayMetrics() {
+	};
+
+	/// <summary>
+	/// A phase of a request took nanos nanoseconds.
+	/// </summary>
+	default void recordPhase(Phase phase, long nanos) {
+	}
+
+	/// <summary>
+	/// A verified response was received for a request with the given
+	/// action, nanos nanoseconds after the request was made.
+	/// </summary>
+	default void recordResponse(String action, String responseCode, long nanos) {
+	}
+
+	/// <summary>
+	/// A request failed during phase.
+	/// </summary>
+	default void recordError(Phase phase, Throwable error) {
+	}
+
+	/// <summary>
+	/// A request timed out during phase.
+	/// </summary>
+	default void recordTimeout(Phase phase) {
+	}
+
+	/// <summary>
+	/// Called once for each connection pool reporting to these metrics, with
+	/// a supplier of its current statistics.
+	/// </summary>
+	default void bindConnectionPool(Supplier<PoolStats> stats) {
+	}
+}
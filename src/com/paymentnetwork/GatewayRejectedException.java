@@ -0,0 +1,16 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+
+/// <summary>
+/// Thrown by a ResilientGateway when it refuses to send a request, because
+/// its circuit breaker is open or its bulkhead is full. The request was not
+/// sent, so it can safely be sent again later.
+/// </summary>
+public class GatewayRejectedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public GatewayRejectedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,305 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+
+/// <summary>
+/// An immutable Gateway request.
+///
+/// Unlike a Map request, a GatewayRequest is never modified by the Gateway:
+/// directRequest and HostedRequest derive the fields they send from it, so
+/// one request, for example a template holding the fields common to every
+/// transaction for a merchant, can be shared between threads and reused.
+///
+/// The fields are held in two arrays in the order they are signed in (see
+/// FieldCompare), with nested fields in the order they were first set. The
+/// signature can therefore be computed without reordering them.
+///
+/// Requests are created with a Builder. toBuilder() derives a new request
+/// from an existing one, sharing its fields until the first change:
+///
+///     GatewayRequest template = GatewayRequest.builder()
+///         .set("merchantID", "100001")
+///         .set("countryCode", "826")
+///         .set("currencyCode", "826")
+///         .build();
+///
+///     GatewayRequest sale = template.toBuilder()
+///         .set("action", "SALE")
+///         .set("amount", "1001")
+///         .build();
+/// </summary>
+public final class GatewayRequest {
+	private static final String[] NONE = new String[0];
+	private static final GatewayRequest EMPTY = new GatewayRequest(NONE, NONE);
+
+	private final String[] names;
+	private final String[] values;
+
+	private GatewayRequest(String[] names, String[] values) {
+		this.names = names;
+		this.values = values;
+	}
+
+	/// <summary>
+	/// A builder for a new, empty request.
+	/// </summary>
+	public static Builder builder() {
+		return new Builder(EMPTY);
+	}
+
+	/// <summary>
+	/// A request holding the fields of request.
+	/// </summary>
+	public static GatewayRequest of(Map<String, String> request) {
+		return builder().setAll(request).build();
+	}
+
+	/// <summary>
+	/// A builder for a request starting with the fields of this one. This
+	/// request is unchanged, whatever is done with the builder.
+	/// </summary>
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	/// <summary>
+	/// Number of fields in the request.
+	/// </summary>
+	public int size() {
+		return names.length;
+	}
+
+	/// <summary>
+	/// Name of the field at index, in signing order.
+	/// </summary>
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/// <summary>
+	/// Value of the field at index, in signing order.
+	/// </summary>
+	public String getValue(int index) {
+		return values[index];
+	}
+
+	/// <summary>
+	/// Value of the named field, or null if it is not set.
+	/// </summary>
+	public String get(String name) {
+		int index = indexOf(names, names.length, name);
+		return index < 0 ? null : values[index];
+	}
+
+	public boolean containsKey(String name) {
+		return indexOf(names, names.length, name) >= 0;
+	}
+
+	/// <summary>
+	/// The fields as a new map, in signing order.
+	/// </summary>
+	public Map<String, String> toMap() {
+		Map<String, String> map = new LinkedHashMap<String, String>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			map.put(names[i], values[i]);
+		}
+		return map;
+	}
+
+	/// <summary>
+	/// The fields as a new list, in signing order, ready to be posted.
+	/// </summary>
+	List<NameValuePair> toNameValuePairs() {
+		List<NameValuePair> list = new ArrayList<NameValuePair>(names.length + 1);
+		for (int i = 0; i < names.length; i++) {
+			list.add(new BasicNameValuePair(names[i], values[i]));
+		}
+		return list;
+	}
+
+	/// <summary>
+	/// Index of the named field among the first count names, or -1.
+	///
+	/// The group of fields sharing name's prefix is found by binary search
+	/// and then searched for the exact name.
+	/// </summary>
+	private static int indexOf(String[] names, int count, String name) {
+		int prefix = FieldCompare.prefixLength(name);
+		for (int i = lowerBound(names, count, name, prefix); i < count; i++) {
+			if (FieldCompare.compare(names[i], FieldCompare.prefixLength(names[i]), name, prefix) != 0) {
+				break;
+			}
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/// <summary>
+	/// Index of the first of the first count names not ordered before name.
+	/// </summary>
+	private static int lowerBound(String[] names, int count, String name, int prefix) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (FieldCompare.compare(names[mid], FieldCompare.prefixLength(names[mid]), name, prefix) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/// <summary>
+	/// Index of the first of the first count names ordered after name, where a
+	/// new field of that name is inserted.
+	/// </summary>
+	private static int upperBound(String[] names, int count, String name, int prefix) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (FieldCompare.compare(names[mid], FieldCompare.prefixLength(names[mid]), name, prefix) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/// <summary>
+	/// Builds a GatewayRequest, keeping the fields in signing order as they
+	/// are set. A builder created by toBuilder() shares its request's fields
+	/// and only copies them when first changed, so a builder that changes
+	/// nothing builds the original request.
+	///
+	/// Builders are not thread safe, but the requests they build are.
+	/// </summary>
+	public static final class Builder {
+		private GatewayRequest source;
+		private String[] names;
+		private String[] values;
+		private int count;
+
+		private Builder(GatewayRequest source) {
+			this.source = source;
+			this.names = source.names;
+			this.values = source.values;
+			this.count = source.names.length;
+		}
+
+		/// <summary>
+		/// Set a field, replacing any existing value.
+		/// </summary>
+		public Builder set(String name, String value) {
+			if (name == null) {
+				throw new NullPointerException("Field name must be provided.");
+			}
+			if (value == null) {
+				throw new NullPointerException("Value must be provided for " + name);
+			}
+
+			int index = indexOf(names, count, name);
+			if (index >= 0) {
+				if (!values[index].equals(value)) {
+					copy(0);
+					values[index] = value;
+				}
+				return this;
+			}
+
+			copy(1);
+			int insert = upperBound(names, count, name, FieldCompare.prefixLength(name));
+			System.arraycopy(names, insert, names, insert + 1, count - insert);
+			System.arraycopy(values, insert, values, insert + 1, count - insert);
+			names[insert] = name;
+			values[insert] = value;
+			count++;
+			return this;
+		}
+
+		/// <summary>
+		/// Set the nested fields name[key] for each entry of value.
+		/// </summary>
+		public Builder set(String name, Map<String, String> value) {
+			for (Map.Entry<String, String> entry : value.entrySet()) {
+				set(name + "[" + entry.getKey() + "]", entry.getValue());
+			}
+			return this;
+		}
+
+		/// <summary>
+		/// Set every field in fields.
+		/// </summary>
+		public Builder setAll(Map<String, String> fields) {
+			for (Map.Entry<String, String> entry : fields.entrySet()) {
+				set(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		/// <summary>
+		/// Remove a field. Does nothing if it is not set.
+		/// </summary>
+		public Builder remove(String name) {
+			int index = indexOf(names, count, name);
+			if (index >= 0) {
+				copy(0);
+				System.arraycopy(names, index + 1, names, index, count - index - 1);
+				System.arraycopy(values, index + 1, values, index, count - index - 1);
+				count--;
+				names[count] = null;
+				values[count] = null;
+			}
+			return this;
+		}
+
+		/// <summary>
+		/// Value of the named field, or null if it is not set.
+		/// </summary>
+		public String get(String name) {
+			int index = indexOf(names, count, name);
+			return index < 0 ? null : values[index];
+		}
+
+		public boolean containsKey(String name) {
+			return indexOf(names, count, name) >= 0;
+		}
+
+		public GatewayRequest build() {
+			if (source == null) {
+				source = new GatewayRequest(Arrays.copyOf(names, count), Arrays.copyOf(values, count));
+			}
+			return source;
+		}
+
+		/// <summary>
+		/// Make the arrays private to this builder, with room for extra more
+		/// fields, before they are changed.
+		/// </summary>
+		private void copy(int extra) {
+			if (source != null) {
+				// Shared with the request being derived from, or unchanged
+				// since the last build.
+				int size = Math.max(count + Math.max(extra, 4), 8);
+				names = Arrays.copyOf(names, size);
+				values = Arrays.copyOf(values, size);
+				source = null;
+			} else if (count + extra > names.length) {
+				names = Arrays.copyOf(names, names.length * 2);
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+		}
+	}
+}
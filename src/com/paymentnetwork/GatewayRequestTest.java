@@ -0,0 +1,134 @@
+package com.paymentnetwork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class GatewayRequestTest extends TestCase {
+
+	private static List<String> names(GatewayRequest request) {
+		var names = new ArrayList<String>();
+		for (int i = 0; i < request.size(); i++) {
+			names.add(request.getName(i));
+		}
+		return names;
+	}
+
+	@Test
+	public void testFieldsAreInSigningOrder() {
+		var request = GatewayRequest.builder()
+				.set("b[2]", "x")
+				.set("amount", "1001")
+				.set("b", "y")
+				.set("a", "1")
+				.set("b[1]", "z")
+				.set("action", "SALE")
+				.build();
+
+		assertEquals(List.of("a", "action", "amount", "b[2]", "b", "b[1]"), names(request));
+		assertEquals("1001", request.get("amount"));
+		assertEquals("z", request.get("b[1]"));
+		assertNull(request.get("b[3]"));
+		assertFalse(request.containsKey("c"));
+	}
+
+	// Signing a request's fields in place matches signing them from a map in
+	// the order they were set.
+	@Test
+	public void testMatchesSignatureOfMap() {
+		var random = new Random(11);
+		String[] names = { "a", "b", "ab", "a[x]", "a[y]", "b[1]", "card", "cardNumber", "threeDSDetails[version]" };
+
+		for (int n = 0; n < 500; n++) {
+			var map = new LinkedHashMap<String, String>();
+			int size = random.nextInt(names.length);
+			for (int i = 0; i < size; i++) {
+				map.put(names[random.nextInt(names.length)], Integer.toString(random.nextInt(100)));
+			}
+
+			var fields = new ArrayList<NameValuePair>();
+			map.forEach((name, value) -> fields.add(new BasicNameValuePair(name, value)));
+
+			var request = GatewayRequest.of(map);
+			assertEquals(map.size(), request.size());
+			assertEquals(SignatureEngine.sign(fields, "secret"), SignatureEngine.sign(request.toNameValuePairs(), "secret"));
+			assertEquals(map, request.toMap());
+		}
+	}
+
+	@Test
+	public void testDerivedRequestsLeaveTemplateUnchanged() {
+		var template = GatewayRequest.builder()
+				.set("merchantID", "100001")
+				.set("currencyCode", "826")
+				.build();
+
+		var sale = template.toBuilder()
+				.set("action", "SALE")
+				.set("currencyCode", "978")
+				.remove("merchantID")
+				.build();
+
+		assertEquals(List.of("currencyCode", "merchantID"), names(template));
+		assertEquals("826", template.get("currencyCode"));
+		assertEquals(List.of("action", "currencyCode"), names(sale));
+		assertEquals("978", sale.get("currencyCode"));
+
+		// Nothing changed, so nothing is copied.
+		assertSame(template, template.toBuilder().set("currencyCode", "826").remove("x").build());
+
+		var builder = template.toBuilder().set("amount", "1");
+		var first = builder.build();
+		builder.set("amount", "2");
+		assertEquals("1", first.get("amount"));
+		assertEquals("2", builder.build().get("amount"));
+	}
+
+	@Test
+	public void testNestedFields() {
+		var address = new LinkedHashMap<String, String>();
+		address.put("line1", "1 High St");
+		address.put("town", "Leeds");
+
+		var request = GatewayRequest.builder().set("customerAddress", address).set("action", "SALE").build();
+
+		assertEquals(List.of("action", "customerAddress[line1]", "customerAddress[town]"), names(request));
+	}
+
+	@Test
+	public void testRejectsNulls() {
+		try {
+			GatewayRequest.builder().set("a", (String) null);
+			fail();
+		} catch (NullPointerException e) {
+			assertEquals("Value must be provided for a", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testHostedRequestDoesNotModifyRequest() {
+		var gateway = new Gateway("100001", null, null, null, null);
+		var map = new HashMap<String, String>();
+		map.put("action", "SALE");
+		map.put("amount", "1001");
+		map.put("redirectURL", "https://shop.example.com/");
+		map.put("responseCode", "0");
+		map.put("hostedUrl", "https://other.example.com/");
+
+		var request = GatewayRequest.of(map);
+		String form = gateway.HostedRequest(request, null);
+
+		assertEquals(GatewayRequest.of(map).toMap(), request.toMap());
+		assertEquals(gateway.HostedRequest(new HashMap<String, String>(map), null).length(), form.length());
+		assertTrue(form.contains("name=\"merchantID\" value=\"100001\""));
+		assertFalse(form.contains("responseCode"));
+	}
+}
@@ -0,0 +1,333 @@
+package com.paymentnetwork;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/// <summary>
+/// A verified Direct API response, as returned by Gateway.directResponse.
+///
+/// The fields are held in two arrays in the order they were received, with
+/// no map entries or hashing. Common numeric fields are parsed on first use
+/// and the result kept, so reading getResponseCode() or getAmount()
+/// repeatedly costs nothing after the first time:
+///
+///     GatewayResponse response = gateway.directResponse(request, null);
+///     if (response.getResponseCode() == 0) {
+///         long captured = response.getAmount();
+///         ...
+///     }
+///
+/// Nested fields such as 'threeDSDetails[version]' are read as a group:
+///
+///     GatewayResponse details = response.getGroup("threeDSDetails");
+///     String version = details.get("version");
+///
+/// asMap() adapts the response to a read-only Map for existing code, and
+/// toMap() copies it into the mutable map directRequest would have
+/// returned.
+///
+/// A GatewayResponse is not changed once it has been returned. Gateways
+/// don't repeat a field; if one is repeated, get() returns its last value,
+/// and asMap() and toMap() hold it once, where it first appeared, with that
+/// value. size(), getName() and getValue() still count each repeat.
+/// </summary>
+public final class GatewayResponse {
+	private static final int UNPARSED_INT = Integer.MIN_VALUE;
+	private static final long UNPARSED_LONG = Long.MIN_VALUE;
+
+	private String[] names;
+	private String[] values;
+	private int count;
+
+	private volatile int responseCode = UNPARSED_INT;
+	private volatile long amount = UNPARSED_LONG;
+	private Map<String, String> map;
+
+	/// <summary>
+	/// An empty response, to which the decoded fields are added.
+	/// </summary>
+	GatewayResponse() {
+		this(new String[32], new String[32], 0);
+	}
+
+	private GatewayResponse(String[] names, String[] values, int count) {
+		this.names = names;
+		this.values = values;
+		this.count = count;
+	}
+
+	/// <summary>
+	/// Add a field while the response is being decoded.
+	/// </summary>
+	void add(String name, String value) {
+		if (count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+		names[count] = name;
+		values[count] = value;
+		count++;
+	}
+
+	/// <summary>
+	/// Number of fields in the response.
+	/// </summary>
+	public int size() {
+		return count;
+	}
+
+	/// <summary>
+	/// Name of the field at index, in the order received.
+	/// </summary>
+	public String getName(int index) {
+		checkIndex(index);
+		return names[index];
+	}
+
+	/// <summary>
+	/// Value of the field at index, in the order received.
+	/// </summary>
+	public String getValue(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	/// <summary>
+	/// Value of the named field, or null if it is not set.
+	/// </summary>
+	public String get(String name) {
+		int index = indexOf(name);
+		return index < 0 ? null : values[index];
+	}
+
+	public boolean containsKey(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	/// <summary>
+	/// The responseCode, 0 for success, or -1 if there is none.
+	/// </summary>
+	public int getResponseCode() {
+		int code = responseCode;
+		if (code == UNPARSED_INT) {
+			// Racing threads parse the same value.
+			code = getInt("responseCode", -1);
+			responseCode = code;
+		}
+		return code;
+	}
+
+	public String getResponseMessage() {
+		return get("responseMessage");
+	}
+
+	/// <summary>
+	/// The amount, in the currency's minor unit, or -1 if there is none.
+	/// </summary>
+	public long getAmount() {
+		long value = amount;
+		if (value == UNPARSED_LONG) {
+			value = getLong("amount", -1);
+			amount = value;
+		}
+		return value;
+	}
+
+	/// <summary>
+	/// The named field as an int, or defaultValue if it is not set.
+	/// Throws a NumberFormatException if it is not an integer.
+	/// </summary>
+	public int getInt(String name, int defaultValue) {
+		String value = get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/// <summary>
+	/// The named field as a long, or defaultValue if it is not set.
+	/// Throws a NumberFormatException if it is not an integer.
+	/// </summary>
+	public long getLong(String name, long defaultValue) {
+		String value = get(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	/// <summary>
+	/// The fields nested under name, as a response of their own. Each field
+	/// 'name[key]' appears as 'key', and 'name[key][sub]' as 'key[sub]', so
+	/// deeper groups can be read with getGroup in turn. The group is empty if
+	/// there are no such fields.
+	/// </summary>
+	public GatewayResponse getGroup(String name) {
+		int prefix = name.length();
+		String[] groupNames = null;
+		String[] groupValues = null;
+		int groupCount = 0;
+
+		for (int i = 0; i < count; i++) {
+			String field = names[i];
+			int close = field.indexOf(']', prefix + 1);
+			if (close < 0 || field.charAt(prefix) != '[' || !field.startsWith(name)) {
+				continue;
+			}
+
+			if (groupNames == null) {
+				groupNames = new String[count - i];
+				groupValues = new String[count - i];
+			}
+			// name[key][sub] becomes key[sub].
+			groupNames[groupCount] = field.substring(prefix + 1, close) + field.substring(close + 1);
+			groupValues[groupCount] = values[i];
+			groupCount++;
+		}
+
+		if (groupNames == null) {
+			return new GatewayResponse(new String[0], new String[0], 0);
+		}
+		return new GatewayResponse(groupNames, groupValues, groupCount);
+	}
+
+	/// <summary>
+	/// A read-only Map view of the response, in the order received.
+	/// </summary>
+	public Map<String, String> asMap() {
+		Map<String, String> view = map;
+		if (view == null) {
+			view = new MapView();
+			map = view;
+		}
+		return view;
+	}
+
+	/// <summary>
+	/// The fields as a new, mutable map, in the order received.
+	/// </summary>
+	public Map<String, String> toMap() {
+		Map<String, String> rtn = new LinkedHashMap<String, String>(count * 4 / 3 + 1);
+		for (int i = 0; i < count; i++) {
+			rtn.put(names[i], values[i]);
+		}
+		return rtn;
+	}
+
+	@Override
+	public String toString() {
+		return asMap().toString();
+	}
+
+	private int indexOf(String name) {
+		// Searched from the end so that a repeated field reads as its last
+		// value, as it would in a map.
+		for (int i = count - 1; i >= 0; i--) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + count + " fields");
+		}
+	}
+
+	private final class MapView extends AbstractMap<String, String> {
+		// Built when the view is first sized or iterated, since reading
+		// single fields through it doesn't need it.
+		private volatile Index index;
+
+		private Index index() {
+			Index built = index;
+			if (built == null) {
+				// Racing threads build the same index.
+				built = new Index();
+				index = built;
+			}
+			return built;
+		}
+
+		@Override
+		public String get(Object key) {
+			return key instanceof String ? GatewayResponse.this.get((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && GatewayResponse.this.containsKey((String) key);
+		}
+
+		@Override
+		public int size() {
+			return index().keys.length;
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public int size() {
+					return index().keys.length;
+				}
+
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					Index index = index();
+					int[] keys = index.keys;
+					int[] entries = index.entries;
+					return new Iterator<Entry<String, String>>() {
+						private int next;
+
+						@Override
+						public boolean hasNext() {
+							return next < keys.length;
+						}
+
+						@Override
+						public Entry<String, String> next() {
+							if (next >= keys.length) {
+								throw new NoSuchElementException();
+							}
+							Entry<String, String> entry = new SimpleImmutableEntry<String, String>(names[keys[next]],
+									values[entries[next]]);
+							next++;
+							return entry;
+						}
+					};
+				}
+			};
+		}
+	}
+
+	private final class Index {
+		// For each distinct name, in the order first received: the index of
+		// its first appearance, and of its last value.
+		final int[] keys;
+		final int[] entries;
+
+		Index() {
+			int[] first = new int[count];
+			int[] last = new int[count];
+			Map<String, Integer> slots = new HashMap<String, Integer>(count * 4 / 3 + 1);
+			int distinct = 0;
+			for (int i = 0; i < count; i++) {
+				Integer slot = slots.putIfAbsent(names[i], distinct);
+				if (slot == null) {
+					first[distinct] = i;
+					last[distinct] = i;
+					distinct++;
+				} else {
+					last[slot] = i;
+				}
+			}
+			keys = distinct == count ? first : Arrays.copyOf(first, distinct);
+			entries = distinct == count ? last : Arrays.copyOf(last, distinct);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.paymentnetwork;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class GatewayResponseTest extends TestCase {
+
+	private static final String SECRET = "Circle4Take40Idea";
+
+	/// <summary>
+	/// A signed response body holding fields.
+	/// </summary>
+	private static byte[] body(List<NameValuePair> fields) {
+		List<NameValuePair> signed = new ArrayList<NameValuePair>(fields);
+		signed.add(new BasicNameValuePair("signature", new Gateway(null, SECRET, null, null, null).sign(fields, SECRET)));
+		return URLEncodedUtils.format(signed, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<NameValuePair> threeDSFields() {
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		fields.add(new BasicNameValuePair("responseCode", "65802"));
+		fields.add(new BasicNameValuePair("responseMessage", "3DS AUTHENTICATION REQUIRED"));
+		fields.add(new BasicNameValuePair("amount", "1001"));
+		fields.add(new BasicNameValuePair("threeDSDetails[version]", "2.1.0"));
+		fields.add(new BasicNameValuePair("threeDSRef", "ref"));
+		fields.add(new BasicNameValuePair("threeDSDetails[acs][name]", "Test ACS"));
+		fields.add(new BasicNameValuePair("threeDSRequest[creq]", "creq"));
+		return fields;
+	}
+
+	// Test that the view holds the same fields, in the same order, as the map
+	// directRequest returns, and parses the common fields.
+	@Test
+	public void testMatchesMap() throws Exception {
+		var gateway = new Gateway("100856", SECRET, null, null, null);
+		byte[] body = body(threeDSFields());
+
+		Map<String, String> map = gateway.parseDirectResponse(new ByteArrayInputStream(body), SECRET);
+		GatewayResponse response = gateway.parseDirectResponseView(new ByteArrayInputStream(body), SECRET);
+
+		assertEquals(map, response.asMap());
+		assertEquals(new ArrayList<String>(map.keySet()), new ArrayList<String>(response.asMap().keySet()));
+		assertEquals(map, response.toMap());
+		assertEquals(7, response.size());
+		assertFalse(response.containsKey("signature"));
+
+		assertEquals(65802, response.getResponseCode());
+		assertEquals(1001, response.getAmount());
+		assertEquals("3DS AUTHENTICATION REQUIRED", response.getResponseMessage());
+		assertEquals("ref", response.get("threeDSRef"));
+		assertEquals("threeDSDetails[version]", response.getName(3));
+		assertNull(response.get("xref"));
+		assertEquals(-1, response.getInt("xref", -1));
+
+		try {
+			response.getInt("responseMessage", 0);
+			Assert.fail();
+		} catch (NumberFormatException e) {
+			// Expected
+		}
+
+		try {
+			response.asMap().put("xref", "1");
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	// Test that a repeated field appears once in the map view, with its last
+	// value, as it does in the map directRequest returns.
+	@Test
+	public void testRepeatedField() throws Exception {
+		var gateway = new Gateway("100856", SECRET, null, null, null);
+		List<NameValuePair> fields = threeDSFields();
+		fields.add(new BasicNameValuePair("responseMessage", "REPEATED"));
+		byte[] body = body(fields);
+
+		Map<String, String> map = gateway.parseDirectResponse(new ByteArrayInputStream(body), SECRET);
+		GatewayResponse response = gateway.parseDirectResponseView(new ByteArrayInputStream(body), SECRET);
+
+		assertEquals(8, response.size());
+		assertEquals(7, response.asMap().size());
+		assertEquals("REPEATED", response.get("responseMessage"));
+		assertEquals(map, response.asMap());
+		assertEquals(response.asMap(), map);
+		assertEquals(map.hashCode(), response.asMap().hashCode());
+		assertEquals(new ArrayList<String>(map.keySet()), new ArrayList<String>(response.asMap().keySet()));
+		assertEquals(7, new HashMap<String, String>(response.asMap()).size());
+		assertEquals(map, response.toMap());
+	}
+
+	// Test reading nested fields as groups, including a group within a group.
+	@Test
+	public void testGroups() throws Exception {
+		var gateway = new Gateway("100856", SECRET, null, null, null);
+		GatewayResponse response = gateway.parseDirectResponseView(new ByteArrayInputStream(body(threeDSFields())),
+				SECRET);
+
+		GatewayResponse details = response.getGroup("threeDSDetails");
+		assertEquals(2, details.size());
+		assertEquals("2.1.0", details.get("version"));
+		assertEquals("Test ACS", details.get("acs[name]"));
+		assertEquals("Test ACS", details.getGroup("acs").get("name"));
+
+		assertEquals("creq", response.getGroup("threeDSRequest").get("creq"));
+		assertEquals(0, response.getGroup("threeDS").size());
+		assertEquals(0, response.getGroup("responseCode").size());
+	}
+
+	// Test that the view is verified as the map is.
+	@Test
+	public void testVerifiesSignature() throws Exception {
+		var gateway = new Gateway("100856", SECRET, null, null, null);
+		List<NameValuePair> fields = threeDSFields();
+		byte[] body = body(fields);
+		String tampered = new String(body, StandardCharsets.UTF_8).replace("amount=1001", "amount=9999");
+
+		try {
+			gateway.parseDirectResponseView(new ByteArrayInputStream(tampered.getBytes(StandardCharsets.UTF_8)),
+					SECRET);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+		}
+
+		byte[] unsigned = URLEncodedUtils.format(fields, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+		try {
+			gateway.parseDirectResponseView(new ByteArrayInputStream(unsigned), SECRET);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			assertEquals("Incorrectly signed response from Payment Gateway (2)", e.getMessage());
+		}
+	}
+
+	// Test directResponse against the simulator.
+	@Test
+	public void testDirectResponse() throws Exception {
+		HashMap<String, String> params = GatewayUtils.getInitialForm();
+
+		try (var simulator = new GatewaySimulator(SECRET).start();
+				var gateway = new Gateway("100856", SECRET, simulator.getDirectUrl(), null, null)) {
+			GatewayResponse response = gateway.directResponse(GatewayRequest.of(params), null);
+
+			assertEquals(0, response.getResponseCode());
+			assertEquals(Long.parseLong(params.get("amount")), response.getAmount());
+			assertEquals(params.get("transactionUnique"), response.get("transactionUnique"));
+		}
+	}
+}
@@ -0,0 +1,481 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.apache.hc.core5.testing.classic.ClassicTestServer;
+
+/// <summary>
+/// Local stand-in for the Gateway Direct API, for exercising and load
+/// testing directRequest without network access.
+///
+/// The simulator listens on a free local port; point a Gateway's directUrl
+/// at getDirectUrl(). Each request's signature is checked with the same
+/// algorithm the Gateway signs with, and every request is answered with a
+/// signed response echoing its merchantID, action, amount and
+/// transactionUnique:
+///
+/// - a correctly signed request is approved, with responseCode 0;
+/// - a request with a missing or incorrect signature is refused with
+///   RC_INVALID_SIGNATURE;
+/// - with setThreeDSRequired, a request with a threeDSRedirectURL gets a
+///   65802 '3DS AUTHENTICATION REQUIRED' response holding a threeDSRef,
+///   and is approved when that threeDSRef is sent back with the
+///   threeDSResponse fields. Only the most recent challenges not yet
+///   completed are remembered, see setMaxPendingThreeDS.
+///
+/// The simulator can also add latency, answer at no more than a given rate,
+/// and inject faults at random, to see how an integration behaves when the
+/// Gateway is slow, saturated or failing.
+/// </summary>
+public class GatewaySimulator implements AutoCloseable {
+	public static final String RC_SUCCESS = "0";
+	public static final String RC_DECLINED = "5";
+	public static final String RC_3DS_AUTHENTICATION_REQUIRED = "65802";
+	/// Simulator responseCode for requests with a missing or incorrect signature.
+	public static final String RC_INVALID_SIGNATURE = "66343";
+	/// Simulator responseCode for a threeDSRef that is unknown or already used.
+	public static final String RC_INVALID_3DS_REF = "66344";
+
+	/// <summary>
+	/// Ways the simulator can fail a request, see setFaultRate.
+	/// </summary>
+	public enum Fault {
+		/// Answer with HTTP 503 Service Unavailable.
+		HTTP_ERROR,
+		/// Close the connection without answering.
+		DISCONNECT,
+		/// Answer with a response signed with the wrong secret.
+		BAD_SIGNATURE,
+		/// Decline the transaction with responseCode 5.
+		DECLINE
+	}
+
+	private static final List<String> ECHOED = Arrays.asList("merchantID", "action", "amount", "transactionUnique");
+
+	private final String secret;
+	private final Gateway signer;
+	private final ClassicTestServer server;
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong xref = new AtomicLong();
+	private final Set<SocketAddress> clientEndpoints = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	// Oldest first; guarded by itself.
+	private final LinkedHashMap<String, List<NameValuePair>> pendingThreeDS = new LinkedHashMap<String, List<NameValuePair>>();
+	private final Map<Fault, LongAdder> faultCounts = new EnumMap<Fault, LongAdder>(Fault.class);
+	private final LongAdder rejectedCount = new LongAdder();
+	private final Random random = new Random();
+
+	private volatile long minLatencyMillis;
+	private volatile long maxLatencyMillis;
+	private volatile boolean threeDSRequired;
+	private volatile int maxPendingThreeDS = 10000;
+	private volatile double[] faultRates = new double[Fault.values().length];
+	private volatile long intervalNanos;
+	private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+
+	/// <summary>
+	/// Create a simulator checking and signing with secret, or neither if
+	/// secret is null.
+	/// </summary>
+	public GatewaySimulator(String secret) {
+		this.secret = secret;
+		this.signer = new Gateway(null, secret, null, null, null);
+		for (Fault fault : Fault.values()) {
+			faultCounts.put(fault, new LongAdder());
+		}
+		// A deep accept backlog so that load tests opening many connections
+		// at once aren't refused.
+		this.server = new ClassicTestServer(SocketConfig.custom().setBacklogSize(1024).build());
+		this.server.registerHandler("*", this::handle);
+	}
+
+	public GatewaySimulator start() throws IOException {
+		server.start();
+		return this;
+	}
+
+	/// <summary>
+	/// Delay every response by the given number of milliseconds.
+	/// </summary>
+	public GatewaySimulator setLatency(long latencyMillis) {
+		return setLatency(latencyMillis, latencyMillis);
+	}
+
+	/// <summary>
+	/// Delay each response by a random number of milliseconds between
+	/// minMillis and maxMillis.
+	/// </summary>
+	public GatewaySimulator setLatency(long minMillis, long maxMillis) {
+		if (minMillis < 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException("Latency must be at least 0 and minMillis no more than maxMillis");
+		}
+		this.minLatencyMillis = minMillis;
+		this.maxLatencyMillis = maxMillis;
+		return this;
+	}
+
+	/// <summary>
+	/// Whether requests with a threeDSRedirectURL need 3DS authentication.
+	/// </summary>
+	public GatewaySimulator setThreeDSRequired(boolean threeDSRequired) {
+		this.threeDSRequired = threeDSRequired;
+		return this;
+	}
+
+	/// <summary>
+	/// Remember at most maxPending 3DS challenges not yet completed, so that
+	/// abandoned challenges don't accumulate during long runs. Beyond it the
+	/// oldest is forgotten, and its threeDSRef is refused with
+	/// RC_INVALID_3DS_REF. Defaults to 10,000.
+	/// </summary>
+	public GatewaySimulator setMaxPendingThreeDS(int maxPending) {
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending must be at least 1");
+		}
+		this.maxPendingThreeDS = maxPending;
+		return this;
+	}
+
+	/// <summary>
+	/// Fail the given fraction of requests, from 0 to 1, with fault. The
+	/// rates of all faults together must not exceed 1.
+	/// </summary>
+	public GatewaySimulator setFaultRate(Fault fault, double rate) {
+		double[] rates = faultRates.clone();
+		rates[fault.ordinal()] = rate;
+		double total = 0;
+		for (double r : rates) {
+			total += r;
+		}
+		if (rate < 0 || total > 1) {
+			throw new IllegalArgumentException("Fault rates must be at least 0 and total no more than 1");
+		}
+		faultRates = rates;
+		return this;
+	}
+
+	/// <summary>
+	/// Answer no more than requestsPerSecond requests a second, as a gateway
+	/// at full capacity would. Requests arriving faster wait their turn, so
+	/// their latency grows. Zero, the default, removes the cap.
+	/// </summary>
+	public GatewaySimulator setMaxRequestsPerSecond(double requestsPerSecond) {
+		if (requestsPerSecond < 0) {
+			throw new IllegalArgumentException("requestsPerSecond must be at least 0");
+		}
+		this.intervalNanos = requestsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		return this;
+	}
+
+	/// <summary>
+	/// Seed the random choice of latency and faults, to repeat a run.
+	/// </summary>
+	public GatewaySimulator setSeed(long seed) {
+		random.setSeed(seed);
+		return this;
+	}
+
+	public String getDirectUrl() {
+		return "http://localhost:" + server.getPort() + "/direct/";
+	}
+
+	/// <summary>
+	/// Number of requests received so far.
+	/// </summary>
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/// <summary>
+	/// Number of requests refused for a missing or incorrect signature.
+	/// </summary>
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/// <summary>
+	/// Number of requests failed with fault.
+	/// </summary>
+	public long getFaultCount(Fault fault) {
+		return faultCounts.get(fault).sum();
+	}
+
+	/// <summary>
+	/// Number of 3DS challenges remembered and not yet completed.
+	/// </summary>
+	public int getPendingThreeDSCount() {
+		synchronized (pendingThreeDS) {
+			return pendingThreeDS.size();
+		}
+	}
+
+	/// <summary>
+	/// Number of distinct client connections that have sent requests.
+	/// </summary>
+	public int getConnectionCount() {
+		return clientEndpoints.size();
+	}
+
+	/// <summary>
+	/// Highest number of requests being handled at the same time.
+	/// </summary>
+	public int getMaxConcurrentRequests() {
+		return maxInFlight.get();
+	}
+
+	@Override
+	public void close() {
+		server.shutdown(CloseMode.GRACEFUL);
+	}
+
+	private void handle(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context)
+			throws HttpException, IOException {
+		requestCount.incrementAndGet();
+		clientEndpoints.add(HttpCoreContext.adapt(context).getEndpointDetails().getRemoteAddress());
+
+		maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+		try {
+			awaitSlot();
+			delay();
+			respond(request, response);
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/// <summary>
+	/// Wait for this request's turn under the throughput cap. Each request
+	/// takes the next free slot, intervalNanos after the previous one.
+	/// </summary>
+	private void awaitSlot() throws InterruptedIOException {
+		long interval = intervalNanos;
+		if (interval == 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long slot;
+		while (true) {
+			long next = nextSlot.get();
+			slot = next - now > 0 ? next : now;
+			if (nextSlot.compareAndSet(next, slot + interval)) {
+				break;
+			}
+		}
+		sleep(TimeUnit.NANOSECONDS.toMillis(slot - now));
+	}
+
+	private void delay() throws InterruptedIOException {
+		long min = minLatencyMillis;
+		long max = maxLatencyMillis;
+		if (max > 0) {
+			long spread = max - min;
+			sleep(spread == 0 ? min : min + (long) (random.nextDouble() * (spread + 1)));
+		}
+	}
+
+	private static void sleep(long millis) throws InterruptedIOException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted");
+		}
+	}
+
+	/// <summary>
+	/// The fault to inject into this request, or null.
+	/// </summary>
+	private Fault chooseFault() {
+		double[] rates = faultRates;
+		double roll = random.nextDouble();
+		for (Fault fault : Fault.values()) {
+			roll -= rates[fault.ordinal()];
+			if (roll < 0) {
+				return fault;
+			}
+		}
+		return null;
+	}
+
+	private void respond(ClassicHttpRequest request, ClassicHttpResponse response) throws HttpException, IOException {
+		String body = EntityUtils.toString(request.getEntity(), StandardCharsets.UTF_8);
+		List<NameValuePair> fields = URLEncodedUtils.parse(body, StandardCharsets.UTF_8);
+
+		Fault fault = chooseFault();
+		if (fault != null) {
+			faultCounts.get(fault).increment();
+			if (fault == Fault.HTTP_ERROR) {
+				response.setCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+				response.setEntity(new StringEntity("Service Unavailable", ContentType.TEXT_PLAIN));
+				return;
+			} else if (fault == Fault.DISCONNECT) {
+				// The server closes the connection when a handler fails with
+				// an IOException.
+				throw new IOException("Simulated disconnect");
+			}
+		}
+
+		List<NameValuePair> reply = new ArrayList<NameValuePair>();
+
+		if (!hasValidSignature(fields)) {
+			rejectedCount.increment();
+			reply.add(new BasicNameValuePair("responseCode", RC_INVALID_SIGNATURE));
+			reply.add(new BasicNameValuePair("responseMessage", "INVALID SIGNATURE"));
+			echo(fields, reply);
+		} else if (fault == Fault.DECLINE) {
+			reply.add(new BasicNameValuePair("responseCode", RC_DECLINED));
+			reply.add(new BasicNameValuePair("responseMessage", "DECLINED"));
+			echo(fields, reply);
+		} else if (find(fields, "threeDSRef") != null) {
+			continueThreeDS(fields, reply);
+		} else if (threeDSRequired && find(fields, "threeDSRedirectURL") != null) {
+			requireThreeDS(fields, reply);
+		} else {
+			approve(fields, reply);
+		}
+
+		if (secret != null) {
+			String signWith = fault == Fault.BAD_SIGNATURE ? secret + "-wrong" : secret;
+			reply.add(new BasicNameValuePair("signature", signer.sign(reply, signWith)));
+		}
+
+		response.setCode(HttpStatus.SC_OK);
+		response.setEntity(new StringEntity(URLEncodedUtils.format(reply, StandardCharsets.UTF_8),
+				ContentType.APPLICATION_FORM_URLENCODED));
+	}
+
+	/// <summary>
+	/// Check the request's signature as the Gateway does, including partial
+	/// signatures ('{signature}|{field,list}').
+	/// </summary>
+	private boolean hasValidSignature(List<NameValuePair> fields) {
+		if (secret == null) {
+			return true;
+		}
+
+		String signature = null;
+		List<NameValuePair> signed = new ArrayList<NameValuePair>(fields.size());
+		for (NameValuePair field : fields) {
+			if (field.getName().equals("signature")) {
+				signature = field.getValue();
+			} else {
+				signed.add(field);
+			}
+		}
+		if (signature == null || signature.isEmpty()) {
+			return false;
+		}
+
+		int bar = signature.indexOf('|');
+		List<String> partial = bar < 0 ? null : Arrays.asList(signature.substring(bar + 1).split(","));
+		String expected = signer.sign(signed, secret, partial);
+
+		return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+				signature.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private void approve(List<NameValuePair> fields, List<NameValuePair> reply) {
+		reply.add(new BasicNameValuePair("responseCode", RC_SUCCESS));
+		reply.add(new BasicNameValuePair("responseMessage", "AUTHCODE:12345"));
+		reply.add(new BasicNameValuePair("xref", "SIM" + xref.incrementAndGet()));
+		echo(fields, reply);
+	}
+
+	private void requireThreeDS(List<NameValuePair> fields, List<NameValuePair> reply) {
+		String threeDSRef = "SIM3DS" + xref.incrementAndGet();
+		// Only the echoed fields are needed to answer the continuation.
+		List<NameValuePair> echoed = new ArrayList<NameValuePair>();
+		echo(fields, echoed);
+		synchronized (pendingThreeDS) {
+			pendingThreeDS.put(threeDSRef, echoed);
+			Iterator<List<NameValuePair>> oldest = pendingThreeDS.values().iterator();
+			while (pendingThreeDS.size() > maxPendingThreeDS) {
+				oldest.next();
+				oldest.remove();
+			}
+		}
+
+		reply.add(new BasicNameValuePair("responseCode", RC_3DS_AUTHENTICATION_REQUIRED));
+		reply.add(new BasicNameValuePair("responseMessage", "3DS AUTHENTICATION REQUIRED"));
+		echo(fields, reply);
+		reply.add(new BasicNameValuePair("threeDSRef", threeDSRef));
+		reply.add(new BasicNameValuePair("threeDSURL", getDirectUrl() + "acs/"));
+		reply.add(new BasicNameValuePair("threeDSRequest[creq]", threeDSRef));
+		reply.add(new BasicNameValuePair("threeDSDetails[version]", "2.1.0"));
+		reply.add(new BasicNameValuePair("threeDSEnrolled", "Y"));
+	}
+
+	/// <summary>
+	/// Complete a transaction that required 3DS authentication, answering for
+	/// the original request. Each threeDSRef can be used once.
+	/// </summary>
+	private void continueThreeDS(List<NameValuePair> fields, List<NameValuePair> reply) {
+		List<NameValuePair> original;
+		synchronized (pendingThreeDS) {
+			original = pendingThreeDS.remove(find(fields, "threeDSRef"));
+		}
+		if (original == null) {
+			reply.add(new BasicNameValuePair("responseCode", RC_INVALID_3DS_REF));
+			reply.add(new BasicNameValuePair("responseMessage", "INVALID THREEDSREF"));
+			echo(fields, reply);
+			return;
+		}
+
+		approve(original, reply);
+		reply.add(new BasicNameValuePair("threeDSAuthenticated", "Y"));
+	}
+
+	private static void echo(List<NameValuePair> fields, List<NameValuePair> reply) {
+		for (NameValuePair field : fields) {
+			if (ECHOED.contains(field.getName())) {
+				reply.add(field);
+			}
+		}
+	}
+
+	private static String find(List<NameValuePair> fields, String name) {
+		for (NameValuePair field : fields) {
+			if (field.getName().equals(name)) {
+				return field.getValue();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,218 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class GatewaySimulatorTest extends TestCase {
+
+	/// <summary>
+	/// Post fields to the simulator as they are, returning the response
+	/// fields unverified.
+	/// </summary>
+	private static Map<String, String> post(GatewaySimulator simulator, List<NameValuePair> fields)
+			throws IOException {
+		try (var client = HttpClients.createDefault()) {
+			var httpPost = new HttpPost(simulator.getDirectUrl());
+			httpPost.setEntity(new UrlEncodedFormEntity(fields, StandardCharsets.UTF_8));
+			try (var response = client.execute(httpPost)) {
+				Map<String, String> rtn = new HashMap<String, String>();
+				for (NameValuePair field : URLEncodedUtils.parse(EntityUtils.toString(response.getEntity()),
+						StandardCharsets.UTF_8)) {
+					rtn.put(field.getName(), field.getValue());
+				}
+				return rtn;
+			} catch (org.apache.hc.core5.http.ParseException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	// Test that requests signed with the wrong secret, or not at all, are
+	// refused, including partially signed requests that have been altered.
+	@Test
+	public void testValidatesRequestSignature() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var wrongSecret = new Gateway("100856", "OtherSecret", simulator.getDirectUrl(), null, null)) {
+
+			// The response is signed with the simulator's secret, so it fails
+			// verification too.
+			try {
+				wrongSecret.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (RuntimeException e) {
+				assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+			}
+
+			List<NameValuePair> fields = new ArrayList<NameValuePair>();
+			fields.add(new BasicNameValuePair("action", "SALE"));
+			fields.add(new BasicNameValuePair("amount", "1001"));
+			assertEquals(GatewaySimulator.RC_INVALID_SIGNATURE, post(simulator, fields).get("responseCode"));
+			assertEquals(2, simulator.getRejectedCount());
+
+			var signer = new Gateway(null, "Circle4Take40Idea", null, null, null);
+			fields.add(new BasicNameValuePair("signature",
+					signer.sign(fields, "Circle4Take40Idea", Arrays.asList("action"))));
+
+			// Only the action is signed, so the amount may change but the action
+			// may not.
+			assertEquals(GatewaySimulator.RC_SUCCESS, post(simulator, fields).get("responseCode"));
+			fields.set(1, new BasicNameValuePair("amount", "2002"));
+			assertEquals(GatewaySimulator.RC_SUCCESS, post(simulator, fields).get("responseCode"));
+			fields.set(0, new BasicNameValuePair("action", "REFUND"));
+			assertEquals(GatewaySimulator.RC_INVALID_SIGNATURE, post(simulator, fields).get("responseCode"));
+		}
+	}
+
+	// Test the 3DS flow: authentication is required, and each threeDSRef
+	// completes its transaction once.
+	@Test
+	public void testThreeDSFlow() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setThreeDSRequired(true).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			HashMap<String, String> params = GatewayUtils.getInitialForm();
+			var response = gateway.directRequest(params, null);
+			assertEquals(GatewaySimulator.RC_3DS_AUTHENTICATION_REQUIRED, response.get("responseCode"));
+			assertNotNull(response.get("threeDSURL"));
+			assertNotNull(response.get("threeDSRequest[creq]"));
+
+			var continuation = new HashMap<String, String>();
+			continuation.put("action", "SALE");
+			continuation.put("threeDSRef", response.get("threeDSRef"));
+			continuation.put("threeDSResponse[cres]", "simulated");
+
+			response = gateway.directRequest(new HashMap<String, String>(continuation), null);
+			assertEquals(GatewaySimulator.RC_SUCCESS, response.get("responseCode"));
+			assertEquals("1001", response.get("amount"));
+			assertEquals(params.get("transactionUnique"), response.get("transactionUnique"));
+
+			response = gateway.directRequest(new HashMap<String, String>(continuation), null);
+			assertEquals(GatewaySimulator.RC_INVALID_3DS_REF, response.get("responseCode"));
+			assertEquals(0, simulator.getPendingThreeDSCount());
+
+			// Without a threeDSRedirectURL no authentication is asked for.
+			params = GatewayUtils.getInitialForm();
+			params.remove("threeDSRedirectURL");
+			assertEquals(GatewaySimulator.RC_SUCCESS, gateway.directRequest(params, null).get("responseCode"));
+		}
+	}
+
+	// Test that abandoned 3DS challenges are forgotten, oldest first.
+	@Test
+	public void testBoundsPendingThreeDS() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setThreeDSRequired(true)
+				.setMaxPendingThreeDS(2).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			List<String> threeDSRefs = new ArrayList<String>();
+			for (int n = 0; n < 3; n++) {
+				threeDSRefs.add(gateway.directRequest(GatewayUtils.getInitialForm(), null).get("threeDSRef"));
+			}
+			assertEquals(2, simulator.getPendingThreeDSCount());
+
+			for (int n = 0; n < 3; n++) {
+				var continuation = new HashMap<String, String>();
+				continuation.put("action", "SALE");
+				continuation.put("threeDSRef", threeDSRefs.get(n));
+				continuation.put("threeDSResponse[cres]", "simulated");
+				assertEquals(n == 0 ? GatewaySimulator.RC_INVALID_3DS_REF : GatewaySimulator.RC_SUCCESS,
+						gateway.directRequest(continuation, null).get("responseCode"));
+			}
+			assertEquals(0, simulator.getPendingThreeDSCount());
+		}
+	}
+
+	// Test that each kind of fault reaches the caller as it would from a
+	// failing gateway.
+	@Test
+	public void testFaults() throws Exception {
+		var config = new ConnectionConfig().setResponseTimeout(5, TimeUnit.SECONDS);
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						config)) {
+
+			simulator.setFaultRate(GatewaySimulator.Fault.DECLINE, 1);
+			assertEquals(GatewaySimulator.RC_DECLINED,
+					gateway.directRequest(GatewayUtils.getInitialForm(), null).get("responseCode"));
+
+			simulator.setFaultRate(GatewaySimulator.Fault.DECLINE, 0)
+					.setFaultRate(GatewaySimulator.Fault.BAD_SIGNATURE, 1);
+			try {
+				gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (RuntimeException e) {
+				assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+			}
+
+			simulator.setFaultRate(GatewaySimulator.Fault.BAD_SIGNATURE, 0)
+					.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 1);
+			try {
+				gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (HttpResponseException e) {
+				assertEquals(503, e.getStatusCode());
+			}
+
+			simulator.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 0)
+					.setFaultRate(GatewaySimulator.Fault.DISCONNECT, 1);
+			try {
+				gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (IOException e) {
+				// Connection closed without a response.
+			}
+
+			simulator.setFaultRate(GatewaySimulator.Fault.DISCONNECT, 0);
+			assertEquals(GatewaySimulator.RC_SUCCESS,
+					gateway.directRequest(GatewayUtils.getInitialForm(), null).get("responseCode"));
+
+			for (GatewaySimulator.Fault fault : GatewaySimulator.Fault.values()) {
+				assertTrue(fault.toString(), simulator.getFaultCount(fault) >= 1);
+			}
+
+			try {
+				simulator.setFaultRate(GatewaySimulator.Fault.DECLINE, 0.6)
+						.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 0.6);
+				Assert.fail();
+			} catch (IllegalArgumentException e) {
+				// Rates total more than 1.
+			}
+		}
+	}
+
+	// Test that requests beyond the throughput cap wait their turn.
+	@Test
+	public void testThroughputCap() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setMaxRequestsPerSecond(50).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			long start = System.nanoTime();
+			for (int i = 0; i < 11; i++) {
+				gateway.directRequest(GatewayUtils.getInitialForm(), null);
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			// Ten intervals of 20ms after the first request.
+			assertTrue("elapsed " + elapsed, elapsed >= 190);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.paymentnetwork;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.hc.core5.pool.PoolStats;
+
+/// <summary>
+/// GatewayMetrics that keep their own statistics: a LatencyHistogram for
+/// each phase and for whole requests, response counts by action and by
+/// responseCode, error and timeout counts by phase, and the state of the
+/// connection pools.
+///
+/// Recording never locks, so one instance can be shared by every Gateway
+/// in a service and left on in production.
+/// </summary>
+public class GatewayStatistics implements GatewayMetrics {
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+	private final Map<Phase, LongAdder> errors = new EnumMap<Phase, LongAdder>(Phase.class);
+	private final Map<Phase, LongAdder> timeouts = new EnumMap<Phase, LongAdder>(Phase.class);
+	private final LatencyHistogram requests = new LatencyHistogram();
+	private final ConcurrentHashMap<String, LongAdder> actions = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> responseCodes = new ConcurrentHashMap<String, LongAdder>();
+	private final List<Supplier<PoolStats>> pools = new CopyOnWriteArrayList<Supplier<PoolStats>>();
+
+	public GatewayStatistics() {
+		// Filled once, so the maps are only read afterwards.
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+			errors.put(phase, new LongAdder());
+			timeouts.put(phase, new LongAdder());
+		}
+	}
+
+	@Override
+	public void recordPhase(Phase phase, long nanos) {
+		phases.get(phase).record(nanos);
+	}
+
+	@Override
+	public void recordResponse(String action, String responseCode, long nanos) {
+		requests.record(nanos);
+		count(actions, action);
+		count(responseCodes, responseCode);
+	}
+
+	@Override
+	public void recordError(Phase phase, Throwable error) {
+		errors.get(phase).increment();
+	}
+
+	@Override
+	public void recordTimeout(Phase phase) {
+		timeouts.get(phase).increment();
+	}
+
+	@Override
+	public void bindConnectionPool(Supplier<PoolStats> stats) {
+		pools.add(stats);
+	}
+
+	/// <summary>
+	/// Durations of phase, in nanoseconds.
+	/// </summary>
+	public LatencyHistogram getPhase(Phase phase) {
+		return phases.get(phase);
+	}
+
+	/// <summary>
+	/// Durations of requests that received a verified response, from the
+	/// call to directRequest to the response being returned, in nanoseconds.
+	/// </summary>
+	public LatencyHistogram getRequests() {
+		return requests;
+	}
+
+	/// <summary>
+	/// Number of verified responses for each request action.
+	/// </summary>
+	public Map<String, Long> getActionCounts() {
+		return snapshot(actions);
+	}
+
+	/// <summary>
+	/// Number of verified responses with each responseCode.
+	/// </summary>
+	public Map<String, Long> getResponseCodeCounts() {
+		return snapshot(responseCodes);
+	}
+
+	/// <summary>
+	/// Number of requests that failed during phase, other than by timing out.
+	/// </summary>
+	public long getErrorCount(Phase phase) {
+		return errors.get(phase).sum();
+	}
+
+	/// <summary>
+	/// Number of requests that failed in any phase, other than by timing out.
+	/// </summary>
+	public long getErrorCount() {
+		long total = 0;
+		for (LongAdder count : errors.values()) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	/// <summary>
+	/// Number of requests that timed out during phase.
+	/// </summary>
+	public long getTimeoutCount(Phase phase) {
+		return timeouts.get(phase).sum();
+	}
+
+	/// <summary>
+	/// Number of requests that timed out in any phase.
+	/// </summary>
+	public long getTimeoutCount() {
+		long total = 0;
+		for (LongAdder count : timeouts.values()) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	/// <summary>
+	/// Connections leased, pending a lease, available and the maximum,
+	/// summed over every connection pool reporting to these statistics.
+	/// </summary>
+	public PoolStats getConnectionPoolStats() {
+		int leased = 0;
+		int pending = 0;
+		int available = 0;
+		int max = 0;
+		for (Supplier<PoolStats> pool : pools) {
+			PoolStats stats = pool.get();
+			if (stats != null) {
+				leased += stats.getLeased();
+				pending += stats.getPending();
+				available += stats.getAvailable();
+				max += stats.getMax();
+			}
+		}
+		return new PoolStats(leased, pending, available, max);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("requests: ").append(requests).append('\n');
+		for (Phase phase : Phase.values()) {
+			sb.append(phase).append(": ").append(phases.get(phase))
+					.append(" errors=").append(getErrorCount(phase))
+					.append(" timeouts=").append(getTimeoutCount(phase)).append('\n');
+		}
+		sb.append("actions: ").append(getActionCounts()).append('\n');
+		sb.append("responseCodes: ").append(getResponseCodeCounts()).append('\n');
+		sb.append("pool: ").append(getConnectionPoolStats()).append('\n');
+		return sb.toString();
+	}
+
+	private static void count(ConcurrentHashMap<String, LongAdder> counts, String key) {
+		if (key == null) {
+			key = "";
+		}
+		LongAdder count = counts.get(key);
+		if (count == null) {
+			count = counts.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder> counts) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		counts.forEach((key, count) -> snapshot.put(key, count.sum()));
+		return snapshot;
+	}
+}
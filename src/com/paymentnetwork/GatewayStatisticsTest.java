@@ -0,0 +1,92 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+
+import org.apache.hc.core5.util.Timeout;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class GatewayStatisticsTest extends TestCase {
+
+	// Test that each phase of sync and async requests is timed, and that
+	// responses are counted by action and responseCode.
+	@Test
+	public void testRecordsPhases() throws Exception {
+		var statistics = new GatewayStatistics();
+		var config = new ConnectionConfig().setMetrics(statistics);
+
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100001", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						config)) {
+
+			for (int i = 0; i < 3; i++) {
+				assertEquals("0", gateway.directRequest(GatewayUtils.getInitialForm(), null).get("responseCode"));
+			}
+			HashMap<String, String> verify = GatewayUtils.getInitialForm();
+			verify.put("action", "VERIFY");
+			assertEquals("0", gateway.directRequestAsync(verify, null).get().get("responseCode"));
+
+			assertEquals(4, statistics.getRequests().getCount());
+			assertEquals(Long.valueOf(3), statistics.getActionCounts().get("SALE"));
+			assertEquals(Long.valueOf(1), statistics.getActionCounts().get("VERIFY"));
+			assertEquals(Long.valueOf(4), statistics.getResponseCodeCounts().get("0"));
+
+			for (GatewayMetrics.Phase phase : GatewayMetrics.Phase.values()) {
+				long expected = phase == GatewayMetrics.Phase.QUEUE ? 1 : 4;
+				assertEquals(phase.toString(), expected, statistics.getPhase(phase).getCount());
+			}
+			assertTrue(statistics.getRequests().getMax() >= statistics.getPhase(GatewayMetrics.Phase.EXCHANGE)
+					.getValueAtPercentile(0));
+
+			// Both clients' pools are reported.
+			var pool = statistics.getConnectionPoolStats();
+			assertEquals(2 * config.getMaxConnTotal(), pool.getMax());
+			assertTrue(pool.getAvailable() >= 1);
+			assertEquals(0, statistics.getErrorCount());
+			assertEquals(0, statistics.getTimeoutCount());
+		}
+	}
+
+	// Test that failed requests are counted against the phase that failed.
+	@Test
+	public void testRecordsErrorsAndTimeouts() throws Exception {
+		var statistics = new GatewayStatistics();
+		var config = new ConnectionConfig().setMetrics(statistics);
+
+		try (var simulator = new GatewaySimulator("OtherSecret").start();
+				var gateway = new Gateway("100001", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						config)) {
+
+			try {
+				gateway.directRequest(new HashMap<String, String>(), null);
+				Assert.fail();
+			} catch (IllegalArgumentException e) {
+				// Missing action
+			}
+			assertEquals(1, statistics.getErrorCount(GatewayMetrics.Phase.PREPARE));
+
+			try {
+				gateway.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (RuntimeException e) {
+				assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+			}
+			assertEquals(1, statistics.getErrorCount(GatewayMetrics.Phase.VERIFY));
+
+			simulator.setLatency(500);
+			try {
+				gateway.directRequestAsync(GatewayUtils.getInitialForm(), null, Timeout.ofMilliseconds(100)).get();
+				Assert.fail();
+			} catch (Exception e) {
+				// Timed out
+			}
+			assertEquals(1, statistics.getTimeoutCount(GatewayMetrics.Phase.EXCHANGE));
+
+			assertEquals(0, statistics.getRequests().getCount());
+			assertEquals(2, statistics.getErrorCount());
+			assertEquals(1, statistics.getTimeoutCount());
+		}
+	}
+}
@@ -3,12 +3,19 @@ package com.paymentnetwork;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.hc.core5.http.NameValuePair;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.util.Timeout;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -39,7 +46,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"1eb24e703e2e1b01a4e7f9a64051e9df3151dff950bcc9e2be0bdde34e5207ec9e5e7f9a8021a781f7cc3160b7625fc6452976d574425ba36b2e71e880f8afbd"));
+				"2549909241ab5e6e28ac3a81c638baa39aa14f6e29b39bfe4c5b69c4db7c4e2569b1e5b511c24416938f8c40882b4f07818f3c3b8b917b7b41c05199a44435a4"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a", "one"));
@@ -47,7 +54,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"16fe6952cfdbf4ef0fe23b1d795c31800757c6476ff94e5d4cdc8817c3bed2a896ec30b39d65fc20aa7b95b226235c2bc8c73f0fda27958863d928ee8be1a27b"));
+				"5be970dc3b56f8c30a49e95823b6abf4c3e8d280faa9ccb42c5b8c85e822f6452819235209b0718cb6710c29ad54fadeb5c0e178c1225005dcbd277660066602"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a", "one"));
@@ -55,7 +62,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"561c514800bedb7217accce8f7e6d49d1fb4dc48c19fd51ab296f4ebcc81519da6e1da6072dd7d5c762073317cc31e6282164818fef8978f9af5984dd350659f"));
+				"c3c9e54fe0a3fa92dedc405c984a6eecf8f4d1ad990fc2398e63158f722d331d0d118bb702b8d445dc184842115a921f797582462c3148f9bf817ffafd81b849"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a", "one"));
@@ -63,7 +70,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"4b4a7636384ff9eea61952ed784907dec816f049092ac029e2a75cf78b50b78a96f5f7388d7b6c38ac686b66769463dbc954ce4aef33f1a1c66b2329f03b37cd"));
+				"d4cd98f9a903b46be7806246bb01e55167ae0e1a28e5d3110e3c17d41ff3935f88abb9e4dd00e5ae9dc2f471a1a8083b4c2e114bdcea165da2f71c377dd1b197"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a", "one"));
@@ -71,7 +78,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"dac8f232e53d16161fdf95c06ebb26b4fe15792475ff9f81bed81694607ae03d273044ef5004717586770e7675ef7c499bbff286cb76275bf4eca9ec4225fb40"));
+				"b08ab556f7392a3077f2f198e4e0c19f4bb30ff389f1f925bd3d64815526ce56aa0aa7922ffbbc28480351bb3d4d83b45e63eec7c88b1ac270a0fa944ed68ec2"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a", "one"));
@@ -79,7 +86,7 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"0fc99e4d47b13fd2f69b773aedcb84ea9e0da5e9dba20786ae23cb6c03f42e48b4ce55570b506f68930c50ccb25f6488e82c190e6938cbace87f86c0df2fc66b"));
+				"d57e7e96b69ae5c03dc469d44cecb1a40cd4d49d366f8697aeac372be3eba804ae90d7eab0d65681a4e05fc27adb3f83aabeea336118bd05c0e58e1c251791ea"));
 
 		params.clear();
 		params.add(new BasicNameValuePair("a[aa]", "12"));
@@ -90,18 +97,88 @@ public class GatewayTest extends TestCase {
 
 		result = g.sign(params, "Circle4Take40Idea");
 		assertTrue(result.equals(
-				"bda26c3f3a75d196e18eddfb7150ee055118679016048337af2716bdafae3815e851a8b10562d5f91e6c4631a07a931dfc2ebe9e7e793b8c5edd62f72307861b"));
+				"893e3ff68d72482c2b9b6dcae796da5b123a4946c09f77a15e764e403110a4717386680e80c0cb44efe190c2c1044158bad91bd8306611656d7d4ca96ea2f503"));
+	}
+
+	private static Map<String, String> signedResponse(Gateway gateway, List<String> partial) {
+		var response = new LinkedHashMap<String, String>();
+		response.put("responseCode", "65802");
+		response.put("responseMessage", "3DS AUTHENTICATION REQUIRED");
+		response.put("amount", "1001");
+		response.put("threeDSDetails[version]", "2.1.0");
+		response.put("threeDSDetails[enrolled]", "Y");
+
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		response.forEach((k, v) -> fields.add(new BasicNameValuePair(k, v)));
+		response.put("signature", gateway.sign(fields, "Circle4Take40Idea", partial));
+
+		return response;
+	}
+
+	private static void assertRejected(Gateway gateway, Map<String, String> response, String secret, String code) {
+		try {
+			gateway.VerifyResponse(response, secret);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			assertEquals("Incorrectly signed response from Payment Gateway (" + code + ")", e.getMessage());
+		}
 	}
 
-	// Test that we can actually carry out a direct request.
 	@Test
-	public void testDirectRequest() {
+	public void testVerifyResponse() {
+		var response = signedResponse(g, null);
+		assertTrue(g.VerifyResponse(response, "Circle4Take40Idea"));
+		assertFalse(response.containsKey("signature"));
+
+		var uppercase = signedResponse(g, null);
+		uppercase.put("signature", uppercase.get("signature").toUpperCase());
+		assertTrue(g.VerifyResponse(uppercase, "Circle4Take40Idea"));
+
+		var tampered = signedResponse(g, null);
+		tampered.put("amount", "1");
+		assertRejected(g, tampered, "Circle4Take40Idea", "3");
+
+		assertRejected(g, signedResponse(g, null), "WrongSecret", "3");
+		assertRejected(g, signedResponse(g, null), "", "1");
+
+		var unsigned = signedResponse(g, null);
+		unsigned.remove("signature");
+		assertRejected(g, unsigned, "Circle4Take40Idea", "2");
+
+		var truncated = signedResponse(g, null);
+		truncated.put("signature", truncated.get("signature").substring(1));
+		assertRejected(g, truncated, "Circle4Take40Idea", "3");
+	}
+
+	@Test
+	public void testVerifyPartialResponse() {
+		var partial = Arrays.asList("responseCode", "threeDSDetails");
+
+		var response = signedResponse(g, partial);
+		assertTrue(response.get("signature").endsWith("|responseCode,threeDSDetails"));
+		assertTrue(g.VerifyResponse(response, "Circle4Take40Idea"));
+
+		// Fields outside the partial signature may change.
+		var unsignedChanged = signedResponse(g, partial);
+		unsignedChanged.put("amount", "1");
+		assertTrue(g.VerifyResponse(unsignedChanged, "Circle4Take40Idea"));
+
+		// Signed fields, including nested ones, may not.
+		var signedChanged = signedResponse(g, partial);
+		signedChanged.put("threeDSDetails[version]", "1.0.2");
+		assertRejected(g, signedChanged, "Circle4Take40Idea", "3");
+	}
+
+	// Test that we can actually carry out a direct request, against a local
+	// simulator that requires 3DS authentication as the test gateway does.
+	@Test
+	public void testDirectRequest() throws Exception {
 		HashMap<String, String> params = GatewayUtils.getInitialForm();
 		params.putAll(GatewayUtils.getDebuggingBrowserData());
 
-		var gTest = new Gateway("https://gateway.example.com/direct/", "Circle4Take40Idea", null, null, null);
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setThreeDSRequired(true).start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
 
-		try {
 			// Ensure this completes without exception is a test in itself.
 			// If the server response doesn't pass a signature verification,
 			// it will throw.
@@ -110,70 +187,155 @@ public class GatewayTest extends TestCase {
 
 			// We're sending a valid transaction request which expects a
 			// '3DS Authentication Required' response, which is 65802
-			System.out.println(gatewayResponse);
 			assertEquals("65802", gatewayResponse.get("responseCode"));
 			assertEquals("3DS AUTHENTICATION REQUIRED", gatewayResponse.get("responseMessage"));
 			assertEquals("2.1.0", gatewayResponse.get("threeDSDetails[version]"));
 			assertEquals("Y", gatewayResponse.get("threeDSEnrolled"));
-		} catch (IOException e) {
-			Assert.fail();
-		} catch (URISyntaxException e) {
-			Assert.fail();
-		} catch (RuntimeException e) {
-			Assert.fail();
+
+			// Continue the transaction once the cardholder has authenticated.
+			var continuation = new HashMap<String, String>();
+			continuation.put("merchantID", "100856");
+			continuation.put("action", "SALE");
+			continuation.put("threeDSRef", gatewayResponse.get("threeDSRef"));
+			continuation.put("threeDSResponse[cres]", "simulated");
+			gatewayResponse = gTest.directRequest(continuation, options);
+
+			assertEquals("0", gatewayResponse.get("responseCode"));
+			assertEquals(params.get("transactionUnique"), gatewayResponse.get("transactionUnique"));
+		}
+	}
+
+	// Test that consecutive direct requests share one pooled connection.
+	@Test
+	public void testDirectRequestReusesConnection() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			for (int i = 0; i < 5; i++) {
+				HashMap<String, String> params = GatewayUtils.getInitialForm();
+				var gatewayResponse = gTest.directRequest(params, new HashMap<String, String>());
+
+				assertEquals("0", gatewayResponse.get("responseCode"));
+				assertEquals(params.get("transactionUnique"), gatewayResponse.get("transactionUnique"));
+			}
+
+			assertEquals(5, simulator.getRequestCount());
+			assertEquals(1, simulator.getConnectionCount());
+			assertEquals(0, gTest.getConnectionPoolStats().getLeased());
+			assertEquals(1, gTest.getConnectionPoolStats().getAvailable());
 		}
 	}
-}
 
-class GatewayUtils {
-
-	protected static HashMap<String, String> getInitialForm() {
-		var uniqid = RandomStringUtils.random(15, true, true);
-
-		HashMap<String, String> params = new HashMap<String, String>();
-
-		params.put("merchantID", "100856");
-
-		params.put("action", "SALE");
-		params.put("type", "1");
-		params.put("transactionUnique", uniqid);
-		params.put("countryCode", "826");
-		params.put("currencyCode", "826");
-		params.put("amount", "1001");
-		params.put("cardNumber", "4012001037141112");
-		params.put("cardExpiryMonth", "12");
-		params.put("cardExpiryYear", "21");
-		params.put("cardCVV", "083");
-		params.put("customerName", "Test Customer");
-		params.put("customerEmail", "test@testcustomer.com");
-		params.put("customerAddress", "16 Test Street");
-		params.put("customerPostCode", "TE15 5ST");
-		params.put("orderRef", "Test purchase");
-
-		// The following fields are mandatory for 3DS v2
-		params.put("remoteAddress", "10.10.10.10");
-		params.put("merchantCategoryCode", "5411");
-		params.put("threeDSVersion", "2");
-		params.put("threeDSRedirectURL", "https://example.net/returnUrl?acs=1"); // PLACEHOLDER
-
-		return params;
+	// Test that requests derived from a shared GatewayRequest template are
+	// sent without modifying the template.
+	@Test
+	public void testDirectRequestFromTemplate() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var template = GatewayRequest.of(GatewayUtils.getInitialForm());
+			var before = template.toMap();
+
+			for (int i = 0; i < 3; i++) {
+				var request = template.toBuilder().set("transactionUnique", "T" + i).build();
+
+				var gatewayResponse = i % 2 == 0
+						? gTest.directRequest(request, null)
+						: gTest.directRequestAsync(request, null).get();
+
+				assertEquals("0", gatewayResponse.get("responseCode"));
+				assertEquals("T" + i, gatewayResponse.get("transactionUnique"));
+			}
+
+			assertEquals(before, template.toMap());
+		}
 	}
 
-	protected static HashMap<String, String> getDebuggingBrowserData() {
-		HashMap<String, String> params = new HashMap<String, String>();
-
-		params.put("merchantID", "100856");
-		params.put("deviceChannel", "browser");
-		params.put("deviceIdentity",
-				"Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:81.0) Gecko/20100101 Firefox/81.0");
-		params.put("deviceTimeZone", "-60");
-		params.put("deviceCapabilities", "javascript");
-		params.put("deviceScreenResolution", "1920x1080x24");
-		params.put("deviceAcceptContent",
-				"text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8");
-		params.put("deviceAcceptEncoding", "gzip, deflate");
-		params.put("deviceAcceptLanguage", "en-GB");
-
-		return params;
+	// Test that a request's own directUrl and merchantSecret are used to send
+	// it and to verify the response.
+	@Test
+	public void testDirectRequestSettingsFromRequest() throws Exception {
+		try (var simulator = new GatewaySimulator("OtherSecret").start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", null, null, null)) {
+
+			HashMap<String, String> params = GatewayUtils.getInitialForm();
+			params.put("directUrl", simulator.getDirectUrl());
+			params.put("merchantSecret", "OtherSecret");
+
+			var gatewayResponse = gTest.directRequest(params, new HashMap<String, String>());
+
+			assertEquals("0", gatewayResponse.get("responseCode"));
+			assertEquals(1, simulator.getRequestCount());
+		}
+	}
+
+	// Test that a response signed with a different secret is rejected.
+	@Test
+	public void testDirectRequestRejectsBadSignature() throws Exception {
+		try (var simulator = new GatewaySimulator("AnotherSecret").start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			try {
+				gTest.directRequest(GatewayUtils.getInitialForm(), new HashMap<String, String>());
+				Assert.fail();
+			} catch (RuntimeException e) {
+				assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+			}
+		}
+	}
+
+	// Test that asynchronous requests complete, are verified and respect the
+	// concurrency limit.
+	@Test
+	public void testDirectRequestAsync() throws Exception {
+		var config = new ConnectionConfig().setMaxConcurrentRequests(4).setIoThreadCount(2);
+
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(20).start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null, config)) {
+
+			var requests = new ArrayList<HashMap<String, String>>();
+			var futures = new ArrayList<CompletableFuture<Map<String, String>>>();
+
+			for (int i = 0; i < 20; i++) {
+				HashMap<String, String> params = GatewayUtils.getInitialForm();
+				requests.add(params);
+				futures.add(gTest.directRequestAsync(params, new HashMap<String, String>()));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				var gatewayResponse = futures.get(i).get(10, TimeUnit.SECONDS);
+				assertEquals("0", gatewayResponse.get("responseCode"));
+				assertEquals(requests.get(i).get("transactionUnique"), gatewayResponse.get("transactionUnique"));
+			}
+
+			assertEquals(20, simulator.getRequestCount());
+			assertTrue(simulator.getMaxConcurrentRequests() <= 4);
+		}
+	}
+
+	// Test that an asynchronous request fails once its deadline has passed.
+	@Test
+	public void testDirectRequestAsyncTimeout() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(2000).start();
+				var gTest = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var future = gTest.directRequestAsync(GatewayUtils.getInitialForm(), new HashMap<String, String>(),
+					Timeout.ofMilliseconds(100));
+
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+		}
+	}
+
+	// Test that invalid requests fail the future rather than throwing.
+	@Test
+	public void testDirectRequestAsyncInvalidRequest() {
+		var future = g.directRequestAsync(new HashMap<String, String>(), new HashMap<String, String>());
+
+		assertTrue(future.isCompletedExceptionally());
 	}
 }
@@ -0,0 +1,58 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+
+import org.apache.commons.lang3.RandomStringUtils;
+
+class GatewayUtils {
+
+	protected static HashMap<String, String> getInitialForm() {
+		var uniqid = RandomStringUtils.random(15, true, true);
+
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		params.put("merchantID", "100856");
+
+		params.put("action", "SALE");
+		params.put("type", "1");
+		params.put("transactionUnique", uniqid);
+		params.put("countryCode", "826");
+		params.put("currencyCode", "826");
+		params.put("amount", "1001");
+		params.put("cardNumber", "4012001037141112");
+		params.put("cardExpiryMonth", "12");
+		params.put("cardExpiryYear", "21");
+		params.put("cardCVV", "083");
+		params.put("customerName", "Test Customer");
+		params.put("customerEmail", "test@testcustomer.com");
+		params.put("customerAddress", "16 Test Street");
+		params.put("customerPostCode", "TE15 5ST");
+		params.put("orderRef", "Test purchase");
+
+		// The following fields are mandatory for 3DS v2
+		params.put("remoteAddress", "10.10.10.10");
+		params.put("merchantCategoryCode", "5411");
+		params.put("threeDSVersion", "2");
+		params.put("threeDSRedirectURL", "https://example.net/returnUrl?acs=1"); // PLACEHOLDER
+
+		return params;
+	}
+
+	protected static HashMap<String, String> getDebuggingBrowserData() {
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		params.put("merchantID", "100856");
+		params.put("deviceChannel", "browser");
+		params.put("deviceIdentity",
+				"Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:81.0) Gecko/20100101 Firefox/81.0");
+		params.put("deviceTimeZone", "-60");
+		params.put("deviceCapabilities", "javascript");
+		params.put("deviceScreenResolution", "1920x1080x24");
+		params.put("deviceAcceptContent",
+				"text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8");
+		params.put("deviceAcceptEncoding", "gzip, deflate");
+		params.put("deviceAcceptLanguage", "en-GB");
+
+		return params;
+	}
+}
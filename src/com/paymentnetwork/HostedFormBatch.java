@@ -0,0 +1,272 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/// <summary>
+/// Renders hosted payment forms in bulk, for example to pre-generate the
+/// forms linked from invoice emails.
+///
+/// Requests are read from a Stream one at a time and rendered in parallel
+/// on a ForkJoinPool (the common pool unless another is set), each form
+/// being prepared, signed and written to its own stream from a
+/// HostedFormSink. At most getMaxPending() requests are read ahead of the
+/// forms written, so a batch of any size is rendered in bounded memory.
+/// The form tag and submit element are rendered once for the whole batch
+/// by its HostedFormTemplate, and each thread reuses its own buffers for
+/// rendering and encoding.
+///
+///     HostedFormBatch.Result result = new HostedFormBatch(gateway.hostedFormTemplate(options))
+///         .render(requests.stream(), HostedFormSink.toDirectory(outputDir));
+///
+/// A request that is invalid, or whose form cannot be written, is counted
+/// as failed and the batch continues. If the Stream itself fails, render
+/// waits for the forms already being rendered and then throws its
+/// exception.
+/// </summary>
+public class HostedFormBatch {
+	// Errors kept for the Result; later failures are only counted.
+	private static final int MAX_ERRORS = 1000;
+
+	private static final int MAX_CHUNK = 32;
+
+	private static final ThreadLocal<Renderer> RENDERERS = ThreadLocal.withInitial(Renderer::new);
+
+	private final HostedFormTemplate template;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private int maxPending;
+
+	public HostedFormBatch(HostedFormTemplate template) {
+		if (template == null) {
+			throw new NullPointerException("Template must be provided.");
+		}
+		this.template = template;
+	}
+
+	/// <summary>
+	/// The pool rendering the forms. The calling thread must not be one of
+	/// its workers.
+	/// </summary>
+	public HostedFormBatch setPool(ForkJoinPool pool) {
+		if (pool == null) {
+			throw new NullPointerException("Pool must be provided.");
+		}
+		this.pool = pool;
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of requests read but not yet written, by default 64
+	/// for each thread of the pool.
+	/// </summary>
+	public int getMaxPending() {
+		return maxPending > 0 ? maxPending : 64 * pool.getParallelism();
+	}
+
+	public HostedFormBatch setMaxPending(int maxPending) {
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending must be at least 1");
+		}
+		this.maxPending = maxPending;
+		return this;
+	}
+
+	/// <summary>
+	/// Render a form for each of requests to sink, returning once every form
+	/// has been written or has failed. Requests held as maps can be
+	/// converted with map(GatewayRequest::of).
+	/// </summary>
+	public Result render(Stream<GatewayRequest> requests, HostedFormSink sink) throws InterruptedException {
+		if (requests == null) {
+			throw new NullPointerException("Requests must be provided.");
+		}
+		if (sink == null) {
+			throw new NullPointerException("Sink must be provided.");
+		}
+
+		int limit = getMaxPending();
+		// Requests are handed to the pool in chunks, so that the handoff is
+		// shared by many forms, while keeping every thread busy.
+		int chunk = Math.max(1, Math.min(MAX_CHUNK, limit / (2 * pool.getParallelism())));
+		Semaphore pending = new Semaphore(limit);
+		Result result = new Result();
+
+		try {
+			Iterator<GatewayRequest> source = requests.iterator();
+			for (long index = 0;; index += chunk) {
+				// Taken before hasNext, which reads the next request.
+				pending.acquire(chunk);
+
+				GatewayRequest[] batch = new GatewayRequest[chunk];
+				int count = 0;
+				try {
+					while (count < chunk && source.hasNext()) {
+						batch[count++] = source.next();
+					}
+				} catch (RuntimeException | Error e) {
+					// The requests read so far in this chunk aren't rendered.
+					pending.release(chunk);
+					throw e;
+				}
+				pending.release(chunk - count);
+				if (count == 0) {
+					break;
+				}
+
+				long first = index;
+				int n = count;
+				try {
+					pool.execute(() -> {
+						try {
+							for (int i = 0; i < n; i++) {
+								try {
+									write(first + i, batch[i], sink);
+									result.rendered.incrementAndGet();
+								} catch (IOException | RuntimeException e) {
+									result.failed(first + i, e);
+								}
+							}
+						} finally {
+							pending.release(n);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					pending.release(n);
+					throw e;
+				}
+			}
+		} finally {
+			// Wait for the forms still being rendered.
+			pending.acquireUninterruptibly(limit);
+		}
+
+		return result;
+	}
+
+	/// <summary>
+	/// Render request in full before opening its stream, so an invalid
+	/// request leaves nothing behind.
+	/// </summary>
+	private void write(long index, GatewayRequest request, HostedFormSink sink) throws IOException {
+		Renderer renderer = RENDERERS.get();
+		StringBuilder form = renderer.begin();
+		template.render(request, form);
+
+		try (OutputStream out = sink.open(index, request)) {
+			renderer.write(form, out);
+		}
+	}
+
+	/// <summary>
+	/// A thread's buffers for rendering forms and encoding them as UTF-8.
+	/// </summary>
+	private static final class Renderer {
+		// Buffers grown beyond this by an unusually large form are dropped.
+		private static final int MAX_RETAINED = 64 * 1024;
+
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+		private StringBuilder form = new StringBuilder(4096);
+		private char[] text = new char[4096];
+
+		StringBuilder begin() {
+			if (form.capacity() > MAX_RETAINED) {
+				form = new StringBuilder(4096);
+				text = new char[4096];
+			}
+			form.setLength(0);
+			return form;
+		}
+
+		void write(StringBuilder form, OutputStream out) throws IOException {
+			// Encoded from an array, which the encoder handles far faster than
+			// a CharSequence.
+			int length = form.length();
+			if (text.length < length) {
+				text = new char[Math.max(length, text.length * 2)];
+			}
+			form.getChars(0, length, text, 0);
+			CharBuffer chars = CharBuffer.wrap(text, 0, length);
+
+			encoder.reset();
+			CoderResult coderResult;
+			do {
+				coderResult = encoder.encode(chars, bytes, true);
+				drain(out);
+			} while (coderResult.isOverflow());
+
+			while (encoder.flush(bytes).isOverflow()) {
+				drain(out);
+			}
+			drain(out);
+		}
+
+		private void drain(OutputStream out) throws IOException {
+			out.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+
+	/// <summary>
+	/// Outcome of a batch.
+	/// </summary>
+	public static final class Result {
+		private final AtomicLong rendered = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final Map<Long, Throwable> errors = new TreeMap<Long, Throwable>();
+
+		private void failed(long index, Throwable error) {
+			failed.incrementAndGet();
+			synchronized (errors) {
+				if (errors.size() < MAX_ERRORS) {
+					errors.put(index, error);
+				}
+			}
+		}
+
+		/// <summary>
+		/// Number of forms written.
+		/// </summary>
+		public long getRenderedCount() {
+			return rendered.get();
+		}
+
+		/// <summary>
+		/// Number of requests whose form could not be rendered or written.
+		/// </summary>
+		public long getFailedCount() {
+			return failed.get();
+		}
+
+		/// <summary>
+		/// Why requests failed, by their index in the batch. No more than a
+		/// thousand failures are kept.
+		/// </summary>
+		public Map<Long, Throwable> getErrors() {
+			synchronized (errors) {
+				return new TreeMap<Long, Throwable>(errors);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "rendered=" + getRenderedCount() + " failed=" + getFailedCount();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.paymentnetwork;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class HostedFormBatchTest extends TestCase {
+	private final Gateway gateway = new Gateway("100001", null, null, "https://gateway.example.com/hosted/", null);
+
+	private static GatewayRequest request(int n) {
+		return GatewayRequest.builder()
+				.set("action", "SALE")
+				.set("amount", Integer.toString(1000 + n))
+				.set("transactionUnique", "INV" + n)
+				.set("orderRef", "Invoice <" + n + "> £" + n)
+				.set("redirectURL", "https://shop.example.com/return?n=" + n)
+				.build();
+	}
+
+	// Test that each form is identical to the one rendered alone, and signed.
+	@Test
+	public void testRendersEachForm() throws Exception {
+		var template = gateway.hostedFormTemplate(null);
+		List<GatewayRequest> requests = new ArrayList<GatewayRequest>();
+		for (int n = 0; n < 200; n++) {
+			requests.add(request(n));
+		}
+
+		Map<Long, ByteArrayOutputStream> forms = new ConcurrentHashMap<Long, ByteArrayOutputStream>();
+		var result = new HostedFormBatch(template).render(requests.stream(), (index, request) -> {
+			var out = new ByteArrayOutputStream();
+			forms.put(index, out);
+			return out;
+		});
+
+		assertEquals(200, result.getRenderedCount());
+		assertEquals(0, result.getFailedCount());
+		for (int n = 0; n < 200; n++) {
+			String form = new String(forms.get((long) n).toByteArray(), StandardCharsets.UTF_8);
+			assertEquals(template.render(requests.get(n)), form);
+			assertTrue(form.contains("name=\"signature\""));
+		}
+	}
+
+	// Test that invalid requests fail without opening a stream, and the rest
+	// of the batch is rendered.
+	@Test
+	public void testFailuresDontStopBatch() throws Exception {
+		Map<Long, OutputStream> opened = new ConcurrentHashMap<Long, OutputStream>();
+		Stream<GatewayRequest> requests = IntStream.range(0, 10)
+				.mapToObj(n -> n % 3 == 0 ? request(n).toBuilder().remove("redirectURL").build() : request(n));
+
+		var result = new HostedFormBatch(gateway.hostedFormTemplate(null)).render(requests, (index, request) -> {
+			var out = new ByteArrayOutputStream();
+			opened.put(index, out);
+			return out;
+		});
+
+		assertEquals(6, result.getRenderedCount());
+		assertEquals(4, result.getFailedCount());
+		assertEquals(List.of(0L, 3L, 6L, 9L), new ArrayList<Long>(result.getErrors().keySet()));
+		assertTrue(result.getErrors().get(3L) instanceof IllegalArgumentException);
+		assertFalse(opened.containsKey(3L));
+		assertEquals(6, opened.size());
+	}
+
+	// Test that a Stream that fails stops the batch, once the forms already
+	// handed out are written, rather than leaving render waiting.
+	@Test
+	public void testStreamFailure() throws Exception {
+		AtomicLong written = new AtomicLong();
+		Stream<GatewayRequest> requests = IntStream.range(0, 100).mapToObj(n -> {
+			Map<String, String> fields = new HashMap<String, String>(request(n).toMap());
+			if (n == 50) {
+				fields.put("orderRef", null);
+			}
+			return fields;
+		}).map(GatewayRequest::of);
+
+		var batch = new HostedFormBatch(gateway.hostedFormTemplate(null)).setMaxPending(8);
+		var rendering = Executors.newSingleThreadExecutor();
+		try {
+			Future<HostedFormBatch.Result> result = rendering.submit(() -> batch.render(requests, (index, request) -> {
+				written.incrementAndGet();
+				return OutputStream.nullOutputStream();
+			}));
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof NullPointerException);
+			}
+			assertTrue(written.get() <= 50);
+		} finally {
+			rendering.shutdownNow();
+		}
+	}
+
+	// Test that no more than maxPending requests are read ahead of the forms
+	// written.
+	@Test
+	public void testBoundsPendingRequests() throws Exception {
+		var pool = new ForkJoinPool(4);
+		try {
+			AtomicLong read = new AtomicLong();
+			AtomicLong written = new AtomicLong();
+			AtomicLong maxAhead = new AtomicLong();
+
+			Stream<GatewayRequest> requests = IntStream.range(0, 500).mapToObj(n -> {
+				long ahead = read.incrementAndGet() - written.get();
+				maxAhead.accumulateAndGet(ahead, Math::max);
+				return request(n);
+			});
+
+			var result = new HostedFormBatch(gateway.hostedFormTemplate(null))
+					.setPool(pool)
+					.setMaxPending(8)
+					.render(requests, (index, request) -> new OutputStream() {
+						@Override
+						public void write(int b) {
+						}
+
+						@Override
+						public void close() {
+							written.incrementAndGet();
+						}
+					});
+
+			assertEquals(500, result.getRenderedCount());
+			assertTrue("Read " + maxAhead.get() + " ahead", maxAhead.get() <= 8);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testToDirectory() throws Exception {
+		var directory = Files.createTempDirectory("forms");
+		try {
+			var result = new HostedFormBatch(gateway.hostedFormTemplate(null))
+					.render(Stream.of(request(1), request(2)), HostedFormSink.toDirectory(directory));
+
+			assertEquals(2, result.getRenderedCount());
+			String form = new String(Files.readAllBytes(directory.resolve("1.html")), StandardCharsets.UTF_8);
+			assertEquals(gateway.hostedFormTemplate(null).render(request(2)), form);
+		} finally {
+			try (var files = Files.list(directory)) {
+				for (var file : (Iterable<java.nio.file.Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+}
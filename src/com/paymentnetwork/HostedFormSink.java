@@ -0,0 +1,36 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/// <summary>
+/// Where HostedFormBatch writes each rendered form.
+///
+/// open is called once per form, possibly from several threads at once,
+/// and the stream it returns is closed once the form has been written to
+/// it as UTF-8.
+/// </summary>
+@FunctionalInterface
+public interface HostedFormSink {
+
+	/// <summary>
+	/// Open the stream to write the form for request to.
+	/// </summary>
+	/// <param name="index"> Zero-based position of the request in the batch </params>
+	/// <param name="request"> The request, as given to the batch </params>
+	OutputStream open(long index, GatewayRequest request) throws IOException;
+
+	/// <summary>
+	/// A sink writing each form to its own file in directory, named after
+	/// its index in the batch, for example '42.html'. Existing files are
+	/// replaced.
+	/// </summary>
+	static HostedFormSink toDirectory(Path directory) {
+		if (directory == null) {
+			throw new NullPointerException("Directory must be provided.");
+		}
+		return (index, request) -> Files.newOutputStream(directory.resolve(index + ".html"));
+	}
+}
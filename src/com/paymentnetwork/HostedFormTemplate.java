@@ -0,0 +1,160 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/// <summary>
+/// A hosted payment form with its static parts rendered in advance.
+///
+/// The form tag (including the escaped hostedUrl and formAttrs) and the
+/// submit element are built once, when the template is created from a
+/// Gateway and a set of HostedRequest options. Rendering a request then
+/// only prepares it and writes its hidden fields between the two, either
+/// into a builder sized for the result or straight to any Appendable, such
+/// as a servlet response Writer.
+///
+/// Templates are immutable and may be shared between threads.
+/// </summary>
+public class HostedFormTemplate {
+	private final Gateway gateway;
+	private final Map<String, String> options;
+	private final String hostedUrl;
+	private final String formAttrs;
+	private final String formStart;
+	private final String formEnd;
+
+	/// <summary>
+	/// Compile the form for gateway using the options accepted by
+	/// Gateway.HostedRequest.
+	/// </summary>
+	public HostedFormTemplate(Gateway gateway, Map<String, String> options) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		this.gateway = gateway;
+		this.options = options == null ? new HashMap<String, String>() : new HashMap<String, String>(options);
+		this.hostedUrl = gateway.getHostedUrl();
+		this.formAttrs = this.options.getOrDefault("formAttrs", "");
+		this.formStart = formStart(this.hostedUrl);
+		this.formEnd = formEnd(this.options);
+	}
+
+	/// <summary>
+	/// Render the form for request. As with HostedRequest, request is
+	/// prepared in place and the method throws if it is invalid or has no
+	/// redirectURL.
+	/// </summary>
+	public String render(Map<String, String> request) {
+		Map<String, String> requestSettings = new HashMap<String, String>();
+		gateway.prepareHostedRequest(request, options, requestSettings);
+
+		String start = formStart(requestSettings);
+
+		int size = start.length() + formEnd.length();
+		for (Map.Entry<String, String> entry : request.entrySet()) {
+			size += Gateway.fieldSize(entry.getKey(), null, entry.getValue());
+		}
+
+		StringBuilder sb = new StringBuilder(size);
+		try {
+			write(request, start, sb);
+		} catch (IOException e) {
+			// StringBuilder never throws.
+			throw new UncheckedIOException(e);
+		}
+		return sb.toString();
+	}
+
+	/// <summary>
+	/// Render the form for request straight to out, without building it as
+	/// a String first.
+	/// </summary>
+	public void render(Map<String, String> request, Appendable out) throws IOException {
+		Map<String, String> requestSettings = new HashMap<String, String>();
+		gateway.prepareHostedRequest(request, options, requestSettings);
+
+		write(request, formStart(requestSettings), out);
+	}
+
+	/// <summary>
+	/// Render the form for request, which is not modified.
+	/// </summary>
+	public String render(GatewayRequest request) {
+		Map<String, String> requestSettings = new HashMap<String, String>();
+		GatewayRequest prepared = gateway.prepareHostedRequest(request, options, requestSettings);
+
+		String start = formStart(requestSettings);
+
+		int size = start.length() + formEnd.length();
+		for (int i = 0; i < prepared.size(); i++) {
+			size += Gateway.fieldSize(prepared.getName(i), null, prepared.getValue(i));
+		}
+
+		StringBuilder sb = new StringBuilder(size);
+		try {
+			write(prepared, start, sb);
+		} catch (IOException e) {
+			// StringBuilder never throws.
+			throw new UncheckedIOException(e);
+		}
+		return sb.toString();
+	}
+
+	/// <summary>
+	/// Render the form for request straight to out. request is not modified.
+	/// </summary>
+	public void render(GatewayRequest request, Appendable out) throws IOException {
+		Map<String, String> requestSettings = new HashMap<String, String>();
+		GatewayRequest prepared = gateway.prepareHostedRequest(request, options, requestSettings);
+
+		write(prepared, formStart(requestSettings), out);
+	}
+
+	private void write(GatewayRequest request, String start, Appendable out) throws IOException {
+		out.append(start);
+		for (int i = 0; i < request.size(); i++) {
+			Gateway.appendField(out, request.getName(i), null, request.getValue(i));
+		}
+		out.append(formEnd);
+	}
+
+	private void write(Map<String, String> request, String start, Appendable out) throws IOException {
+		out.append(start);
+		for (Map.Entry<String, String> entry : request.entrySet()) {
+			Gateway.appendField(out, entry.getKey(), null, entry.getValue());
+		}
+		out.append(formEnd);
+	}
+
+	/// <summary>
+	/// The form tag for the request's hostedUrl, which is normally the one
+	/// compiled into the template.
+	/// </summary>
+	private String formStart(Map<String, String> requestSettings) {
+		String url = requestSettings.get("hostedUrl");
+		return url == null || url.equals(hostedUrl) ? formStart : formStart(url);
+	}
+
+	private String formStart(String url) {
+		return "<form method=\"post\" " + formAttrs + " action=\"" + HtmlEscaper.escape(url) + "\" /> \n";
+	}
+
+	private static String formEnd(Map<String, String> options) {
+		String submitAttrs = options.getOrDefault("submitAttrs", "");
+
+		String submitElement;
+		if (options.containsKey("submitImage")) {
+			submitElement = "<input " + submitAttrs + "  type=\"image\" src=\""
+					+ HtmlEscaper.escape(options.get("submitImage")) + "\">\n";
+		} else if (options.containsKey("submitHtml")) {
+			submitElement = "<button type=\"submit\" " + submitAttrs + " >" + options.get("submitHtml") + "</button>\n";
+		} else {
+			submitElement = "<input " + submitAttrs + " type=\"submit\" value=\""
+					+ HtmlEscaper.escape(options.getOrDefault("submitText", "Pay Now")) + "\">\n";
+		}
+
+		return submitAttrs + submitElement + "</form>\n";
+	}
+}
@@ -0,0 +1,137 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class HostedFormTemplateTest extends TestCase {
+	private final Gateway gateway = new Gateway("100001", null, null, "https://gateway.example.com/hosted/?a=1&b=2",
+			null);
+
+	private static Map<String, String> request() {
+		var request = new LinkedHashMap<String, String>();
+		request.put("action", "SALE");
+		request.put("amount", "1001");
+		request.put("redirectURL", "https://shop.example.com/return?x=1&y=\"2\"");
+		request.put("orderRef", "Test <purchase> £10");
+		return request;
+	}
+
+	@Test
+	public void testRender() {
+		var options = new HashMap<String, String>();
+		options.put("formAttrs", "id=\"pay\"");
+		options.put("submitText", "Pay £10.01");
+
+		String form = gateway.hostedFormTemplate(options).render(request());
+
+		var signed = new ArrayList<NameValuePair>();
+		request().forEach((k, v) -> signed.add(new BasicNameValuePair(k, v)));
+		signed.add(new BasicNameValuePair("merchantID", "100001"));
+		String signature = gateway.sign(signed, "Circle4Take40Idea");
+
+		assertEquals("<form method=\"post\" id=\"pay\" action=\"https://gateway.example.com/hosted/?a=1&amp;b=2\" /> \n"
+				+ "<input type=\"hidden\" name=\"action\" value=\"SALE\" />\n"
+				+ "<input type=\"hidden\" name=\"amount\" value=\"1001\" />\n"
+				+ "<input type=\"hidden\" name=\"redirectURL\" value=\"https://shop.example.com/return?x=1&amp;y=&quot;2&quot;\" />\n"
+				+ "<input type=\"hidden\" name=\"orderRef\" value=\"Test &lt;purchase&gt; £10\" />\n"
+				+ "<input type=\"hidden\" name=\"merchantID\" value=\"100001\" />\n"
+				+ "<input type=\"hidden\" name=\"signature\" value=\"" + signature + "\" />\n"
+				+ "<input  type=\"submit\" value=\"Pay £10.01\">\n"
+				+ "</form>\n", form);
+	}
+
+	// Test that forms are signed with the merchant secret, whether rendered
+	// from a Map or a GatewayRequest, and with a secret given in the request.
+	@Test
+	public void testSignsForm() {
+		var template = gateway.hostedFormTemplate(null);
+		String fromMap = signature(template.render(request()));
+		assertEquals(fromMap, signature(template.render(GatewayRequest.of(request()))));
+
+		var request = request();
+		request.put("merchantSecret", "OtherSecret");
+		var gatewayRequest = GatewayRequest.of(request);
+		// Rendering a Map removes merchantSecret from it.
+		String otherSecret = signature(template.render(request));
+		assertFalse(otherSecret.equals(fromMap));
+		assertEquals(otherSecret, signature(template.render(gatewayRequest)));
+		assertFalse(template.render(gatewayRequest).contains("OtherSecret"));
+	}
+
+	private static String signature(String form) {
+		Matcher matcher = Pattern.compile("name=\"signature\" value=\"([0-9a-f]{128})\"").matcher(form);
+		assertTrue(form, matcher.find());
+		return matcher.group(1);
+	}
+
+	@Test
+	public void testSubmitElements() {
+		var options = new HashMap<String, String>();
+		options.put("submitAttrs", "class=\"btn\"");
+		options.put("submitHtml", "<b>Pay</b>");
+		assertTrue(gateway.hostedFormTemplate(options).render(request())
+				.endsWith("class=\"btn\"<button type=\"submit\" class=\"btn\" ><b>Pay</b></button>\n</form>\n"));
+
+		options.put("submitImage", "/pay.png?a&b");
+		assertTrue(gateway.hostedFormTemplate(options).render(request())
+				.endsWith("class=\"btn\"<input class=\"btn\"  type=\"image\" src=\"/pay.png?a&amp;b\">\n</form>\n"));
+	}
+
+	@Test
+	public void testTemplateIsReusable() throws IOException {
+		var options = new HashMap<String, String>();
+		options.put("formAttrs", "id=\"pay\"");
+		var template = gateway.hostedFormTemplate(options);
+
+		for (int i = 0; i < 3; i++) {
+			var request = request();
+			request.put("transactionUnique", "T" + i);
+
+			String expected = gateway.HostedRequest(new LinkedHashMap<String, String>(request), options);
+			assertEquals(expected, template.render(new LinkedHashMap<String, String>(request)));
+
+			var writer = new StringWriter();
+			template.render(request, writer);
+			assertEquals(expected, writer.toString());
+		}
+	}
+
+	@Test
+	public void testRequestHostedUrl() {
+		var template = gateway.hostedFormTemplate(null);
+		var request = request();
+		request.put("hostedUrl", "https://other.example.com/hosted/");
+
+		String form = template.render(request);
+
+		assertTrue(form.startsWith("<form method=\"post\"  action=\"https://other.example.com/hosted/\" /> \n"));
+		assertFalse(form.contains("name=\"hostedUrl\""));
+		assertTrue(template.render(request()).contains("action=\"https://gateway.example.com/hosted/?a=1&amp;b=2\""));
+	}
+
+	@Test
+	public void testRequiresRedirectUrl() {
+		var request = request();
+		request.remove("redirectURL");
+
+		try {
+			gateway.hostedFormTemplate(null).render(request);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("redirectURL is required and must be set according to your environment", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+
+/// <summary>
+/// Escapes text for use inside a double or single quoted HTML attribute
+/// value.
+///
+/// Only the characters that can end the attribute or start markup or an
+/// entity are replaced: &amp;, &lt;, &gt;, " and '. Everything else,
+/// including non-ASCII text, is written unchanged, so the common case of
+/// amounts, codes and identifiers needs no copying at all: the input is
+/// scanned once and returned or appended as it is.
+/// </summary>
+final class HtmlEscaper {
+	private static final String[] ESCAPES = new String[64];
+
+	static {
+		ESCAPES['&'] = "&amp;";
+		ESCAPES['<'] = "&lt;";
+		ESCAPES['>'] = "&gt;";
+		ESCAPES['"'] = "&quot;";
+		ESCAPES['\''] = "&#39;";
+	}
+
+	private HtmlEscaper() {
+	}
+
+	/// <summary>
+	/// s escaped, or s itself if it needs no escaping. Null is returned as
+	/// null.
+	/// </summary>
+	static String escape(String s) {
+		if (s == null) {
+			return null;
+		}
+
+		int first = firstEscape(s);
+		if (first < 0) {
+			return s;
+		}
+
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		write(s, first, sb);
+		return sb.toString();
+	}
+
+	/// <summary>
+	/// Append s escaped to out. Null is appended as "null", as
+	/// StringBuilder.append does.
+	/// </summary>
+	static void escape(String s, StringBuilder out) {
+		if (s == null) {
+			out.append((String) null);
+			return;
+		}
+
+		int first = firstEscape(s);
+		if (first < 0) {
+			out.append(s);
+		} else {
+			write(s, first, out);
+		}
+	}
+
+	/// <summary>
+	/// Append s escaped to out, writing unescaped text in runs rather than a
+	/// character at a time.
+	/// </summary>
+	static void escape(String s, Appendable out) throws IOException {
+		if (out instanceof StringBuilder) {
+			escape(s, (StringBuilder) out);
+			return;
+		}
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+
+		int length = s.length();
+		int start = 0;
+		for (int i = firstEscape(s); i >= 0 && i < length; i++) {
+			String escape = escapeFor(s.charAt(i));
+			if (escape != null) {
+				out.append(s, start, i).append(escape);
+				start = i + 1;
+			}
+		}
+		out.append(s, start, length);
+	}
+
+	private static void write(String s, int first, StringBuilder out) {
+		int length = s.length();
+		int start = 0;
+		for (int i = first; i < length; i++) {
+			String escape = escapeFor(s.charAt(i));
+			if (escape != null) {
+				out.append(s, start, i).append(escape);
+				start = i + 1;
+			}
+		}
+		out.append(s, start, length);
+	}
+
+	/// <summary>
+	/// Index of the first character of s needing an escape, or -1.
+	/// </summary>
+	private static int firstEscape(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < ESCAPES.length && ESCAPES[c] != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String escapeFor(char c) {
+		return c < ESCAPES.length ? ESCAPES[c] : null;
+	}
+}
@@ -0,0 +1,53 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class HtmlEscaperTest extends TestCase {
+
+	@Test
+	public void testEscape() throws IOException {
+		String[][] cases = { { "", "" }, { "1001", "1001" }, { "£€é 漢字 😀", "£€é 漢字 😀" },
+				{ "a&b", "a&amp;b" }, { "<script>", "&lt;script&gt;" }, { "\"x\" 'y'", "&quot;x&quot; &#39;y&#39;" },
+				{ "&&", "&amp;&amp;" }, { "&amp;", "&amp;amp;" }, { "tail&", "tail&amp;" } };
+
+		for (String[] c : cases) {
+			assertEquals(c[1], HtmlEscaper.escape(c[0]));
+
+			var sb = new StringBuilder("x");
+			HtmlEscaper.escape(c[0], sb);
+			assertEquals("x" + c[1], sb.toString());
+
+			var writer = new StringWriter();
+			HtmlEscaper.escape(c[0], writer);
+			assertEquals(c[1], writer.toString());
+		}
+	}
+
+	@Test
+	public void testCleanInputIsNotCopied() {
+		String value = "4012001037141112";
+		assertSame(value, HtmlEscaper.escape(value));
+		assertNull(HtmlEscaper.escape(null));
+	}
+
+	@Test
+	public void testFieldToHtml() {
+		assertEquals("<input type=\"hidden\" name=\"amount\" value=\"1001\" />\n", Gateway.fieldToHtml("amount", "1001"));
+		assertEquals("<input type=\"hidden\" name=\"a&quot;&gt;\" value=\"&lt;b&gt;&amp;\" />\n",
+				Gateway.fieldToHtml("a\">", "<b>&"));
+
+		var nested = new LinkedHashMap<String, String>();
+		nested.put("line1", "1 High St");
+		nested.put("x\"", "'");
+		assertEquals("<input type=\"hidden\" name=\"address[line1]\" value=\"1 High St\" />\n"
+				+ "<input type=\"hidden\" name=\"address[x&quot;]\" value=\"&#39;\" />\n",
+				Gateway.fieldToHtml("address", nested));
+		assertEquals(Gateway.fieldToHtml("address", nested), Gateway.fieldToHtml("address", (Object) nested));
+	}
+}
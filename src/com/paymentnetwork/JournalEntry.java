@@ -0,0 +1,109 @@
+package com.paymentnetwork;
+
+import java.util.Collections;
+import java.util.Map;
+
+/// <summary>
+/// A Direct API request read back from a RequestJournal, with what is known
+/// of its outcome. Card data in the request and response is redacted as it
+/// was when journaled.
+/// </summary>
+public final class JournalEntry {
+
+	/// <summary>
+	/// What the journal knows of a request's outcome.
+	/// </summary>
+	public enum State {
+		/// Sent, or about to be, with no outcome yet. After a restart, the
+		/// process stopped while the request was in flight.
+		PENDING,
+		/// A verified response was received.
+		RESPONDED,
+		/// The request never reached the Gateway.
+		NOT_SENT,
+		/// The request may have reached the Gateway but no verified response
+		/// was received, for example after a timeout.
+		UNKNOWN;
+
+		/// <summary>
+		/// Whether the Gateway's outcome must still be looked up, for example
+		/// with a QUERY request.
+		/// </summary>
+		public boolean isUnresolved() {
+			return this == PENDING || this == UNKNOWN;
+		}
+	}
+
+	private final long id;
+	private final String transactionUnique;
+	private final long timestamp;
+	private final State state;
+	private final Map<String, String> request;
+	private final Map<String, String> response;
+	private final String error;
+
+	JournalEntry(long id, String transactionUnique, long timestamp, State state, Map<String, String> request,
+			Map<String, String> response, String error) {
+		this.id = id;
+		this.transactionUnique = transactionUnique;
+		this.timestamp = timestamp;
+		this.state = state;
+		this.request = Collections.unmodifiableMap(request);
+		this.response = response == null ? null : Collections.unmodifiableMap(response);
+		this.error = error;
+	}
+
+	/// <summary>
+	/// Identifies the request in its journal.
+	/// </summary>
+	public long getId() {
+		return id;
+	}
+
+	/// <summary>
+	/// The request's transactionUnique, or null if it had none.
+	/// </summary>
+	public String getTransactionUnique() {
+		return transactionUnique;
+	}
+
+	/// <summary>
+	/// When the request was journaled, in milliseconds since the epoch.
+	/// </summary>
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/// <summary>
+	/// The signed request's fields, in the order sent, with card data
+	/// redacted.
+	/// </summary>
+	public Map<String, String> getRequest() {
+		return request;
+	}
+
+	/// <summary>
+	/// The verified response's fields if the state is RESPONDED, otherwise
+	/// null.
+	/// </summary>
+	public Map<String, String> getResponse() {
+		return response;
+	}
+
+	/// <summary>
+	/// Why the request failed if the state is NOT_SENT or UNKNOWN, otherwise
+	/// null.
+	/// </summary>
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalEntry[id=" + id + ", transactionUnique=" + transactionUnique + ", state=" + state + "]";
+	}
+}
@@ -0,0 +1,162 @@
+package com.paymentnetwork;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/// <summary>
+/// A histogram of durations in nanoseconds that any number of threads can
+/// record into without locking.
+///
+/// Values are counted in log-linear buckets, as HdrHistogram does: each
+/// power of two is split into 32 equal buckets, so a recorded value is
+/// known to within about 3% whatever its size, from nanoseconds to days.
+/// Recording a value is a few shifts and one atomic increment, and never
+/// allocates.
+///
+/// Reads are not atomic with respect to concurrent recording, so a
+/// percentile read while values are being recorded may not include the
+/// latest of them.
+/// </summary>
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/// <summary>
+	/// Record a duration. Negative durations are recorded as zero.
+	/// </summary>
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	/// <summary>
+	/// Number of durations recorded.
+	/// </summary>
+	public long getCount() {
+		return count.sum();
+	}
+
+	/// <summary>
+	/// Sum of the durations recorded, in nanoseconds.
+	/// </summary>
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/// <summary>
+	/// Mean duration in nanoseconds, or zero if none have been recorded.
+	/// </summary>
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/// <summary>
+	/// Longest duration recorded, in nanoseconds.
+	/// </summary>
+	public long getMax() {
+		return max.get();
+	}
+
+	/// <summary>
+	/// The duration in nanoseconds that percentile percent of recorded
+	/// durations are no longer than, for percentile from 0 to 100. The
+	/// result is the upper end of the bucket holding that duration, capped
+	/// at the maximum recorded. Zero if none have been recorded.
+	/// </summary>
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/// <summary>
+	/// Clear the histogram. Values recorded during the reset may or may not
+	/// be kept.
+	/// </summary>
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", getCount(),
+				getMean() / TimeUnit.MILLISECONDS.toNanos(1), millis(getValueAtPercentile(50)),
+				millis(getValueAtPercentile(99)), millis(getValueAtPercentile(99.9)), millis(getMax()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/// <summary>
+	/// Values below SUB_BUCKETS have a bucket each. Above that, the bucket is
+	/// chosen by the position of the highest set bit and the SUB_BUCKET_BITS
+	/// bits below it.
+	/// </summary>
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/// <summary>
+	/// The largest value counted in bucket.
+	/// </summary>
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lower = (SUB_BUCKETS + subBucket) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
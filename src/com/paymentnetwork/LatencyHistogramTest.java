@@ -0,0 +1,80 @@
+package com.paymentnetwork;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	// Test that every value falls in a bucket whose bounds contain it, and
+	// that the buckets are no wider than 1/32 of their values.
+	@Test
+	public void testBuckets() {
+		long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 999_999, 1_000_000, 123_456_789, Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = LatencyHistogram.bucket(value);
+			assertTrue(value + " above its bucket", value <= LatencyHistogram.upperBound(bucket));
+			if (bucket > 0) {
+				assertTrue(value + " below its bucket", value > LatencyHistogram.upperBound(bucket - 1));
+			}
+			assertTrue(value + " bucket too wide",
+					LatencyHistogram.upperBound(bucket) - value <= Math.max(value / 32, 0));
+		}
+		for (int bucket = 1; bucket < LatencyHistogram.bucket(Long.MAX_VALUE); bucket++) {
+			assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.upperBound(bucket)));
+			assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.upperBound(bucket - 1) + 1));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		var histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500_500_000L, histogram.getTotal());
+		assertEquals(500_500.0, histogram.getMean());
+		assertEquals(1_000_000L, histogram.getMax());
+		assertWithin(500_000, histogram.getValueAtPercentile(50));
+		assertWithin(990_000, histogram.getValueAtPercentile(99));
+		assertEquals(1_000_000L, histogram.getValueAtPercentile(100));
+		assertWithin(1000, histogram.getValueAtPercentile(0));
+
+		histogram.record(-5);
+		assertEquals(0, histogram.getValueAtPercentile(0));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		var histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					histogram.record(i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40_000, histogram.getCount());
+		assertEquals(9999, histogram.getMax());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected + expected / 32);
+	}
+}
@@ -0,0 +1,128 @@
+package com.paymentnetwork;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/// <summary>
+/// Drives directRequest at a steady target rate and measures the latency
+/// of every request, to find how much load an integration can sustain and
+/// how its connection pool behaves under it.
+///
+/// Requests are started on a fixed schedule whether or not earlier requests
+/// have finished, as independent customers would send them. Each latency
+/// is measured from the time the request was due to start, not the time it
+/// actually started, so requests held up behind slow ones are not left out
+/// of the percentiles (coordinated omission).
+///
+/// Requests are sent through a GatewayExecutor, on virtual threads where
+/// the JDK has them:
+///
+///     LoadReport report = new LoadGenerator(gateway, n -> request(n))
+///         .setRequestsPerSecond(500)
+///         .setDuration(30, TimeUnit.SECONDS)
+///         .run();
+/// </summary>
+public class LoadGenerator {
+	private final Gateway gateway;
+	private final LongFunction<Map<String, String>> requests;
+
+	private double requestsPerSecond = 100;
+	private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+	private long warmupNanos;
+	private int maxConcurrentRequests = 1000;
+
+	/// <summary>
+	/// Create a generator sending the requests made by requests, which is
+	/// given each request's sequence number, from 0.
+	/// </summary>
+	public LoadGenerator(Gateway gateway, LongFunction<Map<String, String>> requests) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		if (requests == null) {
+			throw new NullPointerException("Requests must be provided.");
+		}
+		this.gateway = gateway;
+		this.requests = requests;
+	}
+
+	public LoadGenerator setRequestsPerSecond(double requestsPerSecond) {
+		if (requestsPerSecond <= 0) {
+			throw new IllegalArgumentException("requestsPerSecond must be greater than 0");
+		}
+		this.requestsPerSecond = requestsPerSecond;
+		return this;
+	}
+
+	/// <summary>
+	/// How long to send requests for, after the warmup.
+	/// </summary>
+	public LoadGenerator setDuration(long duration, TimeUnit unit) {
+		this.durationNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/// <summary>
+	/// How long to send requests for before measuring, so that connections
+	/// are open and the JIT has compiled the request path. Requests sent
+	/// during the warmup are left out of the report.
+	/// </summary>
+	public LoadGenerator setWarmup(long duration, TimeUnit unit) {
+		this.warmupNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of requests in flight. Requests due while this many are
+	/// in flight wait, and their wait counts towards their latency.
+	/// </summary>
+	public LoadGenerator setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		return this;
+	}
+
+	/// <summary>
+	/// Send requests for the warmup and then the duration, wait for them all
+	/// to finish, and report on those sent after the warmup.
+	/// </summary>
+	public LoadReport run() throws InterruptedException {
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		LoadReport report = new LoadReport(requestsPerSecond);
+
+		GatewayExecutor executor = new GatewayExecutor(gateway, maxConcurrentRequests);
+		long start = System.nanoTime();
+		long measureFrom = start + warmupNanos;
+		long end = measureFrom + durationNanos;
+
+		try {
+			for (long n = 0;; n++) {
+				long due = start + n * interval;
+				if (due - end >= 0) {
+					break;
+				}
+
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+
+				boolean measured = due - measureFrom >= 0;
+				executor.submit(requests.apply(n), null).whenComplete((response, error) -> {
+					if (measured) {
+						report.record(System.nanoTime() - due, response, error);
+					}
+				});
+			}
+		} finally {
+			// Waits for the requests in flight.
+			executor.close();
+		}
+
+		report.finish(System.nanoTime() - measureFrom);
+		return report;
+	}
+}
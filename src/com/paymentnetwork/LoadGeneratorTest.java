@@ -0,0 +1,53 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class LoadGeneratorTest extends TestCase {
+
+	// Test a short run at a modest rate: every request is answered, the rate
+	// is held, and the latencies include the simulator's delay.
+	@Test
+	public void testRun() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(5, 15).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var report = new LoadGenerator(gateway, n -> {
+				HashMap<String, String> request = GatewayUtils.getInitialForm();
+				request.put("transactionUnique", "load" + n);
+				return request;
+			}).setRequestsPerSecond(100).setWarmup(200, TimeUnit.MILLISECONDS).setDuration(1, TimeUnit.SECONDS)
+					.run();
+
+			assertEquals(100.0, report.getTargetRequestsPerSecond());
+			assertEquals(100, report.getRequestCount());
+			assertEquals(100, report.getResponseCount());
+			assertEquals(0, report.getErrorCount());
+			assertTrue(report.getErrorCounts().isEmpty());
+			assertEquals(Long.valueOf(100), report.getResponseCodeCounts().get("0"));
+			assertEquals(120, simulator.getRequestCount());
+			assertTrue(report.getLatency().getValueAtPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(5));
+			assertTrue(report.getLatency().getValueAtPercentile(99) >= report.getLatency().getValueAtPercentile(50));
+			assertTrue(report.getRequestsPerSecond() > 50);
+		}
+	}
+
+	// Test that errors are counted by type rather than failing the run.
+	@Test
+	public void testCountsErrors() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			simulator.setFaultRate(GatewaySimulator.Fault.BAD_SIGNATURE, 1);
+			var report = new LoadGenerator(gateway, n -> GatewayUtils.getInitialForm()).setRequestsPerSecond(50)
+					.setDuration(200, TimeUnit.MILLISECONDS).run();
+
+			assertEquals(10, report.getErrorCount());
+			assertEquals(Long.valueOf(10), report.getErrorCounts().get("RuntimeException"));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.paymentnetwork;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/// <summary>
+/// Results of a LoadGenerator run: how many requests were answered or
+/// failed, the latency distribution and the throughput achieved.
+/// </summary>
+public class LoadReport {
+	private final double targetRequestsPerSecond;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder responses = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> responseCodes = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> errorTypes = new ConcurrentHashMap<String, LongAdder>();
+	private volatile long elapsedNanos;
+
+	LoadReport(double targetRequestsPerSecond) {
+		this.targetRequestsPerSecond = targetRequestsPerSecond;
+	}
+
+	void record(long latencyNanos, Map<String, String> response, Throwable error) {
+		latency.record(latencyNanos);
+		if (error == null) {
+			responses.increment();
+			count(responseCodes, response.get("responseCode"));
+		} else {
+			errors.increment();
+			count(errorTypes, error.getClass().getSimpleName());
+		}
+	}
+
+	void finish(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public double getTargetRequestsPerSecond() {
+		return targetRequestsPerSecond;
+	}
+
+	/// <summary>
+	/// Requests answered or failed per second, from the end of the warmup
+	/// until the last request finished.
+	/// </summary>
+	public double getRequestsPerSecond() {
+		return elapsedNanos == 0 ? 0 : getRequestCount() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/// <summary>
+	/// Number of requests measured.
+	/// </summary>
+	public long getRequestCount() {
+		return responses.sum() + errors.sum();
+	}
+
+	/// <summary>
+	/// Number of requests that received a verified response, whatever its
+	/// responseCode.
+	/// </summary>
+	public long getResponseCount() {
+		return responses.sum();
+	}
+
+	/// <summary>
+	/// Number of requests that failed with an exception.
+	/// </summary>
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/// <summary>
+	/// Number of verified responses with each responseCode.
+	/// </summary>
+	public Map<String, Long> getResponseCodeCounts() {
+		return snapshot(responseCodes);
+	}
+
+	/// <summary>
+	/// Number of failed requests by the simple name of their exception.
+	/// </summary>
+	public Map<String, Long> getErrorCounts() {
+		return snapshot(errorTypes);
+	}
+
+	/// <summary>
+	/// Latency of every request measured, answered or failed, in nanoseconds
+	/// from when it was due to start.
+	/// </summary>
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("target=%.1f/s achieved=%.1f/s requests=%d responses=%d errors=%d%n"
+				+ "latency p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms%n"
+				+ "responseCodes=%s errors=%s",
+				targetRequestsPerSecond, getRequestsPerSecond(), getRequestCount(), getResponseCount(),
+				getErrorCount(), millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+				millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+				millis(latency.getMax()), getResponseCodeCounts(), getErrorCounts());
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static void count(ConcurrentHashMap<String, LongAdder> counts, String key) {
+		counts.computeIfAbsent(key == null ? "" : key, k -> new LongAdder()).increment();
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder> counts) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		counts.forEach((key, count) -> snapshot.put(key, count.sum()));
+		return snapshot;
+	}
+}
@@ -0,0 +1,74 @@
+package com.paymentnetwork;
+
+/// <summary>
+/// The account details and endpoints of one merchant, as held by a
+/// MerchantRegistry.
+///
+/// Endpoints left unset use the registry's. Every setter returns this
+/// object so settings can be chained. Changing a config after passing it
+/// to MerchantRegistry.put has no effect; put it again to reload it.
+/// </summary>
+public class MerchantConfig {
+	private final String merchantID;
+	private final String merchantSecret;
+	private String merchantPwd;
+	private String directUrl;
+	private String hostedUrl;
+
+	public MerchantConfig(String merchantID, String merchantSecret) {
+		if (merchantID == null || merchantID.isEmpty()) {
+			throw new IllegalArgumentException("merchantID must be provided");
+		}
+		if (merchantSecret == null || merchantSecret.isEmpty()) {
+			throw new IllegalArgumentException("merchantSecret must be provided");
+		}
+		this.merchantID = merchantID;
+		this.merchantSecret = merchantSecret;
+	}
+
+	public String getMerchantID() {
+		return merchantID;
+	}
+
+	public String getMerchantSecret() {
+		return merchantSecret;
+	}
+
+	/// <summary>
+	/// Merchant Account Password, added to requests that don't include one.
+	/// </summary>
+	public String getMerchantPwd() {
+		return merchantPwd;
+	}
+
+	public MerchantConfig setMerchantPwd(String merchantPwd) {
+		this.merchantPwd = merchantPwd;
+		return this;
+	}
+
+	/// <summary>
+	/// Gateway Direct API Endpoint for this merchant, or null for the
+	/// registry's.
+	/// </summary>
+	public String getDirectUrl() {
+		return directUrl;
+	}
+
+	public MerchantConfig setDirectUrl(String directUrl) {
+		this.directUrl = directUrl;
+		return this;
+	}
+
+	/// <summary>
+	/// Gateway Hosted API Endpoint for this merchant, or null for the
+	/// registry's.
+	/// </summary>
+	public String getHostedUrl() {
+		return hostedUrl;
+	}
+
+	public MerchantConfig setHostedUrl(String hostedUrl) {
+		this.hostedUrl = hostedUrl;
+		return this;
+	}
+}
@@ -0,0 +1,294 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.hc.core5.pool.PoolStats;
+
+/// <summary>
+/// Gateways for many merchants, sharing one connection pool.
+///
+/// Each merchant's Gateway holds its secret (already encoded for signing)
+/// and endpoints, and is created once when the merchant is put into the
+/// registry or first loaded. Looking a merchant up takes no locks, so the
+/// registry can be shared by every thread sending requests.
+///
+/// Merchants can be added or replaced at any time with put; requests
+/// already in progress finish with the old details. If a loader is set,
+/// merchants that are not in the registry are loaded on first use, and
+/// reload fetches a merchant's details again. The least recently used
+/// merchants are evicted once there are more than setMaxMerchants, and
+/// merchants unused for longer than setMaxIdleTime are evicted when
+/// evictIdle is called or another merchant is added; evicted merchants
+/// are loaded again when next used.
+///
+/// close() releases the shared connections, after which none of the
+/// registry's Gateways can send Direct API requests.
+/// </summary>
+public class MerchantRegistry implements AutoCloseable {
+	// How stale a merchant's last use time may be. Updating it at most this
+	// often keeps lookups of busy merchants from all writing the same field.
+	private static final long TOUCH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final String directUrl;
+	private final String hostedUrl;
+	private final GatewayClients clients;
+	private final ConcurrentHashMap<String, Entry> merchants = new ConcurrentHashMap<String, Entry>();
+
+	private volatile Function<String, MerchantConfig> loader;
+	private volatile int maxMerchants = Integer.MAX_VALUE;
+	private volatile long maxIdleNanos;
+
+	private static final class Entry {
+		final Gateway gateway;
+		volatile long lastUsed;
+
+		Entry(Gateway gateway) {
+			this.gateway = gateway;
+			this.lastUsed = System.nanoTime();
+		}
+
+		void touch() {
+			long now = System.nanoTime();
+			if (now - lastUsed > TOUCH_INTERVAL) {
+				lastUsed = now;
+			}
+		}
+	}
+
+	public MerchantRegistry(String directUrl, String hostedUrl, String proxyUrl) {
+		this(directUrl, hostedUrl, proxyUrl, new ConnectionConfig());
+	}
+
+	/// <summary>
+	/// Create a registry whose merchants use directUrl and hostedUrl unless
+	/// their MerchantConfig says otherwise. All Direct API requests share a
+	/// pooled HTTP client configured by connectionConfig.
+	/// </summary>
+	public MerchantRegistry(String directUrl, String hostedUrl, String proxyUrl, ConnectionConfig connectionConfig) {
+		this.directUrl = directUrl;
+		this.hostedUrl = hostedUrl;
+		this.clients = new GatewayClients(connectionConfig, proxyUrl);
+	}
+
+	/// <summary>
+	/// Load merchants that are not in the registry when they are first used.
+	/// loader returns null for an unknown merchant. It is called at most
+	/// once at a time for each merchant and must not use the registry.
+	/// </summary>
+	public MerchantRegistry setLoader(Function<String, MerchantConfig> loader) {
+		this.loader = loader;
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of merchants held. Adding more evicts the least
+	/// recently used.
+	/// </summary>
+	public MerchantRegistry setMaxMerchants(int maxMerchants) {
+		if (maxMerchants < 1) {
+			throw new IllegalArgumentException("maxMerchants must be at least 1");
+		}
+		this.maxMerchants = maxMerchants;
+		return this;
+	}
+
+	/// <summary>
+	/// Merchants unused for longer than this are evicted. Zero, the default,
+	/// keeps merchants however long they are unused.
+	/// </summary>
+	public MerchantRegistry setMaxIdleTime(long duration, TimeUnit unit) {
+		this.maxIdleNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/// <summary>
+	/// Add a merchant, or replace its details if it is already held.
+	/// </summary>
+	public void put(MerchantConfig merchant) {
+		merchants.put(merchant.getMerchantID(), new Entry(new Gateway(merchant, directUrl, hostedUrl, clients)));
+		evict();
+	}
+
+	/// <summary>
+	/// Fetch a merchant's details from the loader again, replacing those
+	/// held. Returns false, and removes the merchant, if the loader no longer
+	/// knows it.
+	/// </summary>
+	public boolean reload(String merchantID) {
+		Function<String, MerchantConfig> loader = this.loader;
+		if (loader == null) {
+			throw new IllegalStateException("No loader has been set");
+		}
+
+		MerchantConfig merchant = loader.apply(merchantID);
+		if (merchant == null) {
+			merchants.remove(merchantID);
+			return false;
+		}
+		put(merchant);
+		return true;
+	}
+
+	/// <summary>
+	/// Remove a merchant. Returns false if it was not held.
+	/// </summary>
+	public boolean remove(String merchantID) {
+		return merchants.remove(merchantID) != null;
+	}
+
+	/// <summary>
+	/// Whether the merchant is held, without loading it.
+	/// </summary>
+	public boolean contains(String merchantID) {
+		return merchants.containsKey(merchantID);
+	}
+
+	/// <summary>
+	/// Number of merchants held.
+	/// </summary>
+	public int size() {
+		return merchants.size();
+	}
+
+	/// <summary>
+	/// The Gateway for a merchant, loading the merchant if necessary. Throws
+	/// an IllegalArgumentException if the merchant is unknown.
+	///
+	/// The Gateway shares the registry's connections: it need not be closed,
+	/// and closing it has no effect.
+	/// </summary>
+	public Gateway get(String merchantID) {
+		if (merchantID == null) {
+			throw new NullPointerException("merchantID must be provided");
+		}
+
+		Entry entry = merchants.get(merchantID);
+		if (entry == null) {
+			entry = load(merchantID);
+		}
+		entry.touch();
+		return entry.gateway;
+	}
+
+	/// <summary>
+	/// Send request using the Gateway for the merchant named by its
+	/// merchantID field. See Gateway.directRequest.
+	/// </summary>
+	public Map<String, String> directRequest(Map<String, String> request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return get(merchantIDOf(request == null ? null : request.get("merchantID"))).directRequest(request, options);
+	}
+
+	/// <summary>
+	/// Send request using the Gateway for the merchant named by its
+	/// merchantID field. See Gateway.directRequest.
+	/// </summary>
+	public Map<String, String> directRequest(GatewayRequest request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return get(merchantIDOf(request == null ? null : request.get("merchantID"))).directRequest(request, options);
+	}
+
+	/// <summary>
+	/// Send request without blocking, using the Gateway for the merchant
+	/// named by its merchantID field. See Gateway.directRequestAsync.
+	/// </summary>
+	public CompletableFuture<Map<String, String>> directRequestAsync(Map<String, String> request,
+			Map<String, String> options) {
+		try {
+			return get(merchantIDOf(request == null ? null : request.get("merchantID")))
+					.directRequestAsync(request, options);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/// <summary>
+	/// Evict merchants unused for longer than the maximum idle time, returning
+	/// the number evicted.
+	/// </summary>
+	public int evictIdle() {
+		long maxIdle = maxIdleNanos;
+		if (maxIdle <= 0) {
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		int evicted = 0;
+		for (Map.Entry<String, Entry> merchant : merchants.entrySet()) {
+			if (now - merchant.getValue().lastUsed > maxIdle
+					&& merchants.remove(merchant.getKey(), merchant.getValue())) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/// <summary>
+	/// Statistics for the shared Direct API connection pool, or null if no
+	/// Direct API request has been made yet.
+	/// </summary>
+	public PoolStats getConnectionPoolStats() {
+		return clients.getConnectionPoolStats();
+	}
+
+	/// <summary>
+	/// Release the shared connections.
+	/// </summary>
+	@Override
+	public void close() throws IOException {
+		clients.close();
+	}
+
+	private static String merchantIDOf(String merchantID) {
+		if (merchantID == null) {
+			throw new IllegalArgumentException("Request must contain a 'merchantID'");
+		}
+		return merchantID;
+	}
+
+	private Entry load(String merchantID) {
+		Function<String, MerchantConfig> loader = this.loader;
+		if (loader == null) {
+			throw new IllegalArgumentException("Unknown merchantID: " + merchantID);
+		}
+
+		Entry entry = merchants.computeIfAbsent(merchantID, id -> {
+			MerchantConfig merchant = loader.apply(id);
+			return merchant == null ? null : new Entry(new Gateway(merchant, directUrl, hostedUrl, clients));
+		});
+		if (entry == null) {
+			throw new IllegalArgumentException("Unknown merchantID: " + merchantID);
+		}
+
+		evict();
+		return entry;
+	}
+
+	/// <summary>
+	/// Evict idle merchants, then the least recently used until there are
+	/// no more than the maximum. Merchants are only added through put and
+	/// load, which both call this, so lookups never pay for eviction.
+	/// </summary>
+	private void evict() {
+		evictIdle();
+
+		while (merchants.size() > maxMerchants) {
+			Map.Entry<String, Entry> oldest = null;
+			for (Map.Entry<String, Entry> merchant : merchants.entrySet()) {
+				if (oldest == null || merchant.getValue().lastUsed - oldest.getValue().lastUsed < 0) {
+					oldest = merchant;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			merchants.remove(oldest.getKey(), oldest.getValue());
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class MerchantRegistryTest extends TestCase {
+
+	private static HashMap<String, String> request(String merchantID) {
+		HashMap<String, String> params = GatewayUtils.getInitialForm();
+		params.put("merchantID", merchantID);
+		return params;
+	}
+
+	// Test that each merchant is signed with its own secret, sent to its own
+	// endpoint, and that all merchants share one connection pool.
+	@Test
+	public void testRoutesMerchants() throws Exception {
+		try (var simulator1 = new GatewaySimulator("Secret1").start();
+				var simulator2 = new GatewaySimulator("Secret2").start();
+				var registry = new MerchantRegistry(simulator1.getDirectUrl(), null, null)) {
+
+			registry.put(new MerchantConfig("100001", "Secret1"));
+			registry.put(new MerchantConfig("100002", "Secret2").setDirectUrl(simulator2.getDirectUrl()));
+
+			for (int i = 0; i < 3; i++) {
+				assertEquals("100001", registry.directRequest(request("100001"), null).get("merchantID"));
+				assertEquals("100002", registry.directRequest(request("100002"), null).get("merchantID"));
+				assertEquals("100002", registry.directRequestAsync(request("100002"), null).get().get("merchantID"));
+			}
+
+			assertEquals(3, simulator1.getRequestCount());
+			assertEquals(6, simulator2.getRequestCount());
+			assertEquals(2, registry.getConnectionPoolStats().getAvailable());
+			assertEquals(registry.getConnectionPoolStats().toString(),
+					registry.get("100001").getConnectionPoolStats().toString());
+
+			try {
+				registry.directRequest(request("100003"), null);
+				Assert.fail();
+			} catch (IllegalArgumentException e) {
+				assertEquals("Unknown merchantID: 100003", e.getMessage());
+			}
+		}
+	}
+
+	// Test that replacing a merchant's details takes effect for later requests.
+	@Test
+	public void testPutReplacesMerchant() throws Exception {
+		try (var simulator = new GatewaySimulator("NewSecret").start();
+				var registry = new MerchantRegistry(simulator.getDirectUrl(), null, null)) {
+
+			registry.put(new MerchantConfig("100001", "OldSecret"));
+			try {
+				registry.directRequest(request("100001"), null);
+				Assert.fail();
+			} catch (RuntimeException e) {
+				assertEquals("Incorrectly signed response from Payment Gateway (3)", e.getMessage());
+			}
+
+			registry.put(new MerchantConfig("100001", "NewSecret"));
+			assertEquals("0", registry.directRequest(request("100001"), null).get("responseCode"));
+		}
+	}
+
+	@Test
+	public void testLoaderAndEviction() throws Exception {
+		var loads = new AtomicInteger();
+		Map<String, String> secrets = new ConcurrentHashMap<String, String>();
+		secrets.put("1", "a");
+		secrets.put("2", "b");
+		secrets.put("3", "c");
+
+		try (var registry = new MerchantRegistry(null, null, null)) {
+			registry.setMaxMerchants(2).setLoader(id -> {
+				loads.incrementAndGet();
+				String secret = secrets.get(id);
+				return secret == null ? null : new MerchantConfig(id, secret);
+			});
+
+			Gateway gateway1 = registry.get("1");
+			assertSame(gateway1, registry.get("1"));
+			Thread.sleep(5);
+			registry.get("2");
+			Thread.sleep(5);
+			registry.get("1");
+			Thread.sleep(5);
+
+			// 2 is the least recently used.
+			registry.get("3");
+			assertEquals(2, registry.size());
+			assertTrue(registry.contains("1"));
+			assertFalse(registry.contains("2"));
+			assertEquals(3, loads.get());
+
+			registry.get("2");
+			assertEquals(4, loads.get());
+
+			secrets.remove("3");
+			assertFalse(registry.reload("3"));
+			assertFalse(registry.contains("3"));
+			assertTrue(registry.reload("2"));
+		}
+	}
+
+	@Test
+	public void testEvictIdle() throws Exception {
+		try (var registry = new MerchantRegistry(null, null, null)) {
+			registry.setMaxIdleTime(20, TimeUnit.MILLISECONDS);
+			registry.put(new MerchantConfig("1", "a"));
+			registry.put(new MerchantConfig("2", "b"));
+
+			Thread.sleep(40);
+			registry.get("2");
+
+			assertEquals(1, registry.evictIdle());
+			assertFalse(registry.contains("1"));
+			assertTrue(registry.contains("2"));
+		}
+	}
+}
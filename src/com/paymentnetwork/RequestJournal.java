@@ -0,0 +1,873 @@
+package com.paymentnetwork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.apache.hc.core5.http.NameValuePair;
+
+/// <summary>
+/// A write-ahead journal of Direct API requests, so that a process which
+/// stops while requests are in flight can find out afterwards which
+/// transactions it must reconcile with the Gateway.
+///
+/// Set on a Gateway's ConnectionConfig, every signed request is journaled
+/// before it is sent, and its verified response, or the failure, once it
+/// is known. On opening, the journal is read back, and getUnresolved()
+/// lists the requests whose outcome was never learned:
+///
+///     RequestJournal journal = new RequestJournal(Paths.get("/var/lib/payments/journal"));
+///     Gateway gateway = new Gateway(merchantID, secret, directUrl, hostedUrl, null,
+///         new ConnectionConfig().setJournal(journal));
+///
+///     for (JournalEntry entry : journal.getUnresolved()) {
+///         // QUERY entry.getTransactionUnique(), then
+///         journal.resolve(entry.getId(), queryResponse);
+///     }
+///
+/// The journal is an append-only log, split into fixed-size segment files
+/// which are memory-mapped, so writing a record is a copy into the page
+/// cache under a short lock. A record is safe from the process stopping as
+/// soon as it is written, and a background thread forces the segments to
+/// disk every syncInterval, covering all the records written since in one
+/// sync. A record torn by a crash is detected by its checksum and ignored.
+///
+/// Card numbers are masked, and CVVs, expiry dates and merchant passwords
+/// are replaced, before anything is written. Only each entry's position is
+/// kept in memory, indexed by id and by transactionUnique; the fields are
+/// read back from the log when asked for.
+///
+/// Each time a new segment is started, the oldest segments are deleted,
+/// with their entries, while every request in them has been resolved, as
+/// removeResolvedSegments() does. The journal's disk space and memory so
+/// grow only with the requests since the oldest still unresolved, which
+/// should be resolved, or resolved as not sent, once reconciled.
+/// Segments are unmapped before they are deleted, and all of them when
+/// the journal is closed, after which its entries can't be read.
+/// </summary>
+public class RequestJournal implements Closeable {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final int MAGIC = 0x504e4a31;
+	private static final int SEGMENT_HEADER = 8;
+	// length, checksum, type, id, timestamp and field count.
+	private static final int RECORD_HEADER = 4 + 4 + 1 + 8 + 8 + 4;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+	private static final byte REQUEST = 1;
+	private static final byte RESENT = 2;
+	private static final byte RESPONDED = 3;
+	private static final byte NOT_SENT = 4;
+	private static final byte UNKNOWN = 5;
+
+	private static final Set<String> REDACTED = Set.of("cardCVV", "cardExpiryMonth", "cardExpiryYear",
+			"cardExpiryDate", "merchantPwd");
+	private static final String REDACTED_VALUE = "***";
+
+	private static final ThreadLocal<RecordWriter> WRITERS = ThreadLocal.withInitial(RecordWriter::new);
+
+	// Unmaps a buffer at once rather than when it is collected, so that its
+	// file can be deleted on Windows; null if the JDK doesn't allow it.
+	private static final Unmapper UNMAPPER = Unmapper.find();
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+	private final ConcurrentHashMap<Long, Slot> entries = new ConcurrentHashMap<Long, Slot>();
+	private final ConcurrentHashMap<String, Long> byTransactionUnique = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final AtomicLong lostOutcomes = new AtomicLong();
+	private volatile Exception lastLostOutcomeError;
+	private final ScheduledThreadPoolExecutor flusher;
+	// Held to read or force a segment's buffer, and exclusively to unmap one.
+	private final ReentrantReadWriteLock mapping = new ReentrantReadWriteLock();
+	// Held while removing segments.
+	private final Object removing = new Object();
+
+	// Guarded by this.
+	private Segment current;
+	private boolean closed;
+
+	/// <summary>
+	/// Open, or create, the journal in directory, with 64 MB segments synced
+	/// to disk every 10 ms.
+	/// </summary>
+	public RequestJournal(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, 10, TimeUnit.MILLISECONDS);
+	}
+
+	/// <summary>
+	/// Open, or create, the journal in directory. Existing segments are read
+	/// back and keep the size they were created with.
+	/// </summary>
+	/// <param name="directory"> Where the segment files are kept, created if missing </params>
+	/// <param name="segmentSize"> Size of each new segment file, and so of the largest record </params>
+	/// <param name="syncInterval"> How often records are forced to disk </params>
+	public RequestJournal(Path directory, int segmentSize, long syncInterval, TimeUnit unit) throws IOException {
+		if (directory == null) {
+			throw new NullPointerException("Directory must be provided.");
+		}
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("segmentSize must be at least 4096");
+		}
+		if (syncInterval <= 0) {
+			throw new IllegalArgumentException("syncInterval must be greater than 0");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(directory);
+		try (Stream<Path> files = Files.list(directory)) {
+			List<Path> existing = new ArrayList<Path>();
+			files.filter(file -> SEGMENT_NAME.matcher(file.getFileName().toString()).matches())
+					.sorted(Comparator.comparingInt(RequestJournal::segmentNumber))
+					.forEach(existing::add);
+			for (Path file : existing) {
+				Segment segment = Segment.open(file, segmentNumber(file), segmentSize);
+				segments.put(segment.number, segment);
+				recover(segment);
+			}
+		}
+		current = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+
+		flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "gateway-journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				sync();
+			} catch (RuntimeException e) {
+				// Retried at the next interval; an exception would cancel the task.
+			}
+		}, syncInterval, syncInterval, unit);
+		// Segments resolved since the journal was last open.
+		flusher.execute(this::removeResolvedSegmentsQuietly);
+	}
+
+	/// <summary>
+	/// The entry with id, or null if there is none.
+	/// </summary>
+	public JournalEntry get(long id) {
+		Slot slot = entries.get(id);
+		return slot == null ? null : read(id, slot);
+	}
+
+	/// <summary>
+	/// The latest entry with transactionUnique, or null if there is none.
+	/// </summary>
+	public JournalEntry find(String transactionUnique) {
+		Long id = byTransactionUnique.get(transactionUnique);
+		return id == null ? null : get(id);
+	}
+
+	/// <summary>
+	/// Entries whose outcome must still be looked up, oldest first. Requests
+	/// in flight are included, as PENDING.
+	/// </summary>
+	public List<JournalEntry> getUnresolved() {
+		List<JournalEntry> unresolved = new ArrayList<JournalEntry>();
+		for (Map.Entry<Long, Slot> entry : entries.entrySet()) {
+			if (entry.getValue().state.isUnresolved()) {
+				JournalEntry read = read(entry.getKey(), entry.getValue());
+				if (read != null) {
+					unresolved.add(read);
+				}
+			}
+		}
+		unresolved.sort(Comparator.comparingLong(JournalEntry::getId));
+		return unresolved;
+	}
+
+	/// <summary>
+	/// Number of entries held.
+	/// </summary>
+	public int size() {
+		return entries.size();
+	}
+
+	/// <summary>
+	/// Number of responses the Gateway returned that couldn't be journaled,
+	/// leaving their entries unresolved.
+	/// </summary>
+	public long getLostOutcomeCount() {
+		return lostOutcomes.get();
+	}
+
+	/// <summary>
+	/// The error the last response couldn't be journaled with, or null if
+	/// there was none.
+	/// </summary>
+	public Exception getLastLostOutcomeError() {
+		return lastLostOutcomeError;
+	}
+
+	/// <summary>
+	/// Record the outcome of entry id, once it has been looked up.
+	/// </summary>
+	/// <param name="id"> The entry's id </params>
+	/// <param name="response"> The Gateway's response for the transaction, for example from a QUERY </params>
+	public void resolve(long id, Map<String, String> response) throws IOException {
+		if (response == null) {
+			throw new NullPointerException("Response must be provided.");
+		}
+		recordResponse(id, response);
+	}
+
+	/// <summary>
+	/// Record that entry id never reached the Gateway.
+	/// </summary>
+	public void resolveNotSent(long id) throws IOException {
+		recordOutcome(id, NOT_SENT, "error", "Resolved as not sent");
+	}
+
+	/// <summary>
+	/// Journal a signed request about to be sent.
+	/// </summary>
+	/// <returns> The new entry's id </returns>
+	long recordRequest(List<NameValuePair> fields) throws IOException {
+		long id = nextId.getAndIncrement();
+		RecordWriter writer = WRITERS.get();
+		writer.begin(REQUEST, id);
+		String transactionUnique = null;
+		for (NameValuePair field : fields) {
+			writer.field(field.getName(), field.getValue());
+			if ("transactionUnique".equals(field.getName())) {
+				transactionUnique = field.getValue();
+			}
+		}
+
+		Slot slot;
+		synchronized (this) {
+			long position = append(writer.finish());
+			slot = new Slot(transactionUnique, segments.get(segment(position)), offset(position));
+			slot.segment.unresolved.incrementAndGet();
+			entries.put(id, slot);
+		}
+		if (transactionUnique != null) {
+			byTransactionUnique.put(transactionUnique, id);
+		}
+		return id;
+	}
+
+	/// <summary>
+	/// Journal that entry id is being sent again, unless it is still pending.
+	/// Its segment can't be removed meanwhile.
+	/// </summary>
+	/// <returns> False if there is no entry id, which has to be journaled as a new request </returns>
+	boolean recordResent(long id) throws IOException {
+		synchronized (removing) {
+			Slot slot = entries.get(id);
+			if (slot == null) {
+				return false;
+			}
+			synchronized (slot) {
+				if (slot.state != JournalEntry.State.PENDING) {
+					RecordWriter writer = WRITERS.get();
+					writer.begin(RESENT, id);
+					long position = append(writer.finish());
+					apply(slot, RESENT, position);
+				}
+			}
+			return true;
+		}
+	}
+
+	/// <summary>
+	/// Count a response that couldn't be journaled because of error.
+	/// </summary>
+	void recordLostOutcome(Exception error) {
+		lastLostOutcomeError = error;
+		lostOutcomes.incrementAndGet();
+	}
+
+	/// <summary>
+	/// Journal the verified response to entry id.
+	/// </summary>
+	void recordResponse(long id, Map<String, String> response) throws IOException {
+		Slot slot = slot(id);
+		RecordWriter writer = WRITERS.get();
+		writer.begin(RESPONDED, id);
+		for (Map.Entry<String, String> field : response.entrySet()) {
+			writer.field(field.getKey(), field.getValue());
+		}
+		write(slot, RESPONDED, writer);
+	}
+
+	/// <summary>
+	/// As recordResponse(long, Map), writing the fields in the order
+	/// received without building a map of them.
+	/// </summary>
+	void recordResponse(long id, GatewayResponse response) throws IOException {
+		Slot slot = slot(id);
+		RecordWriter writer = WRITERS.get();
+		writer.begin(RESPONDED, id);
+		for (int i = 0; i < response.size(); i++) {
+			writer.field(response.getName(i), response.getValue(i));
+		}
+		write(slot, RESPONDED, writer);
+	}
+
+	/// <summary>
+	/// Journal that entry id failed with error, either before it was sent or
+	/// once it may have reached the Gateway.
+	/// </summary>
+	void recordFailure(long id, Throwable error, boolean sent) throws IOException {
+		recordOutcome(id, sent ? UNKNOWN : NOT_SENT, "error", error.toString());
+	}
+
+	private void recordOutcome(long id, byte type, String name, String value) throws IOException {
+		Slot slot = slot(id);
+		RecordWriter writer = WRITERS.get();
+		writer.begin(type, id);
+		writer.field(name, value);
+		write(slot, type, writer);
+	}
+
+	private Slot slot(long id) {
+		Slot slot = entries.get(id);
+		if (slot == null) {
+			throw new IllegalArgumentException("No journal entry " + id);
+		}
+		return slot;
+	}
+
+	private void write(Slot slot, byte type, RecordWriter writer) throws IOException {
+		synchronized (slot) {
+			long position = append(writer.finish());
+			apply(slot, type, position);
+		}
+	}
+
+	/// <summary>
+	/// Force every record written so far to disk. Records are otherwise
+	/// forced every syncInterval.
+	/// </summary>
+	public void sync() {
+		mapping.readLock().lock();
+		try {
+			for (Segment segment : segments.values()) {
+				if (segment.dirty && !segment.unmapped) {
+					// Cleared first, so that records written meanwhile are forced
+					// by the next sync.
+					segment.dirty = false;
+					try {
+						segment.buffer.force();
+					} catch (RuntimeException e) {
+						segment.dirty = true;
+						throw e;
+					}
+				}
+			}
+		} finally {
+			mapping.readLock().unlock();
+		}
+	}
+
+	/// <summary>
+	/// Delete the oldest segments, up to the one being written, while every
+	/// request in them has been resolved. This is also done each time a new
+	/// segment is started.
+	/// </summary>
+	/// <returns> The number of segments deleted </returns>
+	public int removeResolvedSegments() throws IOException {
+		int removed = 0;
+		synchronized (removing) {
+			for (Segment segment : segments.values()) {
+				synchronized (this) {
+					if (closed || segment == current || segment.unresolved.get() > 0) {
+						break;
+					}
+				}
+				sync();
+				entries.values().removeIf(slot -> slot.segment == segment);
+				byTransactionUnique.values().removeIf(id -> !entries.containsKey(id));
+				segments.remove(segment.number);
+				unmap(segment);
+				Files.deleteIfExists(segment.file);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private void removeResolvedSegmentsQuietly() {
+		try {
+			removeResolvedSegments();
+		} catch (IOException | RuntimeException e) {
+			// Retried when the next segment is started.
+		}
+	}
+
+	/// <summary>
+	/// Force the journal to disk, stop writing to it and unmap its segments.
+	/// Requests journaled afterwards fail, and entries can no longer be read.
+	/// </summary>
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		flusher.shutdownNow();
+		sync();
+		synchronized (removing) {
+			for (Segment segment : segments.values()) {
+				unmap(segment);
+			}
+		}
+	}
+
+	/// <summary>
+	/// Release segment's mapping, once no thread is reading it, so that its
+	/// file can be deleted.
+	/// </summary>
+	private void unmap(Segment segment) {
+		mapping.writeLock().lock();
+		try {
+			if (!segment.unmapped) {
+				segment.unmapped = true;
+				if (UNMAPPER != null) {
+					UNMAPPER.unmap(segment.buffer);
+				}
+			}
+		} finally {
+			mapping.writeLock().unlock();
+		}
+	}
+
+	/// <summary>
+	/// Copy record into the segment being written, starting a new segment if
+	/// it doesn't fit.
+	/// </summary>
+	/// <returns> The record's position </returns>
+	private synchronized long append(ByteBuffer record) throws IOException {
+		if (closed) {
+			throw new IOException("Journal has been closed");
+		}
+		int length = record.remaining();
+		if (length > segmentSize - SEGMENT_HEADER) {
+			throw new IOException("Journal record of " + length + " bytes is larger than a segment");
+		}
+		if (current.buffer.remaining() < length) {
+			current = newSegment(current.number + 1);
+			flusher.execute(this::removeResolvedSegmentsQuietly);
+		}
+		int offset = current.buffer.position();
+		current.buffer.put(record);
+		current.dirty = true;
+		return position(current.number, offset);
+	}
+
+	/// <summary>
+	/// Move slot to the state recorded at position.
+	/// </summary>
+	private static void apply(Slot slot, byte type, long position) {
+		boolean wasUnresolved = slot.state.isUnresolved();
+		JournalEntry.State state = state(type);
+		if (type != RESENT) {
+			slot.outcome = position;
+		}
+		slot.state = state;
+		if (wasUnresolved && !state.isUnresolved()) {
+			slot.segment.unresolved.decrementAndGet();
+		} else if (!wasUnresolved && state.isUnresolved()) {
+			slot.segment.unresolved.incrementAndGet();
+		}
+	}
+
+	private static JournalEntry.State state(byte type) {
+		switch (type) {
+		case RESPONDED:
+			return JournalEntry.State.RESPONDED;
+		case NOT_SENT:
+			return JournalEntry.State.NOT_SENT;
+		case UNKNOWN:
+			return JournalEntry.State.UNKNOWN;
+		default:
+			return JournalEntry.State.PENDING;
+		}
+	}
+
+	private Segment newSegment(int number) throws IOException {
+		Segment segment = Segment.create(directory.resolve(String.format("journal-%08d.log", number)), number,
+				segmentSize);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	/// <summary>
+	/// Rebuild the index from segment's records, leaving it positioned after
+	/// the last whole record.
+	/// </summary>
+	private void recover(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = SEGMENT_HEADER;
+		boolean torn = false;
+		while (position + RECORD_HEADER <= buffer.limit()) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				break;
+			}
+			if (length < RECORD_HEADER || length > buffer.limit() - position
+					|| checksum(buffer, position, length) != buffer.getInt(position + 4)) {
+				torn = true;
+				break;
+			}
+
+			byte type = buffer.get(position + 8);
+			long id = buffer.getLong(position + 9);
+			nextId.accumulateAndGet(id + 1, Math::max);
+			if (type == REQUEST) {
+				String transactionUnique = readRecord(buffer, position, "transactionUnique").fields
+						.get("transactionUnique");
+				Slot slot = new Slot(transactionUnique, segment, position);
+				segment.unresolved.incrementAndGet();
+				entries.put(id, slot);
+				if (transactionUnique != null) {
+					byTransactionUnique.put(transactionUnique, id);
+				}
+			} else {
+				// Outcomes of requests in deleted segments are ignored.
+				Slot slot = entries.get(id);
+				if (slot != null) {
+					apply(slot, type, position(segment.number, position));
+				}
+			}
+			position += length;
+		}
+
+		if (torn) {
+			// Clear what is left of the torn record, so it can't be mistaken
+			// for records written after it.
+			for (int i = position; i < buffer.limit(); i++) {
+				buffer.put(i, (byte) 0);
+			}
+			segment.dirty = true;
+		}
+		buffer.position(position);
+	}
+
+	/// <summary>
+	/// The entry in slot, or null if its segment has been removed.
+	/// </summary>
+	private JournalEntry read(long id, Slot slot) {
+		JournalEntry.State state;
+		long outcome;
+		synchronized (slot) {
+			state = slot.state;
+			outcome = slot.outcome;
+		}
+
+		mapping.readLock().lock();
+		try {
+			if (slot.segment.unmapped) {
+				return null;
+			}
+			Record request = readRecord(slot.segment.buffer, slot.offset, null);
+			Map<String, String> response = null;
+			String error = null;
+			if (state != JournalEntry.State.PENDING) {
+				Segment segment = segments.get(segment(outcome));
+				Map<String, String> fields = segment == null || segment.unmapped ? Map.of()
+						: readRecord(segment.buffer, offset(outcome), null).fields;
+				if (state == JournalEntry.State.RESPONDED) {
+					response = fields;
+				} else {
+					error = fields.get("error");
+				}
+			}
+			return new JournalEntry(id, slot.transactionUnique, request.timestamp, state, request.fields,
+					response, error);
+		} finally {
+			mapping.readLock().unlock();
+		}
+	}
+
+	/// <summary>
+	/// Read the record at offset, with only the field named only if that is
+	/// not null.
+	/// </summary>
+	private static Record readRecord(ByteBuffer segment, int offset, String only) {
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(offset + 17);
+		long timestamp = buffer.getLong();
+		int count = buffer.getInt();
+
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			String name = readString(buffer);
+			if (only == null || only.equals(name)) {
+				fields.put(name, readString(buffer));
+			} else {
+				int length = buffer.getInt();
+				buffer.position(buffer.position() + Math.max(0, length));
+			}
+		}
+		return new Record(timestamp, fields);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int checksum(ByteBuffer segment, int offset, int length) {
+		ByteBuffer record = segment.duplicate();
+		record.position(offset + 8).limit(offset + length);
+		CRC32C crc = new CRC32C();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	/// <summary>
+	/// The value of field name as written to the journal.
+	/// </summary>
+	static String redact(String name, String value) {
+		if (value == null) {
+			return null;
+		}
+		if (REDACTED.contains(name)) {
+			return REDACTED_VALUE;
+		}
+		if ("cardNumber".equals(name)) {
+			// The first six and last four digits, as in the Gateway's
+			// cardNumberMask.
+			int length = value.length();
+			if (length < 13) {
+				return REDACTED_VALUE;
+			}
+			StringBuilder masked = new StringBuilder(length);
+			masked.append(value, 0, 6);
+			for (int i = 6; i < length - 4; i++) {
+				masked.append('*');
+			}
+			return masked.append(value, length - 4, length).toString();
+		}
+		return value;
+	}
+
+	private static int segmentNumber(Path file) {
+		Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+		matcher.matches();
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	private static long position(int segment, int offset) {
+		return (long) segment << 32 | offset;
+	}
+
+	private static int segment(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static int offset(long position) {
+		return (int) position;
+	}
+
+	/// <summary>
+	/// A memory-mapped segment file.
+	/// </summary>
+	private static final class Segment {
+		final Path file;
+		final int number;
+		final MappedByteBuffer buffer;
+		// Requests in this segment whose outcome is still to be learned.
+		final AtomicInteger unresolved = new AtomicInteger();
+		volatile boolean dirty;
+		// Set, with the journal's mapping lock held exclusively, once buffer
+		// must no longer be used.
+		volatile boolean unmapped;
+
+		private Segment(Path file, int number, MappedByteBuffer buffer) {
+			this.file = file;
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		static Segment create(Path file, int number, int size) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buffer.putInt(MAGIC).putInt(size);
+				Segment segment = new Segment(file, number, buffer);
+				segment.dirty = true;
+				return segment;
+			}
+		}
+
+		/// <summary>
+		/// Open an existing segment. One whose header never reached the disk,
+		/// because the process stopped just after creating it, is started
+		/// again with size.
+		/// </summary>
+		static Segment open(Path file, int number, int size) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+				while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+					// Read until full or at the end of the file.
+				}
+				if (header.hasRemaining() || header.getLong(0) == 0) {
+					channel.truncate(0);
+					MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+					buffer.putInt(MAGIC).putInt(size);
+					Segment segment = new Segment(file, number, buffer);
+					segment.dirty = true;
+					return segment;
+				}
+				if (header.getInt(0) != MAGIC) {
+					throw new IOException("Not a journal segment: " + file);
+				}
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+				return new Segment(file, number, buffer);
+			}
+		}
+	}
+
+	/// <summary>
+	/// Where an entry's records are, and its state.
+	/// </summary>
+	private static final class Slot {
+		final String transactionUnique;
+		final Segment segment;
+		final int offset;
+		// Position of the latest outcome; the slot's lock is held while the
+		// outcome is written, so it matches state.
+		long outcome;
+		volatile JournalEntry.State state = JournalEntry.State.PENDING;
+
+		Slot(String transactionUnique, Segment segment, int offset) {
+			this.transactionUnique = transactionUnique;
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	/// <summary>
+	/// Unmaps buffers through sun.misc.Unsafe.invokeCleaner, the only way
+	/// the JDK offers to release a mapping before the buffer is collected.
+	/// </summary>
+	private static final class Unmapper {
+		private final Object unsafe;
+		private final Method invokeCleaner;
+
+		private Unmapper(Object unsafe, Method invokeCleaner) {
+			this.unsafe = unsafe;
+			this.invokeCleaner = invokeCleaner;
+		}
+
+		static Unmapper find() {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				return new Unmapper(theUnsafe.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return null;
+			}
+		}
+
+		void unmap(MappedByteBuffer buffer) {
+			try {
+				invokeCleaner.invoke(unsafe, buffer);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				// Unmapped when collected instead.
+			}
+		}
+	}
+
+	private static final class Record {
+		final long timestamp;
+		final Map<String, String> fields;
+
+		Record(long timestamp, Map<String, String> fields) {
+			this.timestamp = timestamp;
+			this.fields = fields;
+		}
+	}
+
+	/// <summary>
+	/// Encodes a record in a buffer reused by its thread, outside the
+	/// journal's lock.
+	/// </summary>
+	private static final class RecordWriter {
+		private ByteBuffer buffer = ByteBuffer.allocate(4096);
+		private int count;
+
+		void begin(byte type, long id) {
+			buffer.clear();
+			buffer.position(8);
+			buffer.put(type).putLong(id).putLong(System.currentTimeMillis()).putInt(0);
+			count = 0;
+		}
+
+		void field(String name, String value) {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			String redacted = redact(name, value);
+			byte[] valueBytes = redacted == null ? null : redacted.getBytes(StandardCharsets.UTF_8);
+
+			int needed = 8 + nameBytes.length + (valueBytes == null ? 0 : valueBytes.length);
+			if (buffer.remaining() < needed) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+
+			buffer.putInt(nameBytes.length).put(nameBytes);
+			if (valueBytes == null) {
+				buffer.putInt(-1);
+			} else {
+				buffer.putInt(valueBytes.length).put(valueBytes);
+			}
+			count++;
+		}
+
+		/// <summary>
+		/// The encoded record, ready to be copied.
+		/// </summary>
+		ByteBuffer finish() {
+			int length = buffer.position();
+			buffer.putInt(RECORD_HEADER - 4, count);
+			CRC32C crc = new CRC32C();
+			crc.update(buffer.array(), 8, length - 8);
+			buffer.putInt(0, length).putInt(4, (int) crc.getValue());
+			buffer.flip();
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class RequestJournalTest extends TestCase {
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("journal");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private static List<NameValuePair> request(String transactionUnique) {
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		fields.add(new BasicNameValuePair("action", "SALE"));
+		fields.add(new BasicNameValuePair("amount", "1001"));
+		fields.add(new BasicNameValuePair("transactionUnique", transactionUnique));
+		fields.add(new BasicNameValuePair("cardNumber", "4012001037141112"));
+		fields.add(new BasicNameValuePair("cardCVV", "083"));
+		fields.add(new BasicNameValuePair("orderRef", "Test £ purchase"));
+		return fields;
+	}
+
+	// Test that entries and their outcomes are read back when the journal is
+	// reopened, and only those without an outcome are unresolved.
+	@Test
+	public void testRecoversUnresolved() throws Exception {
+		long pending;
+		long answered;
+		long notSent;
+		long uncertain;
+		try (var journal = new RequestJournal(directory)) {
+			pending = journal.recordRequest(request("INV1"));
+			answered = journal.recordRequest(request("INV2"));
+			journal.recordResponse(answered, Map.of("responseCode", "0", "transactionUnique", "INV2"));
+			notSent = journal.recordRequest(request("INV3"));
+			journal.recordFailure(notSent, new ConnectException("Connection refused"), false);
+			uncertain = journal.recordRequest(request("INV4"));
+			journal.recordFailure(uncertain, new SocketTimeoutException("Read timed out"), true);
+		}
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(4, journal.size());
+
+			var unresolved = journal.getUnresolved();
+			assertEquals(2, unresolved.size());
+			assertEquals(pending, unresolved.get(0).getId());
+			assertEquals(JournalEntry.State.PENDING, unresolved.get(0).getState());
+			assertEquals(uncertain, unresolved.get(1).getId());
+			assertEquals(JournalEntry.State.UNKNOWN, unresolved.get(1).getState());
+			assertTrue(unresolved.get(1).getError().contains("Read timed out"));
+
+			var entry = journal.find("INV2");
+			assertEquals(answered, entry.getId());
+			assertEquals(JournalEntry.State.RESPONDED, entry.getState());
+			assertEquals("0", entry.getResponse().get("responseCode"));
+			assertEquals("Test £ purchase", entry.getRequest().get("orderRef"));
+			assertEquals(List.of("action", "amount", "transactionUnique", "cardNumber", "cardCVV", "orderRef"),
+					new ArrayList<String>(entry.getRequest().keySet()));
+			assertEquals(JournalEntry.State.NOT_SENT, journal.get(notSent).getState());
+
+			// New entries don't reuse ids.
+			long next = journal.recordRequest(request("INV5"));
+			assertTrue(next > uncertain);
+			journal.resolveNotSent(next);
+
+			journal.resolve(pending, Map.of("responseCode", "5"));
+		}
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(1, journal.getUnresolved().size());
+			assertEquals(uncertain, journal.getUnresolved().get(0).getId());
+			assertEquals("5", journal.get(pending).getResponse().get("responseCode"));
+		}
+	}
+
+	// Test that card data never reaches the journal's files.
+	@Test
+	public void testRedactsCardData() throws Exception {
+		try (var journal = new RequestJournal(directory)) {
+			long id = journal.recordRequest(request("INV1"));
+			var entry = journal.get(id);
+			assertEquals("401200******1112", entry.getRequest().get("cardNumber"));
+			assertEquals("***", entry.getRequest().get("cardCVV"));
+		}
+
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+				assertFalse(content.contains("4012001037141112"));
+				assertFalse(content.contains("083"));
+			}
+		}
+	}
+
+	// Test that a record torn by a crash is ignored, and overwritten by the
+	// next.
+	@Test
+	public void testIgnoresTornRecord() throws Exception {
+		try (var journal = new RequestJournal(directory)) {
+			journal.recordRequest(request("INV1"));
+			journal.recordRequest(request("INV2"));
+		}
+
+		// Damage the end of the second record.
+		Path segment = directory.resolve("journal-00000001.log");
+		try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+			long end = 8;
+			while (true) {
+				file.seek(end);
+				int length = file.readInt();
+				if (length == 0) {
+					break;
+				}
+				end += length;
+			}
+			file.seek(end - 3);
+			file.write(new byte[] { 1, 2, 3 });
+		}
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(1, journal.size());
+			assertNull(journal.find("INV2"));
+			journal.recordRequest(request("INV3"));
+		}
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(2, journal.size());
+			assertNotNull(journal.find("INV1"));
+			assertNotNull(journal.find("INV3"));
+		}
+	}
+
+	// Test that the journal moves on to new segments as they fill, and that
+	// old segments are deleted only once everything in them is resolved.
+	@Test
+	public void testRemovesResolvedSegments() throws Exception {
+		List<Long> ids = new ArrayList<Long>();
+		int kept;
+		try (var journal = new RequestJournal(directory, 4096, 10, TimeUnit.MILLISECONDS)) {
+			for (int n = 0; n < 100; n++) {
+				ids.add(journal.recordRequest(request("INV" + n)));
+			}
+			try (Stream<Path> files = Files.list(directory)) {
+				assertTrue(files.count() > 3);
+			}
+
+			assertEquals(0, journal.removeResolvedSegments());
+
+			for (long id : ids.subList(1, ids.size())) {
+				journal.recordResponse(id, Map.of("responseCode", "0"));
+			}
+			assertEquals(0, journal.removeResolvedSegments());
+
+			journal.recordResponse(ids.get(0), Map.of("responseCode", "0"));
+			long pending = journal.recordRequest(request("INV100"));
+			// Also removed when the next segment is started, which writing
+			// INV100 may have done.
+			journal.removeResolvedSegments();
+			assertFalse(Files.exists(directory.resolve("journal-00000001.log")));
+			assertNull(journal.get(ids.get(0)));
+			assertNull(journal.find("INV0"));
+			assertEquals(JournalEntry.State.PENDING, journal.get(pending).getState());
+			kept = journal.size();
+			assertTrue(kept < 101);
+		}
+
+		try (var journal = new RequestJournal(directory, 4096, 10, TimeUnit.MILLISECONDS)) {
+			assertEquals(kept, journal.size());
+			assertEquals(1, journal.getUnresolved().size());
+			assertEquals("INV100", journal.getUnresolved().get(0).getTransactionUnique());
+		}
+	}
+
+	// Test that resolved segments are removed as new ones are started, so
+	// that the journal stays small while requests are resolved.
+	@Test
+	public void testRetainsOnlyUnresolvedSegments() throws Exception {
+		try (var journal = new RequestJournal(directory, 4096, 10, TimeUnit.MILLISECONDS)) {
+			for (int n = 0; n < 500; n++) {
+				long id = journal.recordRequest(request("INV" + n));
+				journal.recordResponse(id, Map.of("responseCode", "0"));
+			}
+
+			// Segments are removed on the journal's own thread.
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (segmentCount() > 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(segmentCount() <= 2);
+			assertTrue(journal.size() < 500);
+			assertNotNull(journal.find("INV499"));
+		}
+	}
+
+	// Test that a segment left empty by a crash just after it was created is
+	// started again.
+	@Test
+	public void testReopensEmptySegment() throws Exception {
+		try (var journal = new RequestJournal(directory)) {
+			journal.recordRequest(request("INV1"));
+		}
+		Files.createFile(directory.resolve("journal-00000002.log"));
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(1, journal.size());
+			journal.recordRequest(request("INV2"));
+		}
+
+		try (var journal = new RequestJournal(directory)) {
+			assertEquals(2, journal.size());
+			assertNotNull(journal.find("INV2"));
+		}
+	}
+
+	// Test that an entry removed with its segment is reported as gone when
+	// it is sent again, rather than silently left unjournaled.
+	@Test
+	public void testResentAfterRemoval() throws Exception {
+		try (var journal = new RequestJournal(directory, 4096, 10, TimeUnit.MILLISECONDS)) {
+			long id = journal.recordRequest(request("INV0"));
+			journal.resolveNotSent(id);
+			assertTrue(journal.recordResent(id));
+			journal.resolveNotSent(id);
+			for (int n = 1; n < 100; n++) {
+				journal.recordResponse(journal.recordRequest(request("INV" + n)), Map.of("responseCode", "0"));
+			}
+			journal.removeResolvedSegments();
+			assertNull(journal.get(id));
+			assertFalse(journal.recordResent(id));
+		}
+	}
+
+	private long segmentCount() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	// Test that a Gateway journals each request with its outcome.
+	@Test
+	public void testGatewayJournalsRequests() throws Exception {
+		try (var journal = new RequestJournal(directory);
+				var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						new ConnectionConfig().setJournal(journal))) {
+
+			var request = GatewayUtils.getInitialForm();
+			String transactionUnique = request.get("transactionUnique");
+			var response = gateway.directRequest(request, null);
+
+			var entry = journal.find(transactionUnique);
+			assertEquals(JournalEntry.State.RESPONDED, entry.getState());
+			assertEquals(response.get("responseCode"), entry.getResponse().get("responseCode"));
+			assertNotNull(entry.getRequest().get("signature"));
+
+			simulator.setFaultRate(GatewaySimulator.Fault.DISCONNECT, 1);
+			request = GatewayUtils.getInitialForm();
+			request.put("transactionUnique", transactionUnique + "-2");
+			try {
+				gateway.directRequestAsync(request, null).get();
+				Assert.fail();
+			} catch (ExecutionException e) {
+				// Expected
+			}
+			assertEquals(JournalEntry.State.UNKNOWN, journal.find(transactionUnique + "-2").getState());
+		}
+	}
+
+	// Test that a response decoded into a GatewayResponse is journaled with
+	// every field.
+	@Test
+	public void testGatewayJournalsGatewayResponse() throws Exception {
+		try (var journal = new RequestJournal(directory);
+				var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						new ConnectionConfig().setJournal(journal))) {
+
+			var request = GatewayUtils.getInitialForm();
+			GatewayResponse response = gateway.directResponse(request, null);
+
+			var entry = journal.find(request.get("transactionUnique"));
+			assertEquals(JournalEntry.State.RESPONDED, entry.getState());
+			assertEquals(response.toMap(), entry.getResponse());
+		}
+	}
+
+	// Test that a request that couldn't connect is journaled as not sent.
+	@Test
+	public void testGatewayJournalsNotSent() throws Exception {
+		int port;
+		try (var socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		try (var journal = new RequestJournal(directory);
+				var gateway = new Gateway("100856", "Circle4Take40Idea", "http://127.0.0.1:" + port + "/direct/",
+						null, null, new ConnectionConfig().setJournal(journal))) {
+			var request = GatewayUtils.getInitialForm();
+			try {
+				gateway.directRequest(request, null);
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected
+			}
+			assertEquals(JournalEntry.State.NOT_SENT, journal.find(request.get("transactionUnique")).getState());
+			assertTrue(journal.getUnresolved().isEmpty());
+		}
+	}
+
+	// Test that a request which couldn't connect, and is sent again once its
+	// entry has been removed with its segment, is journaled as a new entry
+	// and its approval is returned.
+	@Test
+	public void testGatewayResendsAfterRemoval() throws Exception {
+		int port;
+		try (var socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		try (var journal = new RequestJournal(directory, 4096, 10, TimeUnit.MILLISECONDS);
+				var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						new ConnectionConfig().setJournal(journal))) {
+			var request = GatewayUtils.getInitialForm();
+			String transactionUnique = request.get("transactionUnique");
+			var unreachable = new HashMap<String, String>(request);
+			unreachable.put("directUrl", "http://127.0.0.1:" + port + "/direct/");
+			var failed = gateway.buildDirectRequest(unreachable, null);
+			try {
+				gateway.sendDirectRequest(failed, null);
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected
+			}
+			assertEquals(JournalEntry.State.NOT_SENT, journal.get(failed.journalId).getState());
+
+			for (int n = 0; n < 100; n++) {
+				journal.recordResponse(journal.recordRequest(request("INV" + n)), Map.of("responseCode", "0"));
+			}
+			journal.removeResolvedSegments();
+			assertNull(journal.get(failed.journalId));
+
+			// Sent again continuing the removed entry, as a retry would.
+			var resent = gateway.buildDirectRequest(request, null);
+			resent.journalId = failed.journalId;
+			var response = gateway.sendDirectRequest(resent, null);
+
+			assertEquals("0", response.get("responseCode"));
+			assertEquals(0, journal.getLostOutcomeCount());
+			assertTrue(resent.journalId != failed.journalId);
+			assertEquals(JournalEntry.State.RESPONDED, journal.find(transactionUnique).getState());
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.paymentnetwork;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// <summary>
+/// Non-blocking limit on the number of tasks running at once.
+///
+/// Submitted tasks run immediately, on the submitting thread, while fewer
+/// than maxConcurrent are running; otherwise they are queued and run by the
+/// thread that calls release() for an earlier task. Every task that is run
+/// must eventually be matched by exactly one call to release().
+/// </summary>
+class RequestLimiter {
+	private final int maxConcurrent;
+	private final AtomicInteger running = new AtomicInteger();
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+	RequestLimiter(int maxConcurrent) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+		}
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	void submit(Runnable task) {
+		waiting.add(task);
+		drain();
+	}
+
+	void release() {
+		running.decrementAndGet();
+		drain();
+	}
+
+	/// <summary>
+	/// Number of tasks currently running.
+	/// </summary>
+	int getRunning() {
+		return running.get();
+	}
+
+	/// <summary>
+	/// Number of tasks waiting for a free slot.
+	/// </summary>
+	int getWaiting() {
+		return waiting.size();
+	}
+
+	private void drain() {
+		// The queue is re-checked after every slot is given back, so a task
+		// queued while this thread briefly held a slot is never stranded.
+		while (!waiting.isEmpty()) {
+			int current = running.get();
+			if (current >= maxConcurrent) {
+				return;
+			}
+			if (!running.compareAndSet(current, current + 1)) {
+				continue;
+			}
+
+			Runnable task = waiting.poll();
+			if (task == null) {
+				running.decrementAndGet();
+				continue;
+			}
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.paymentnetwork;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/// <summary>
+/// Settings for a ResilientGateway: deadlines, retries, the circuit breaker,
+/// the bulkhead and idempotent replay.
+///
+/// The defaults retry connection failures twice and open the circuit when
+/// half of the last 100 requests have failed; there is no deadline or
+/// concurrency limit until one is set. Every setter returns this object so
+/// settings can be chained.
+/// </summary>
+public class ResilienceConfig {
+	private Timeout attemptTimeout;
+	private Timeout requestTimeout;
+	private int maxAttempts = 3;
+	private TimeValue initialBackoff = TimeValue.ofMilliseconds(100);
+	private TimeValue maxBackoff = TimeValue.ofSeconds(2);
+
+	private int windowSize = 100;
+	private int minimumCalls = 20;
+	private double failureRateThreshold = 0.5;
+	private TimeValue slowCallDuration;
+	private double slowCallRateThreshold = 1;
+	private TimeValue openDuration = TimeValue.ofSeconds(30);
+	private int halfOpenCalls = 5;
+
+	private int maxConcurrentRequests = Integer.MAX_VALUE;
+	private TimeValue maxWait = TimeValue.ZERO_MILLISECONDS;
+
+	private int maxReplayEntries = 10000;
+	private TimeValue replayTtl = TimeValue.ofHours(1);
+
+	/// <summary>
+	/// Time allowed for each attempt to send the request and receive a
+	/// verified response, or null for none.
+	/// </summary>
+	public Timeout getAttemptTimeout() {
+		return attemptTimeout;
+	}
+
+	public ResilienceConfig setAttemptTimeout(long duration, TimeUnit unit) {
+		this.attemptTimeout = Timeout.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Time allowed for the whole request, including every attempt, the
+	/// backoff between them and any wait for the bulkhead, or null for none.
+	/// </summary>
+	public Timeout getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public ResilienceConfig setRequestTimeout(long duration, TimeUnit unit) {
+		this.requestTimeout = Timeout.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of times a request is sent. Only requests that could
+	/// not connect to the Gateway, and so cannot have reached it, are sent
+	/// again.
+	/// </summary>
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public ResilienceConfig setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/// <summary>
+	/// Retries wait a random time up to initial * 2^(retry - 1), capped at
+	/// max ("full jitter"), so that clients recovering from the same outage
+	/// don't retry in step.
+	/// </summary>
+	public ResilienceConfig setBackoff(long initial, long max, TimeUnit unit) {
+		if (initial < 0 || max < initial) {
+			throw new IllegalArgumentException("Backoff must be at least 0 and initial no more than max");
+		}
+		this.initialBackoff = TimeValue.of(initial, unit);
+		this.maxBackoff = TimeValue.of(max, unit);
+		return this;
+	}
+
+	public TimeValue getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public TimeValue getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/// <summary>
+	/// The circuit breaker judges the Gateway on the outcome of the last
+	/// windowSize requests, once at least minimumCalls have been made.
+	/// </summary>
+	public ResilienceConfig setWindow(int windowSize, int minimumCalls) {
+		if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+			throw new IllegalArgumentException(
+					"windowSize and minimumCalls must be at least 1, and minimumCalls no more than windowSize");
+		}
+		this.windowSize = windowSize;
+		this.minimumCalls = minimumCalls;
+		return this;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	/// <summary>
+	/// Fraction of requests in the window, from 0 to 1, that must fail for
+	/// the circuit to open.
+	/// </summary>
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public ResilienceConfig setFailureRateThreshold(double failureRateThreshold) {
+		if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+			throw new IllegalArgumentException("failureRateThreshold must be greater than 0 and at most 1");
+		}
+		this.failureRateThreshold = failureRateThreshold;
+		return this;
+	}
+
+	/// <summary>
+	/// The circuit also opens when at least rateThreshold of the requests in
+	/// the window, from 0 to 1, took longer than duration, even if they
+	/// succeeded. By default slow requests aren't counted.
+	/// </summary>
+	public ResilienceConfig setSlowCallThreshold(long duration, TimeUnit unit, double rateThreshold) {
+		if (rateThreshold <= 0 || rateThreshold > 1) {
+			throw new IllegalArgumentException("rateThreshold must be greater than 0 and at most 1");
+		}
+		this.slowCallDuration = TimeValue.of(duration, unit);
+		this.slowCallRateThreshold = rateThreshold;
+		return this;
+	}
+
+	/// <summary>
+	/// Requests taking longer than this count as slow, or null if slow
+	/// requests aren't counted.
+	/// </summary>
+	public TimeValue getSlowCallDuration() {
+		return slowCallDuration;
+	}
+
+	public double getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	/// <summary>
+	/// How long an open circuit refuses requests before letting a few
+	/// through to test whether the Gateway has recovered.
+	/// </summary>
+	public TimeValue getOpenDuration() {
+		return openDuration;
+	}
+
+	public ResilienceConfig setOpenDuration(long duration, TimeUnit unit) {
+		this.openDuration = TimeValue.of(duration, unit);
+		return this;
+	}
+
+	/// <summary>
+	/// Number of test requests let through after openDuration. The circuit
+	/// closes if they all succeed and opens again if any fails.
+	/// </summary>
+	public int getHalfOpenCalls() {
+		return halfOpenCalls;
+	}
+
+	public ResilienceConfig setHalfOpenCalls(int halfOpenCalls) {
+		if (halfOpenCalls < 1) {
+			throw new IllegalArgumentException("halfOpenCalls must be at least 1");
+		}
+		this.halfOpenCalls = halfOpenCalls;
+		return this;
+	}
+
+	/// <summary>
+	/// Maximum number of requests in flight at once (the bulkhead). A request
+	/// arriving when the limit is reached waits up to maxWait for another to
+	/// finish, and is refused if none does.
+	/// </summary>
+	public ResilienceConfig setMaxConcurrentRequests(int maxConcurrentRequests, long maxWait, TimeUnit unit) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.maxWait = TimeValue.of(maxWait, unit);
+		return this;
+	}
+
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	public TimeValue getMaxWait() {
+		return maxWait;
+	}
+
+	/// <summary>
+	/// Requests are remembered by transactionUnique for ttl, up to
+	/// maxEntries of them, so that sending the same transaction again
+	/// returns its response rather than sending it twice. Only a digest of
+	/// each request's fields is kept.
+	/// </summary>
+	public ResilienceConfig setReplay(int maxEntries, long ttl, TimeUnit unit) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries must be at least 0");
+		}
+		this.maxReplayEntries = maxEntries;
+		this.replayTtl = TimeValue.of(ttl, unit);
+		return this;
+	}
+
+	public int getMaxReplayEntries() {
+		return maxReplayEntries;
+	}
+
+	public TimeValue getReplayTtl() {
+		return replayTtl;
+	}
+}
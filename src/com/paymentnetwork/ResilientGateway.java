@@ -0,0 +1,417 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.util.Timeout;
+
+/// <summary>
+/// Sends Direct API requests through a Gateway, keeping callers' waits
+/// bounded when the Gateway is slow or failing.
+///
+/// - Each attempt, and the request as a whole, can be given a deadline,
+///   after which the exchange is aborted (see ResilienceConfig).
+/// - Requests that could not connect to the Gateway, and so cannot have
+///   reached it, are retried after a jittered exponential backoff. Requests
+///   that may have reached the Gateway are never retried, since a payment
+///   could be taken twice.
+/// - Requests are remembered by transactionUnique. Sending a transaction
+///   again, for example after a timeout, waits for the request in flight,
+///   and once a verified response has been received it is returned without
+///   sending the request again. Sending different fields under a
+///   transactionUnique already used fails with an IllegalStateException.
+///   Only a digest of each transaction's fields is kept, never its card
+///   data.
+/// - A circuit breaker refuses requests for a while once too many have
+///   failed or been slow, and a bulkhead limits the number in flight.
+///   Refused requests fail at once with a GatewayRejectedException.
+///
+/// A ResilientGateway can be shared by every thread sending requests. It
+/// does not own its Gateway, which must still be closed.
+/// </summary>
+public class ResilientGateway {
+
+	/// <summary>
+	/// States of the circuit breaker.
+	/// </summary>
+	public enum CircuitState {
+		/// Requests are sent.
+		CLOSED,
+		/// Requests are refused.
+		OPEN,
+		/// A few trial requests are sent to see if the Gateway has recovered.
+		HALF_OPEN
+	}
+
+	private final Gateway gateway;
+	private final ResilienceConfig config;
+	private final CircuitBreaker breaker;
+	private final Semaphore bulkhead;
+	private final Replays replays;
+
+	public ResilientGateway(Gateway gateway, ResilienceConfig config) {
+		if (gateway == null) {
+			throw new NullPointerException("Gateway must be provided.");
+		}
+		this.gateway = gateway;
+		this.config = config == null ? new ResilienceConfig() : config;
+		this.breaker = new CircuitBreaker(this.config);
+		this.bulkhead = this.config.getMaxConcurrentRequests() == Integer.MAX_VALUE ? null
+				: new Semaphore(this.config.getMaxConcurrentRequests());
+		this.replays = this.config.getMaxReplayEntries() == 0 ? null
+				: new Replays(this.config.getMaxReplayEntries(), this.config.getReplayTtl().toNanoseconds());
+	}
+
+	/// <summary>
+	/// Send request as Gateway.directRequest does, with the protections
+	/// described above.
+	/// </summary>
+	/// <param name="request"> Request data </params>
+	/// <param name="options"> Not currently used </params>
+	public Map<String, String> directRequest(Map<String, String> request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return send(gateway.buildDirectRequest(request, options));
+	}
+
+	/// <summary>
+	/// As directRequest(Map, Map), for a GatewayRequest.
+	/// </summary>
+	public Map<String, String> directRequest(GatewayRequest request, Map<String, String> options)
+			throws IOException, URISyntaxException {
+		return send(gateway.buildDirectRequest(request, options));
+	}
+
+	public CircuitState getCircuitState() {
+		return breaker.getState();
+	}
+
+	/// <summary>
+	/// Number of requests in flight, or -1 if there is no bulkhead.
+	/// </summary>
+	public int getActiveRequests() {
+		return bulkhead == null ? -1 : config.getMaxConcurrentRequests() - bulkhead.availablePermits();
+	}
+
+	private Map<String, String> send(Gateway.PreparedRequest request) throws IOException {
+		long start = System.nanoTime();
+		Timeout requestTimeout = config.getRequestTimeout();
+		long deadline = requestTimeout == null ? 0 : start + requestTimeout.toNanoseconds();
+
+		String transactionUnique = replays == null ? null : find(request, "transactionUnique");
+		if (transactionUnique == null) {
+			return execute(request, deadline);
+		}
+
+		Replay replay = replays.claim(transactionUnique, request);
+		if (!replay.owner) {
+			return new LinkedHashMap<String, String>(await(replay.outcome, deadline));
+		}
+
+		try {
+			Map<String, String> response = execute(request, deadline);
+			replay.outcome.complete(response);
+			return new LinkedHashMap<String, String>(response);
+		} catch (IOException | RuntimeException | Error e) {
+			// Whatever is thrown, so that waiters aren't left waiting.
+			replays.failed(transactionUnique, replay.outcome, request, e);
+			replay.outcome.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	/// <summary>
+	/// Send request, retrying connection failures, within the bulkhead and
+	/// circuit breaker.
+	/// </summary>
+	private Map<String, String> execute(Gateway.PreparedRequest request, long deadline) throws IOException {
+		if (breaker.getState() == CircuitState.OPEN) {
+			throw circuitOpen();
+		}
+
+		if (bulkhead != null) {
+			long wait = config.getMaxWait().toNanoseconds();
+			if (deadline != 0) {
+				wait = Math.min(wait, deadline - System.nanoTime());
+			}
+			try {
+				if (!bulkhead.tryAcquire(Math.max(0, wait), TimeUnit.NANOSECONDS)) {
+					throw new GatewayRejectedException(
+							"Too many requests in flight (" + config.getMaxConcurrentRequests() + ")");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the bulkhead");
+			}
+		}
+
+		try {
+			for (int attempt = 1;; attempt++) {
+				Timeout timeout = attemptTimeout(deadline);
+				if (!breaker.tryAcquire()) {
+					throw circuitOpen();
+				}
+
+				long attemptStart = System.nanoTime();
+				try {
+					Map<String, String> response = gateway.sendDirectRequest(request, timeout);
+					breaker.onSuccess(System.nanoTime() - attemptStart);
+					return response;
+				} catch (IOException | RuntimeException e) {
+					breaker.onFailure(System.nanoTime() - attemptStart);
+					if (attempt >= config.getMaxAttempts() || !isConnectFailure(e)) {
+						throw e;
+					}
+
+					long backoff = backoff(attempt);
+					if (deadline != 0 && System.nanoTime() + backoff - deadline >= 0) {
+						throw e;
+					}
+					try {
+						TimeUnit.NANOSECONDS.sleep(backoff);
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted before retrying");
+					}
+				}
+			}
+		} finally {
+			if (bulkhead != null) {
+				bulkhead.release();
+			}
+		}
+	}
+
+	/// <summary>
+	/// The timeout for an attempt starting now: the attempt timeout, cut
+	/// short by the overall deadline.
+	/// </summary>
+	private Timeout attemptTimeout(long deadline) throws SocketTimeoutException {
+		Timeout timeout = config.getAttemptTimeout();
+		if (deadline == 0) {
+			return timeout;
+		}
+
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Request timed out after " + config.getRequestTimeout());
+		}
+		if (timeout == null || timeout.toNanoseconds() > remaining) {
+			// Timeouts are applied to the millisecond.
+			timeout = Timeout.ofMilliseconds(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+		}
+		return timeout;
+	}
+
+	/// <summary>
+	/// A random backoff before retry number attempt, up to the initial
+	/// backoff doubled for each earlier retry and no more than the maximum.
+	/// </summary>
+	private long backoff(int attempt) {
+		long initial = config.getInitialBackoff().toNanoseconds();
+		long max = config.getMaxBackoff().toNanoseconds();
+		long ceiling = (long) Math.min(max, initial * Math.pow(2, attempt - 1));
+		return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/// <summary>
+	/// Whether e shows the request never reached the Gateway because no
+	/// connection could be made to it.
+	/// </summary>
+	static boolean isConnectFailure(Throwable e) {
+		return e instanceof ConnectException
+				|| e instanceof ConnectTimeoutException
+				|| e instanceof UnknownHostException
+				|| e instanceof NoRouteToHostException;
+	}
+
+	private GatewayRejectedException circuitOpen() {
+		return new GatewayRejectedException(
+				"Circuit breaker is open; retry in " + breaker.getRetryAfterMillis() + " ms");
+	}
+
+	/// <summary>
+	/// Wait, until deadline, for another thread sending the same transaction.
+	/// </summary>
+	private static Map<String, String> await(CompletableFuture<Map<String, String>> outcome, long deadline)
+			throws IOException {
+		try {
+			if (deadline == 0) {
+				return outcome.get();
+			}
+			return outcome.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the same transaction");
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("Timed out waiting for the same transaction");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static String find(Gateway.PreparedRequest request, String name) {
+		for (NameValuePair field : request.fields) {
+			if (field.getName().equals(name)) {
+				return field.getValue();
+			}
+		}
+		return null;
+	}
+
+	/// <summary>
+	/// A transaction sent through this ResilientGateway: a digest of its
+	/// fields, and the outcome of sending it, which is replaced when the
+	/// request is sent again after a failure.
+	/// </summary>
+	private static final class Replay {
+		final byte[] digest;
+		final long created;
+		CompletableFuture<Map<String, String>> outcome;
+		// The journal entry of a failed attempt, which a resend continues.
+		long journalId;
+		// Set in the copy returned by claim: whether the caller sends the request.
+		boolean owner;
+
+		Replay(byte[] digest, long created) {
+			this.digest = digest;
+			this.created = created;
+		}
+
+		/// <summary>
+		/// SHA-256 of request's fields, apart from the signature, in name
+		/// order.
+		/// </summary>
+		static byte[] digest(Gateway.PreparedRequest request) {
+			List<NameValuePair> fields = new ArrayList<NameValuePair>(request.fields);
+			fields.removeIf(field -> field.getName().equals("signature"));
+			fields.sort(Comparator.comparing(NameValuePair::getName)
+					.thenComparing(NameValuePair::getValue, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			for (NameValuePair field : fields) {
+				update(digest, field.getName());
+				update(digest, field.getValue());
+			}
+			return digest.digest();
+		}
+
+		// Each string is prefixed with its length, so fields can't run together.
+		private static void update(MessageDigest digest, String value) {
+			byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+			digest.update(ByteBuffer.allocate(4).putInt(value == null ? -1 : bytes.length).array());
+			digest.update(bytes);
+		}
+	}
+
+	/// <summary>
+	/// Transactions by transactionUnique, oldest first, up to a maximum
+	/// number and age.
+	/// </summary>
+	private static final class Replays {
+		private final int maxEntries;
+		private final long ttlNanos;
+		private final LinkedHashMap<String, Replay> entries = new LinkedHashMap<String, Replay>();
+
+		Replays(int maxEntries, long ttlNanos) {
+			this.maxEntries = maxEntries;
+			this.ttlNanos = ttlNanos;
+		}
+
+		/// <summary>
+		/// The transaction for transactionUnique, recording request's fields
+		/// if it is new. The result's owner flag is set if the caller must
+		/// send request, and clear if it should wait for the outcome of
+		/// another caller's, or the response already received.
+		/// </summary>
+		synchronized Replay claim(String transactionUnique, Gateway.PreparedRequest request) {
+			long now = System.nanoTime();
+			expire(now);
+
+			byte[] digest = Replay.digest(request);
+			Replay replay = entries.get(transactionUnique);
+			if (replay == null) {
+				replay = new Replay(digest, now);
+				entries.put(transactionUnique, replay);
+				if (entries.size() > maxEntries) {
+					Iterator<Replay> oldest = entries.values().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+			} else if (!MessageDigest.isEqual(replay.digest, digest)) {
+				throw new IllegalStateException(
+						"transactionUnique " + transactionUnique + " has already been sent with different fields");
+			}
+
+			Replay claim = new Replay(replay.digest, replay.created);
+			if (replay.outcome == null || replay.outcome.isCompletedExceptionally()) {
+				replay.outcome = new CompletableFuture<Map<String, String>>();
+				claim.owner = true;
+				// Journal the resend as a retry of the failed attempt.
+				synchronized (request) {
+					if (request.journalId == 0) {
+						request.journalId = replay.journalId;
+					}
+				}
+			}
+			claim.outcome = replay.outcome;
+			return claim;
+		}
+
+		/// <summary>
+		/// Record that request, sent for outcome, failed, so that its journal
+		/// entry is continued when it is sent again. A request that was never
+		/// sent has been journaled as resolved, and may be removed with its
+		/// segment, so sending it again starts a new entry.
+		/// </summary>
+		synchronized void failed(String transactionUnique, CompletableFuture<Map<String, String>> outcome,
+				Gateway.PreparedRequest request, Throwable error) {
+			Replay replay = entries.get(transactionUnique);
+			if (replay != null && replay.outcome == outcome) {
+				synchronized (request) {
+					replay.journalId = Gateway.isNotSent(error) ? 0 : request.journalId;
+				}
+			}
+		}
+
+		private void expire(long now) {
+			Iterator<Replay> oldest = entries.values().iterator();
+			while (oldest.hasNext() && now - oldest.next().created > ttlNanos) {
+				oldest.remove();
+			}
+		}
+	}
+}
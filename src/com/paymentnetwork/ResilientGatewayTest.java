@@ -0,0 +1,283 @@
+package com.paymentnetwork;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ResilientGatewayTest extends TestCase {
+
+	// Test that requests that can't connect are retried, and count towards
+	// opening the circuit, after which requests are refused without trying.
+	@Test
+	public void testRetriesConnectionFailures() throws Exception {
+		int port;
+		try (var socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		var config = new ResilienceConfig()
+				.setMaxAttempts(3)
+				.setBackoff(1, 5, TimeUnit.MILLISECONDS)
+				.setWindow(3, 3)
+				.setFailureRateThreshold(1);
+
+		try (var gateway = new Gateway("100856", "Circle4Take40Idea", "http://127.0.0.1:" + port + "/direct/",
+				null, null)) {
+			var resilient = new ResilientGateway(gateway, config);
+
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (ConnectException e) {
+				// Expected, after three attempts.
+			}
+			assertEquals(ResilientGateway.CircuitState.OPEN, resilient.getCircuitState());
+
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (GatewayRejectedException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Circuit breaker is open"));
+			}
+		}
+	}
+
+	// Test that a request that may have reached the Gateway is not retried.
+	@Test
+	public void testDoesNotRetryAfterSending() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea")
+				.setFaultRate(GatewaySimulator.Fault.DISCONNECT, 1).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig().setMaxAttempts(3));
+
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (IOException e) {
+				assertFalse(ResilientGateway.isConnectFailure(e));
+			}
+			assertEquals(1, simulator.getRequestCount());
+		}
+	}
+
+	// Test that the request timeout bounds the wait for a slow Gateway.
+	@Test
+	public void testRequestTimeout() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(2000).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig()
+					.setAttemptTimeout(5, TimeUnit.SECONDS)
+					.setRequestTimeout(200, TimeUnit.MILLISECONDS));
+
+			long start = System.nanoTime();
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (SocketTimeoutException e) {
+				// Expected
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Took " + elapsed + " ms", elapsed < 1500);
+		}
+	}
+
+	// Test that a transaction sent again is answered from the first response,
+	// that one that failed is sent again unchanged, and that reusing a
+	// transactionUnique for different fields is refused.
+	@Test
+	public void testReplaysTransactions() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig()
+					.setAttemptTimeout(200, TimeUnit.MILLISECONDS));
+
+			HashMap<String, String> params = GatewayUtils.getInitialForm();
+			Map<String, String> first = resilient.directRequest(params, null);
+			Map<String, String> second = resilient.directRequest(params, null);
+			assertEquals(first, second);
+			assertEquals(1, simulator.getRequestCount());
+
+			HashMap<String, String> changed = new HashMap<String, String>(params);
+			changed.put("amount", "2002");
+			try {
+				resilient.directRequest(changed, null);
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+
+			// A timed out transaction is sent again, and answered this time.
+			HashMap<String, String> slow = GatewayUtils.getInitialForm();
+			simulator.setLatency(1000);
+			try {
+				resilient.directRequest(slow, null);
+				Assert.fail();
+			} catch (SocketTimeoutException e) {
+				// Expected
+			}
+			simulator.setLatency(0);
+			assertEquals(GatewaySimulator.RC_SUCCESS, resilient.directRequest(slow, null).get("responseCode"));
+			assertEquals(3, simulator.getRequestCount());
+			assertEquals(0, simulator.getRejectedCount());
+		}
+	}
+
+	// Test that a failed transaction sent again continues its journal entry.
+	@Test
+	public void testReplayContinuesJournalEntry() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		try (var journal = new RequestJournal(directory);
+				var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(1000).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						new ConnectionConfig().setJournal(journal))) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig()
+					.setAttemptTimeout(200, TimeUnit.MILLISECONDS));
+
+			HashMap<String, String> params = GatewayUtils.getInitialForm();
+			try {
+				resilient.directRequest(params, null);
+				Assert.fail();
+			} catch (SocketTimeoutException e) {
+				// Expected
+			}
+			assertEquals(JournalEntry.State.UNKNOWN, journal.find(params.get("transactionUnique")).getState());
+
+			simulator.setLatency(0);
+			resilient.directRequest(new HashMap<String, String>(params), null);
+			assertEquals(1, journal.size());
+			assertEquals(JournalEntry.State.RESPONDED, journal.find(params.get("transactionUnique")).getState());
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Test that a request which was never sent, and whose entry may since
+	// have been removed, gets a new journal entry when it is replayed.
+	@Test
+	public void testReplayAfterNotSentStartsJournalEntry() throws Exception {
+		int port;
+		try (var socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		Path directory = Files.createTempDirectory("journal");
+		try (var journal = new RequestJournal(directory);
+				var simulator = new GatewaySimulator("Circle4Take40Idea").start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null,
+						new ConnectionConfig().setJournal(journal))) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig().setMaxAttempts(1));
+
+			HashMap<String, String> params = GatewayUtils.getInitialForm();
+			HashMap<String, String> unreachable = new HashMap<String, String>(params);
+			unreachable.put("directUrl", "http://127.0.0.1:" + port + "/direct/");
+			try {
+				resilient.directRequest(unreachable, null);
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected
+			}
+			JournalEntry notSent = journal.find(params.get("transactionUnique"));
+			assertEquals(JournalEntry.State.NOT_SENT, notSent.getState());
+
+			resilient.directRequest(new HashMap<String, String>(params), null);
+			assertEquals(2, journal.size());
+			assertEquals(JournalEntry.State.NOT_SENT, journal.get(notSent.getId()).getState());
+			assertEquals(JournalEntry.State.RESPONDED, journal.find(params.get("transactionUnique")).getState());
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Test that the circuit opens when requests fail, lets trial requests
+	// through after the open duration and closes once they succeed.
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea")
+				.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 1).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig()
+					.setWindow(4, 4)
+					.setOpenDuration(200, TimeUnit.MILLISECONDS)
+					.setHalfOpenCalls(2));
+
+			for (int i = 0; i < 4; i++) {
+				try {
+					resilient.directRequest(GatewayUtils.getInitialForm(), null);
+					Assert.fail();
+				} catch (IOException e) {
+					assertFalse(e instanceof GatewayRejectedException);
+				}
+			}
+			assertEquals(ResilientGateway.CircuitState.OPEN, resilient.getCircuitState());
+
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (GatewayRejectedException e) {
+				// Expected
+			}
+			assertEquals(4, simulator.getRequestCount());
+
+			simulator.setFaultRate(GatewaySimulator.Fault.HTTP_ERROR, 0);
+			Thread.sleep(250);
+			resilient.directRequest(GatewayUtils.getInitialForm(), null);
+			assertEquals(ResilientGateway.CircuitState.HALF_OPEN, resilient.getCircuitState());
+			resilient.directRequest(GatewayUtils.getInitialForm(), null);
+			assertEquals(ResilientGateway.CircuitState.CLOSED, resilient.getCircuitState());
+		}
+	}
+
+	// Test that requests beyond the concurrency limit are refused.
+	@Test
+	public void testBulkhead() throws Exception {
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setLatency(500).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+			var resilient = new ResilientGateway(gateway, new ResilienceConfig()
+					.setMaxConcurrentRequests(1, 0, TimeUnit.MILLISECONDS));
+
+			var inFlight = CompletableFuture.supplyAsync(() -> {
+				try {
+					return resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			while (resilient.getActiveRequests() == 0) {
+				Thread.sleep(1);
+			}
+
+			try {
+				resilient.directRequest(GatewayUtils.getInitialForm(), null);
+				Assert.fail();
+			} catch (GatewayRejectedException e) {
+				// Expected
+			}
+
+			assertEquals(GatewaySimulator.RC_SUCCESS, inFlight.get(5, TimeUnit.SECONDS).get("responseCode"));
+			assertEquals(0, resilient.getActiveRequests());
+			assertEquals(1, simulator.getRequestCount());
+		}
+	}
+}
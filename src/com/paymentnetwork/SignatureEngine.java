@@ -0,0 +1,419 @@
+package com.paymentnetwork;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hc.core5.http.NameValuePair;
+
+/// <summary>
+/// Computes Gateway message signatures without building the signed body.
+///
+/// The signature is the hex SHA-512 of the fields, stably sorted by
+/// FieldCompare and form-encoded as by URLEncodedUtils.format with '*'
+/// written as %2A, followed by the merchant secret. Here the fields are percent-encoded
+/// straight into a small byte buffer that is fed to the digest as it
+/// fills, so no intermediate body String, NameValuePair copies or regular
+/// expressions are needed.
+///
+/// Each thread keeps its own engine, holding the MessageDigest, the encode
+/// buffer, the sort scratch arrays and the encoded secret, which are reused
+/// by every signature computed on that thread.
+///
+/// The encoded fields can also be kept, with keepBody, to be sent as the
+/// request body, so the fields are encoded once and the bytes signed are
+/// exactly the bytes sent.
+/// </summary>
+final class SignatureEngine {
+	private static final ThreadLocal<SignatureEngine> ENGINES = ThreadLocal.withInitial(SignatureEngine::new);
+
+	private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+	private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+
+	// Characters written as-is by the form encoder. Space is written as '+'
+	// and everything else, including '*', is percent-encoded.
+	private static final boolean[] UNRESERVED = new boolean[128];
+
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['-'] = true;
+		UNRESERVED['.'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	// Room for one character encoded as four percent-encoded UTF-8 bytes.
+	private static final int MAX_CHAR_BYTES = 12;
+
+	private final MessageDigest digest;
+	private final byte[] buffer = new byte[2048];
+	private int position;
+
+	private static final int HASH_LENGTH = 64;
+
+	private final byte[] hash = new byte[HASH_LENGTH];
+	private final char[] hex = new char[HASH_LENGTH * 2];
+
+	private String lastSecret;
+	private byte[] lastSecretBytes;
+
+	// The encoded fields, when kept for the request body.
+	private static final int MAX_RETAINED_BODY = 64 * 1024;
+	private static final byte[] SIGNATURE_FIELD = "&signature=".getBytes(StandardCharsets.US_ASCII);
+	private boolean keepBody;
+	private byte[] body = new byte[2048];
+	private int bodyLength;
+
+	private int count;
+	private String[] names = new String[32];
+	private String[] values = new String[32];
+	private int[] prefixes = new int[32];
+	private int[] order = new int[32];
+	private int[] scratch = new int[32];
+
+	private SignatureEngine() {
+		try {
+			digest = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-512 is not available", e);
+		}
+	}
+
+	/// <summary>
+	/// Sign fields with secret, using the calling thread's engine.
+	/// </summary>
+	static String sign(List<? extends NameValuePair> fields, String secret) {
+		SignatureEngine engine = get();
+		engine.begin();
+		for (NameValuePair field : fields) {
+			engine.add(field.getName(), field.getValue());
+		}
+		return engine.finish(secret);
+	}
+
+	/// <summary>
+	/// The calling thread's engine, for callers that add fields one at a
+	/// time as they are produced. A thread must finish or discard one
+	/// signature before beginning another.
+	/// </summary>
+	static SignatureEngine get() {
+		return ENGINES.get();
+	}
+
+	/// <summary>
+	/// Start a new signature.
+	/// </summary>
+	void begin() {
+		discard();
+		keepBody = false;
+		bodyLength = 0;
+		if (body.length > MAX_RETAINED_BODY) {
+			body = new byte[2048];
+		}
+	}
+
+	/// <summary>
+	/// Keep the fields of the signature begun, as they are encoded for the
+	/// digest, for body to return once it is finished.
+	/// </summary>
+	void keepBody() {
+		keepBody = true;
+	}
+
+	/// <summary>
+	/// The fields of the signature just finished, form-encoded in the order
+	/// signed, followed by a signature field: the request body to send.
+	/// </summary>
+	byte[] body(String signature) {
+		if (!keepBody) {
+			throw new IllegalStateException("keepBody was not called for this signature");
+		}
+		int offset = bodyLength == 0 ? 1 : 0;
+		byte[] rtn = new byte[bodyLength + SIGNATURE_FIELD.length - offset + signature.length()];
+		System.arraycopy(body, 0, rtn, 0, bodyLength);
+		System.arraycopy(SIGNATURE_FIELD, offset, rtn, bodyLength, SIGNATURE_FIELD.length - offset);
+		int position = bodyLength + SIGNATURE_FIELD.length - offset;
+		for (int i = 0; i < signature.length(); i++) {
+			// Hex digits, which need no encoding.
+			rtn[position + i] = (byte) signature.charAt(i);
+		}
+		return rtn;
+	}
+
+	/// <summary>
+	/// Add a field to the signature. Fields may be added in any order; fields
+	/// that FieldCompare considers equal are signed in the order added.
+	/// </summary>
+	void add(String name, String value) {
+		if (count == names.length) {
+			grow();
+		}
+		names[count] = name;
+		values[count] = value;
+		prefixes[count] = FieldCompare.prefixLength(name);
+		order[count] = count;
+		count++;
+	}
+
+	/// <summary>
+	/// Complete the signature, returning it as lowercase hex.
+	/// </summary>
+	String finish(String secret) {
+		return finish(secret == null ? null : secretBytes(secret));
+	}
+
+	/// <summary>
+	/// Complete the signature using a secret already encoded as UTF-8.
+	/// </summary>
+	String finish(byte[] secret) {
+		computeHash(secret);
+
+		for (int b = 0; b < HASH_LENGTH; b++) {
+			hex[b * 2] = HEX_LOWER[(hash[b] >> 4) & 0x0F];
+			hex[b * 2 + 1] = HEX_LOWER[hash[b] & 0x0F];
+		}
+
+		return new String(hex, 0, HASH_LENGTH * 2);
+	}
+
+	/// <summary>
+	/// Complete the signature and check it against the hex signature held in
+	/// the first length characters of expected.
+	///
+	/// The comparison takes the same time wherever the signatures differ, so
+	/// it reveals nothing about how close a forged signature is.
+	/// </summary>
+	boolean matches(String secret, String expected, int length) {
+		return matches(secret == null ? null : secretBytes(secret), expected, length);
+	}
+
+	/// <summary>
+	/// As matches(String, String, int), using a secret already encoded as
+	/// UTF-8.
+	/// </summary>
+	boolean matches(byte[] secret, String expected, int length) {
+		computeHash(secret);
+
+		if (length != HASH_LENGTH * 2) {
+			return false;
+		}
+
+		int difference = 0;
+		for (int b = 0; b < HASH_LENGTH; b++) {
+			int high = hexValue(expected.charAt(b * 2));
+			int low = hexValue(expected.charAt(b * 2 + 1));
+			// An invalid digit makes the difference non-zero.
+			difference |= (high | low) & 0x100;
+			difference |= (hash[b] & 0xFF) ^ ((high << 4 | low) & 0xFF);
+		}
+		return difference == 0;
+	}
+
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private void computeHash(byte[] secret) {
+		sort();
+
+		digest.reset();
+		position = 0;
+
+		for (int n = 0; n < count; n++) {
+			if (n > 0) {
+				write((byte) '&');
+			}
+
+			int field = order[n];
+			encode(names[field]);
+			if (values[field] != null) {
+				write((byte) '=');
+				encode(values[field]);
+			}
+		}
+
+		flush();
+
+		if (secret != null) {
+			digest.update(secret);
+		}
+
+		try {
+			digest.digest(hash, 0, HASH_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		discard();
+	}
+
+	/// <summary>
+	/// The UTF-8 bytes of secret. Signatures made on a thread almost always
+	/// use the same secret, so its encoding is kept for the next call.
+	/// </summary>
+	byte[] secretBytes(String secret) {
+		if (!secret.equals(lastSecret)) {
+			lastSecretBytes = secret.getBytes(StandardCharsets.UTF_8);
+			lastSecret = secret;
+		}
+		return lastSecretBytes;
+	}
+
+	/// <summary>
+	/// Abandon the current signature.
+	/// </summary>
+	void discard() {
+		// Don't hold on to request data between calls.
+		Arrays.fill(names, 0, count, null);
+		Arrays.fill(values, 0, count, null);
+		count = 0;
+	}
+
+	private void grow() {
+		int size = names.length * 2;
+		names = Arrays.copyOf(names, size);
+		values = Arrays.copyOf(values, size);
+		prefixes = Arrays.copyOf(prefixes, size);
+		order = Arrays.copyOf(order, size);
+		scratch = new int[size];
+	}
+
+	private int compare(int field1, int field2) {
+		return FieldCompare.compare(names[field1], prefixes[field1], names[field2], prefixes[field2]);
+	}
+
+	/// <summary>
+	/// Stable merge sort of order[0..count) by field name.
+	/// </summary>
+	private void sort() {
+		for (int width = 1; width < count; width *= 2) {
+			for (int low = 0; low < count - width; low += width * 2) {
+				int mid = low + width;
+				int high = Math.min(low + width * 2, count);
+				merge(low, mid, high);
+			}
+		}
+	}
+
+	private void merge(int low, int mid, int high) {
+		if (compare(order[mid - 1], order[mid]) <= 0) {
+			return; // Already in order.
+		}
+
+		System.arraycopy(order, low, scratch, low, high - low);
+
+		int left = low;
+		int right = mid;
+		int out = low;
+		while (left < mid && right < high) {
+			if (compare(scratch[right], scratch[left]) < 0) {
+				order[out++] = scratch[right++];
+			} else {
+				order[out++] = scratch[left++];
+			}
+		}
+		while (left < mid) {
+			order[out++] = scratch[left++];
+		}
+		while (right < high) {
+			order[out++] = scratch[right++];
+		}
+	}
+
+	/// <summary>
+	/// Form-encode s as UTF-8 into the digest.
+	/// </summary>
+	private void encode(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			if (position > buffer.length - MAX_CHAR_BYTES) {
+				flush();
+			}
+
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (UNRESERVED[c]) {
+					buffer[position++] = (byte) c;
+				} else if (c == ' ') {
+					buffer[position++] = '+';
+				} else {
+					percent(c);
+				}
+			} else if (c < 0x800) {
+				percent(0xC0 | (c >> 6));
+				percent(0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				int codePoint = codePointAt(s, i, c);
+				if (codePoint < 0) {
+					percent('?');
+				} else {
+					percent(0xF0 | (codePoint >> 18));
+					percent(0x80 | ((codePoint >> 12) & 0x3F));
+					percent(0x80 | ((codePoint >> 6) & 0x3F));
+					percent(0x80 | (codePoint & 0x3F));
+					i++;
+				}
+			} else {
+				percent(0xE0 | (c >> 12));
+				percent(0x80 | ((c >> 6) & 0x3F));
+				percent(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/// <summary>
+	/// The code point of the surrogate pair starting at index, or -1 if c is
+	/// an unpaired surrogate (which String.getBytes encodes as '?').
+	/// </summary>
+	private static int codePointAt(String s, int index, char c) {
+		if (Character.isHighSurrogate(c) && index + 1 < s.length()) {
+			char low = s.charAt(index + 1);
+			if (Character.isLowSurrogate(low)) {
+				return Character.toCodePoint(c, low);
+			}
+		}
+		return -1;
+	}
+
+	private void percent(int b) {
+		buffer[position++] = '%';
+		buffer[position++] = (byte) HEX_UPPER[(b >> 4) & 0x0F];
+		buffer[position++] = (byte) HEX_UPPER[b & 0x0F];
+	}
+
+	private void write(byte b) {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = b;
+	}
+
+	private void flush() {
+		digest.update(buffer, 0, position);
+		if (keepBody) {
+			if (body.length - bodyLength < position) {
+				body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + position));
+			}
+			System.arraycopy(buffer, 0, body, bodyLength, position);
+			bodyLength += position;
+		}
+		position = 0;
+	}
+}
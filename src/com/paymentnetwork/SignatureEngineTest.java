@@ -0,0 +1,150 @@
+package com.paymentnetwork;
+
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_512;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.net.URLEncodedUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class SignatureEngineTest extends TestCase {
+	private static final String SECRET = "Circle4Take40Idea";
+
+	// The original URLEncodedUtils signing path, with a stable sort in place
+	// of the TreeMap, used as the reference the engine must match byte for
+	// byte.
+	private static String legacySign(List<NameValuePair> fields, String secret) {
+		var fieldsFinal = new ArrayList<NameValuePair>(fields);
+		fieldsFinal.sort((f1, f2) -> new FieldCompare().compare(f1.getName(), f2.getName()));
+
+		var body = URLEncodedUtils.format(fieldsFinal, StandardCharsets.UTF_8);
+		body = body.replaceAll("\\*", "%2A");
+
+		return new DigestUtils(SHA_512).digestAsHex(body + secret);
+	}
+
+	private static String randomString(Random random, String alphabet, int maxLength) {
+		int length = random.nextInt(maxLength + 1);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+
+	private static List<NameValuePair> createFields(int count) {
+		var fields = new ArrayList<NameValuePair>();
+		for (int i = 0; i < count; i++) {
+			fields.add(new BasicNameValuePair("field" + i, "value " + i));
+		}
+		return fields;
+	}
+
+	@Test
+	public void testMatchesLegacySigning() {
+		var random = new Random(42);
+		String nameAlphabet = "abcAZ019[]_-.*";
+		String valueAlphabet = "abcXYZ089 *&=+%?\"'<>\n\r\t~!#/\\£é€Δ😀\uD800";
+
+		for (int n = 0; n < 2000; n++) {
+			var fields = new ArrayList<NameValuePair>();
+			int count = random.nextInt(40);
+			for (int i = 0; i < count; i++) {
+				String name = randomString(random, nameAlphabet, 8);
+				String value = random.nextInt(20) == 0 ? null : randomString(random, valueAlphabet, 30);
+				fields.add(new BasicNameValuePair(name.isEmpty() ? "x" : name, value));
+			}
+
+			assertEquals(fields.toString(), legacySign(fields, SECRET), SignatureEngine.sign(fields, SECRET));
+		}
+	}
+
+	// Test that the body kept is the encoding that was signed, followed by
+	// the signature.
+	@Test
+	public void testKeepsSignedBody() {
+		var random = new Random(7);
+		String valueAlphabet = "abcXYZ089 *&=+%?£é€😀";
+
+		for (int n = 0; n < 200; n++) {
+			var fields = new ArrayList<NameValuePair>();
+			int count = random.nextInt(40);
+			for (int i = 0; i < count; i++) {
+				fields.add(new BasicNameValuePair("f" + random.nextInt(50), randomString(random, valueAlphabet, 200)));
+			}
+
+			var engine = SignatureEngine.get();
+			engine.begin();
+			engine.keepBody();
+			for (NameValuePair field : fields) {
+				engine.add(field.getName(), field.getValue());
+			}
+			String signature = engine.finish(SECRET);
+			String body = new String(engine.body(signature), StandardCharsets.UTF_8);
+
+			assertEquals(legacySign(fields, SECRET), signature);
+			var sorted = new ArrayList<NameValuePair>(fields);
+			sorted.sort((f1, f2) -> new FieldCompare().compare(f1.getName(), f2.getName()));
+			String signed = URLEncodedUtils.format(sorted, StandardCharsets.UTF_8).replaceAll("\\*", "%2A");
+			assertEquals((signed.isEmpty() ? "" : signed + "&") + "signature=" + signature, body);
+			assertEquals(signature, new DigestUtils(SHA_512).digestAsHex(signed + SECRET));
+		}
+	}
+
+	@Test
+	public void testLargeValues() {
+		var fields = new ArrayList<NameValuePair>();
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			large.append("threeDS £ data * ");
+		}
+		fields.add(new BasicNameValuePair("threeDSRequest[threeDSMethodData]", large.toString()));
+		fields.add(new BasicNameValuePair("action", "SALE"));
+
+		assertEquals(legacySign(fields, SECRET), SignatureEngine.sign(fields, SECRET));
+		assertEquals(legacySign(fields, "s£cret"), SignatureEngine.sign(fields, "s£cret"));
+	}
+
+	// The engine should allocate far less per signature than the original
+	// path: only the returned hex String once its buffers have grown.
+	@Test
+	public void testAllocatesLessThanLegacySigning() {
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+
+		var fields = createFields(50);
+		long threadId = Thread.currentThread().getId();
+		int iterations = 2000;
+
+		for (int i = 0; i < iterations; i++) {
+			legacySign(fields, SECRET);
+			SignatureEngine.sign(fields, SECRET);
+		}
+
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			legacySign(fields, SECRET);
+		}
+		long legacyBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+		before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			SignatureEngine.sign(fields, SECRET);
+		}
+		long engineBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue("legacy " + legacyBytes / iterations + " bytes/op, engine " + engineBytes / iterations
+				+ " bytes/op", engineBytes * 10 < legacyBytes);
+	}
+}
@@ -0,0 +1,181 @@
+package com.paymentnetwork;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/// <summary>
+/// Holds transactions waiting for 3DS authentication, so that they can be
+/// continued once the cardholder has authenticated.
+///
+/// When a Direct API request is answered with responseCode 65802 (3DS
+/// AUTHENTICATION REQUIRED), put the response here under the transaction's
+/// key. Only the fields the continuation needs (merchantID, action and
+/// threeDSRef) are kept, already built into a GatewayRequest. When the
+/// cardholder's browser returns from the ACS, continuation() adds the
+/// threeDSResponse fields it posted and the request can be sent:
+///
+///     ThreeDSContinuations continuations = new ThreeDSContinuations(100000, 30, TimeUnit.MINUTES);
+///
+///     Map<String, String> response = gateway.directRequest(request, null);
+///     if (continuations.put(response)) {
+///         // Redirect the cardholder to response.get("threeDSURL")
+///     }
+///     ...
+///     GatewayRequest continuation = continuations.continuation(transactionUnique, acsPost);
+///     response = gateway.directRequest(continuation, null);
+///
+/// A transaction can need authenticating more than once (for example a 3DS
+/// method followed by a challenge), each time answered with a new 65802
+/// response, which is put here in turn.
+///
+/// Transactions are kept for the ttl given, and when more than maxEntries
+/// are waiting the oldest are dropped. A ThreeDSContinuations can be shared
+/// by every thread handling requests.
+/// </summary>
+public class ThreeDSContinuations {
+	/// responseCode of a response asking for 3DS authentication.
+	static final String AUTHENTICATION_REQUIRED = "65802";
+
+	private static final String[] KEPT = { "merchantID", "action", "threeDSRef" };
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+	/// <summary>
+	/// Create a cache holding up to maxEntries transactions, each for up to
+	/// ttl.
+	/// </summary>
+	public ThreeDSContinuations(int maxEntries, long ttl, TimeUnit unit) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be greater than 0");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	/// <summary>
+	/// Keep response, under its transactionUnique, if it asks for 3DS
+	/// authentication.
+	/// </summary>
+	/// <param name="response"> A verified Direct API response </params>
+	/// <returns> Whether the response was kept </returns>
+	public boolean put(Map<String, String> response) {
+		return put(response.get("transactionUnique"), response);
+	}
+
+	/// <summary>
+	/// Keep response, under key, if it asks for 3DS authentication. A
+	/// transaction already kept under key is replaced.
+	/// </summary>
+	/// <param name="key"> Identifies the transaction, for example its transactionUnique </params>
+	/// <param name="response"> A verified Direct API response </params>
+	/// <returns> Whether the response was kept </returns>
+	public boolean put(String key, Map<String, String> response) {
+		if (!AUTHENTICATION_REQUIRED.equals(response.get("responseCode"))) {
+			return false;
+		}
+		if (key == null) {
+			throw new IllegalArgumentException("A transaction key must be provided.");
+		}
+
+		GatewayRequest.Builder builder = GatewayRequest.builder();
+		for (String name : KEPT) {
+			String value = response.get(name);
+			if (value == null) {
+				throw new IllegalArgumentException("3DS response must contain '" + name + "'");
+			}
+			builder.set(name, value);
+		}
+		Pending entry = new Pending(builder.build(), System.nanoTime());
+
+		synchronized (pending) {
+			// Re-inserted at the end, keeping the map in order of expiry.
+			pending.remove(key);
+			pending.put(key, entry);
+			expire(entry.created);
+			if (pending.size() > maxEntries) {
+				Iterator<Pending> oldest = pending.values().iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		}
+		return true;
+	}
+
+	/// <summary>
+	/// The request continuing the transaction kept under key, with the
+	/// fields posted back by the ACS as threeDSResponse[...]. The
+	/// transaction is no longer kept, as its threeDSRef can only be used
+	/// once.
+	/// </summary>
+	/// <param name="key"> The key the transaction was kept under </params>
+	/// <param name="threeDSResponse"> The fields posted by the ACS, such as cres </params>
+	/// <returns> The request, or null if the transaction isn't kept or has expired </returns>
+	public GatewayRequest continuation(String key, Map<String, String> threeDSResponse) {
+		Pending entry;
+		synchronized (pending) {
+			entry = pending.remove(key);
+		}
+		if (entry == null || System.nanoTime() - entry.created > ttlNanos) {
+			return null;
+		}
+		return entry.request.toBuilder().set("threeDSResponse", threeDSResponse).build();
+	}
+
+	/// <summary>
+	/// The threeDSRef of the transaction kept under key, or null.
+	/// </summary>
+	public String getThreeDSRef(String key) {
+		Pending entry;
+		synchronized (pending) {
+			entry = pending.get(key);
+		}
+		if (entry == null || System.nanoTime() - entry.created > ttlNanos) {
+			return null;
+		}
+		return entry.request.get("threeDSRef");
+	}
+
+	/// <summary>
+	/// Stop keeping the transaction under key, for example when the
+	/// cardholder abandons it.
+	/// </summary>
+	public void remove(String key) {
+		synchronized (pending) {
+			pending.remove(key);
+		}
+	}
+
+	/// <summary>
+	/// Number of transactions kept, including any expired but not yet
+	/// dropped.
+	/// </summary>
+	public int size() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Pending> oldest = pending.values().iterator();
+		while (oldest.hasNext() && now - oldest.next().created > ttlNanos) {
+			oldest.remove();
+		}
+	}
+
+	private static final class Pending {
+		final GatewayRequest request;
+		final long created;
+
+		Pending(GatewayRequest request, long created) {
+			this.request = request;
+			this.created = created;
+		}
+	}
+}
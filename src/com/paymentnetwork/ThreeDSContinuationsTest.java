@@ -0,0 +1,104 @@
+package com.paymentnetwork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ThreeDSContinuationsTest extends TestCase {
+
+	private static Map<String, String> threeDSResponse(String transactionUnique, String threeDSRef) {
+		Map<String, String> response = new HashMap<String, String>();
+		response.put("responseCode", "65802");
+		response.put("responseMessage", "3DS AUTHENTICATION REQUIRED");
+		response.put("merchantID", "100856");
+		response.put("action", "SALE");
+		response.put("transactionUnique", transactionUnique);
+		response.put("threeDSRef", threeDSRef);
+		response.put("threeDSURL", "https://acs.example.com/");
+		response.put("threeDSRequest[creq]", "creq");
+		return response;
+	}
+
+	// Test a transaction needing 3DS authentication is continued against the
+	// simulator from the cached state alone.
+	@Test
+	public void testContinuesTransaction() throws Exception {
+		HashMap<String, String> params = GatewayUtils.getInitialForm();
+		params.putAll(GatewayUtils.getDebuggingBrowserData());
+
+		var continuations = new ThreeDSContinuations(10, 1, TimeUnit.MINUTES);
+		try (var simulator = new GatewaySimulator("Circle4Take40Idea").setThreeDSRequired(true).start();
+				var gateway = new Gateway("100856", "Circle4Take40Idea", simulator.getDirectUrl(), null, null)) {
+
+			var response = gateway.directRequest(params, null);
+			assertTrue(continuations.put(response));
+			assertEquals(response.get("threeDSRef"), continuations.getThreeDSRef(params.get("transactionUnique")));
+
+			var acsPost = new HashMap<String, String>();
+			acsPost.put("cres", "simulated");
+			var continuation = continuations.continuation(params.get("transactionUnique"), acsPost);
+			assertEquals(4, continuation.size());
+			assertEquals("simulated", continuation.get("threeDSResponse[cres]"));
+			assertEquals("SALE", continuation.get("action"));
+
+			response = gateway.directRequest(continuation, null);
+			assertEquals(GatewaySimulator.RC_SUCCESS, response.get("responseCode"));
+			assertEquals("Y", response.get("threeDSAuthenticated"));
+			assertEquals(params.get("transactionUnique"), response.get("transactionUnique"));
+
+			// The threeDSRef can only be used once.
+			assertFalse(continuations.put(response));
+			assertNull(continuations.continuation(params.get("transactionUnique"), acsPost));
+			assertEquals(0, continuations.size());
+		}
+	}
+
+	// Test that other responses aren't kept, and that a 3DS response must
+	// carry what the continuation needs.
+	@Test
+	public void testOnlyKeepsThreeDSResponses() {
+		var continuations = new ThreeDSContinuations(10, 1, TimeUnit.MINUTES);
+
+		Map<String, String> approved = threeDSResponse("t1", "ref1");
+		approved.put("responseCode", "0");
+		assertFalse(continuations.put(approved));
+
+		Map<String, String> incomplete = threeDSResponse("t1", "ref1");
+		incomplete.remove("threeDSRef");
+		try {
+			continuations.put(incomplete);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(0, continuations.size());
+	}
+
+	// Test that the oldest transactions are dropped when full, that a later
+	// 65802 for a transaction replaces the earlier one, and that entries
+	// expire.
+	@Test
+	public void testBoundedAndExpiring() throws Exception {
+		var continuations = new ThreeDSContinuations(2, 100, TimeUnit.MILLISECONDS);
+
+		continuations.put(threeDSResponse("t1", "ref1"));
+		continuations.put(threeDSResponse("t2", "ref2"));
+		continuations.put(threeDSResponse("t1", "ref1b"));
+		continuations.put(threeDSResponse("t3", "ref3"));
+		assertEquals(2, continuations.size());
+		assertNull(continuations.getThreeDSRef("t2"));
+		assertEquals("ref1b", continuations.getThreeDSRef("t1"));
+		assertEquals("ref3", continuations.getThreeDSRef("t3"));
+
+		Thread.sleep(150);
+		assertNull(continuations.getThreeDSRef("t1"));
+		assertNull(continuations.continuation("t3", new HashMap<String, String>()));
+
+		continuations.put(threeDSResponse("t4", "ref4"));
+		assertEquals(1, continuations.size());
+	}
+}